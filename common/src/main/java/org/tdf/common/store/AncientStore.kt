@@ -0,0 +1,178 @@
+package org.tdf.common.store
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * append only store of immutable items numbered from zero, items are packed into blocks of about blockSize bytes,
+ * every block is compressed and appended to a log of segment files,
+ * the index file keeps position of block and offset of item in uncompressed block, 12 bytes per item
+ */
+class AncientStore(
+    private val directory: String,
+    private val blockSize: Int = DEFAULT_BLOCK_SIZE,
+    segmentSize: Int = MappedLog.DEFAULT_SEGMENT_SIZE
+) : Closeable {
+    private val blocks: MappedLog
+    private val index: FileChannel
+
+    // count of items written into index
+    private var flushed: Long
+
+    // items not flushed yet, they are packed into the next block
+    private val pending = ByteArrayOutputStream()
+    private val pendingOffsets: MutableList<Int> = mutableListOf()
+
+    // position of block -> uncompressed block, sequential reads hit the same block
+    private val cache: Cache<Long, ByteArray> = CacheBuilder.newBuilder().maximumSize(16).build()
+
+    init {
+        Files.createDirectories(Paths.get(directory))
+        blocks = MappedLog(Paths.get(directory, "blocks").toString(), segmentSize)
+        index = FileChannel.open(
+            Paths.get(directory, "index"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        )
+        flushed = index.size() / ENTRY_SIZE
+        // drop partial written entry
+        index.truncate(flushed * ENTRY_SIZE)
+        log.info("open ancient store at {} items = {}", directory, flushed)
+    }
+
+    val size: Long
+        @Synchronized get() = flushed + pendingOffsets.size
+
+    /**
+     * append an item, return number of the item, the item is durable after flush
+     */
+    @Synchronized
+    fun append(item: ByteArray): Long {
+        pendingOffsets.add(pending.size())
+        pending.write(ByteBuffer.allocate(4).putInt(item.size).array())
+        pending.write(item)
+        if (pending.size() >= blockSize)
+            flush()
+        return size - 1
+    }
+
+    @Synchronized
+    operator fun get(i: Long): ByteArray? {
+        if (i < 0 || i >= size) return null
+        if (i >= flushed)
+            return item(pending.toByteArray(), pendingOffsets[(i - flushed).toInt()])
+        val entry = ByteBuffer.allocate(ENTRY_SIZE)
+        while (entry.hasRemaining()) {
+            if (index.read(entry, i * ENTRY_SIZE + entry.position()) < 0)
+                throw RuntimeException("unexpected end of ancient index at $i")
+        }
+        val pos = entry.getLong(0)
+        val block = cache.get(pos) { inflate(blocks.read(pos)) }
+        return item(block, entry.getInt(8))
+    }
+
+    private fun item(block: ByteArray, offset: Int): ByteArray {
+        val len = ByteBuffer.wrap(block, offset, 4).int
+        return block.copyOfRange(offset + 4, offset + 4 + len)
+    }
+
+    /**
+     * compress pending items into a block, then write their index entries
+     */
+    @Synchronized
+    fun flush() {
+        if (pendingOffsets.isEmpty()) return
+        val pos = blocks.append(deflate(pending.toByteArray()))
+        blocks.flush()
+        // index entries are written after the block, so an entry never refers to missing block
+        val buf = ByteBuffer.allocate(ENTRY_SIZE * pendingOffsets.size)
+        pendingOffsets.forEach { buf.putLong(pos).putInt(it) }
+        buf.flip()
+        while (buf.hasRemaining())
+            index.write(buf, flushed * ENTRY_SIZE + buf.position())
+        index.force(false)
+        flushed += pendingOffsets.size
+        pending.reset()
+        pendingOffsets.clear()
+    }
+
+    /**
+     * drop items numbered n and greater, blocks of dropped items are left in log as garbage
+     */
+    @Synchronized
+    fun truncate(n: Long) {
+        if (n >= size) return
+        if (n >= flushed) {
+            val k = (n - flushed).toInt()
+            val bytes = pending.toByteArray()
+            pending.reset()
+            pending.write(bytes, 0, pendingOffsets[k])
+            pendingOffsets.subList(k, pendingOffsets.size).clear()
+            return
+        }
+        pending.reset()
+        pendingOffsets.clear()
+        index.truncate(n * ENTRY_SIZE)
+        index.force(false)
+        flushed = n
+        log.info("truncate ancient store at {} items = {}", directory, n)
+    }
+
+    @Synchronized
+    override fun close() {
+        flush()
+        index.close()
+        blocks.close()
+    }
+
+    companion object {
+        const val DEFAULT_BLOCK_SIZE = 64 * 1024
+        private const val ENTRY_SIZE = 12
+        private val log = LoggerFactory.getLogger("db")
+
+        // compressed block is encoded as 4 bytes uncompressed size and deflate stream
+        private fun deflate(data: ByteArray): ByteArray {
+            val d = Deflater(Deflater.BEST_SPEED)
+            try {
+                d.setInput(data)
+                d.finish()
+                val out = ByteArrayOutputStream(data.size / 2 + 16)
+                out.write(ByteBuffer.allocate(4).putInt(data.size).array())
+                val buf = ByteArray(8192)
+                while (!d.finished()) {
+                    out.write(buf, 0, d.deflate(buf))
+                }
+                return out.toByteArray()
+            } finally {
+                d.end()
+            }
+        }
+
+        private fun inflate(compressed: ByteArray): ByteArray {
+            val r = ByteArray(ByteBuffer.wrap(compressed, 0, 4).int)
+            val i = Inflater()
+            try {
+                i.setInput(compressed, 4, compressed.size - 4)
+                var n = 0
+                while (n < r.size) {
+                    val m = i.inflate(r, n, r.size - n)
+                    if (m == 0 && (i.finished() || i.needsInput()))
+                        throw RuntimeException("corrupted ancient block")
+                    n += m
+                }
+                return r
+            } finally {
+                i.end()
+            }
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package org.tdf.common.store
 
+import java.util.*
+
 class BasePrefixStore(
     private val wrapped: Store<ByteArray, ByteArray>,
     val prefix: ByteArray
-) : Store<ByteArray, ByteArray> {
+) : RangeStore<ByteArray, ByteArray> {
     override fun get(k: ByteArray): ByteArray? {
         return wrapped[prefix + k]
     }
@@ -19,4 +21,11 @@ class BasePrefixStore(
     override fun flush() {
         wrapped.flush()
     }
-}
\ No newline at end of file
+
+    override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+        val range = wrapped as? RangeStore<ByteArray, ByteArray>
+            ?: throw UnsupportedOperationException("scan is not supported by $wrapped")
+        return range.scan(prefix + (start ?: ByteArray(0)), end?.let { prefix + it } ?: RangeStore.prefixEnd(prefix), limit)
+            .map { AbstractMap.SimpleImmutableEntry(it.key.copyOfRange(prefix.size, it.key.size), it.value) }
+    }
+}
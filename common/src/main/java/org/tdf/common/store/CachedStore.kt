@@ -0,0 +1,205 @@
+package org.tdf.common.store
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.RemovalCause
+import org.tdf.common.util.HexBytes
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.function.BooleanSupplier
+
+/**
+ * size bounded least recently used cache over a byte array store, suitable for trie nodes which are read frequently
+ * writes and removes are written through into delegate, keys not found in delegate are not cached
+ *
+ * when offHeap is true, values are appended into a few large direct ring buffers and only their positions are kept
+ * on heap, so large cache will not pressure the gc, a value is dropped when its ring wraps around and overwrites it
+ *
+ * a value read from delegate is cached only if its key is not invalidated during the read, so a concurrent
+ * write or remove never has its old value put back
+ *
+ * @param capacity maximum bytes of cached keys and values, off heap rings take capacity bytes of direct memory
+ * @param fillable false if values read by current thread should not be cached, e.g. read from an old snapshot
+ */
+class CachedStore @JvmOverloads constructor(
+    private val delegate: Store<ByteArray, ByteArray>,
+    val capacity: Long,
+    val offHeap: Boolean = false,
+    private val fillable: BooleanSupplier = BooleanSupplier { true }
+) : RangeStore<ByteArray, ByteArray> {
+    private val evictions = AtomicLong()
+
+    // values found in cache but overwritten in ring, they are misses
+    private val stale = AtomicLong()
+
+    private val rings: Array<Ring> = if (offHeap) createRings(capacity) else emptyArray()
+
+    // invalidations of keys by stripe, checked and increased under lock of the stripe
+    private val invalidations = AtomicLongArray(STRIPES)
+    private val locks = Array(STRIPES) { Any() }
+
+    private val cache: Cache<HexBytes, Any> = CacheBuilder.newBuilder()
+        .maximumWeight(capacity)
+        .weigher<HexBytes, Any> { k, v -> k.size + valueSize(v).toInt() }
+        .removalListener<HexBytes, Any> { if (it.cause == RemovalCause.SIZE) evictions.incrementAndGet() }
+        .recordStats()
+        .build()
+
+    val hits: Long
+        get() = cache.stats().hitCount() - stale.get()
+
+    val misses: Long
+        get() = cache.stats().missCount() + stale.get()
+
+    val evictionCount: Long
+        get() = evictions.get()
+
+    val hitRate: Double
+        get() {
+            val h = hits
+            val n = h + misses
+            return if (n == 0L) 1.0 else h.toDouble() / n
+        }
+
+    // bytes of cached keys and values
+    val size: Long
+        get() = cache.asMap().entries.sumOf { it.key.size.toLong() + valueSize(it.value) }
+
+    override fun get(k: ByteArray): ByteArray? {
+        val key = HexBytes.fromBytes(k)
+        cache.getIfPresent(key)?.let { o ->
+            decode(key, o)?.let { return it }
+            // overwritten in ring
+            cache.invalidate(key)
+            stale.incrementAndGet()
+            evictions.incrementAndGet()
+        }
+        val stripe = Math.floorMod(key.hashCode(), STRIPES)
+        val before = invalidations.get(stripe)
+        val v = delegate[k]
+        if (v != null && v.isNotEmpty() && fillable.asBoolean) {
+            synchronized(locks[stripe]) {
+                if (invalidations.get(stripe) == before) cache.put(key, encode(key, v))
+            }
+        }
+        return v
+    }
+
+    override fun set(k: ByteArray, v: ByteArray) {
+        delegate[k] = v
+        invalidate(k)
+    }
+
+    override fun remove(k: ByteArray) {
+        delegate.remove(k)
+        invalidate(k)
+    }
+
+    /**
+     * drop cached value of k, should be called when k is modified without this store
+     */
+    fun invalidate(k: ByteArray) {
+        val key = HexBytes.fromBytes(k)
+        val stripe = Math.floorMod(key.hashCode(), STRIPES)
+        synchronized(locks[stripe]) {
+            invalidations.incrementAndGet(stripe)
+            cache.invalidate(key)
+        }
+    }
+
+    fun invalidateAll() {
+        for (i in 0 until STRIPES) {
+            synchronized(locks[i]) { invalidations.incrementAndGet(i) }
+        }
+        cache.invalidateAll()
+    }
+
+    override fun flush() {
+        delegate.flush()
+    }
+
+    // scan is not cached
+    override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+        val range = delegate as? RangeStore<ByteArray, ByteArray>
+            ?: throw UnsupportedOperationException("scan is not supported by $delegate")
+        return range.scan(start, end, limit)
+    }
+
+    override fun toString(): String {
+        return "hits = $hits misses = $misses evictions = $evictionCount hit rate = ${"%.4f".format(hitRate)}"
+    }
+
+    private fun ring(key: HexBytes): Ring {
+        return rings[Math.floorMod(key.hashCode(), rings.size)]
+    }
+
+    // value on heap or position and length in ring of the key
+    private fun encode(key: HexBytes, v: ByteArray): Any {
+        val r = if (offHeap) ring(key) else return v
+        // values not fit in a ring are kept on heap
+        if (v.size > MAX_OFF_HEAP_VALUE || v.size > r.size) return v
+        return (r.put(v) shl 16) or v.size.toLong()
+    }
+
+    private fun decode(key: HexBytes, o: Any): ByteArray? {
+        if (o is ByteArray) return o
+        val p = o as Long
+        return ring(key).get(p ushr 16, (p and 0xffff).toInt())
+    }
+
+    private fun valueSize(o: Any): Long {
+        return if (o is Long) o and 0xffff else (o as ByteArray).size.toLong()
+    }
+
+    // values are appended at write position, bytes at absolute position p are overwritten when write position
+    // is beyond p + size, a value never wraps around the end of buffer
+    private class Ring(val size: Int) {
+        private val buf = ByteBuffer.allocateDirect(size)
+        private var writePos = 0L
+
+        @Synchronized
+        fun put(v: ByteArray): Long {
+            var off = (writePos % size).toInt()
+            if (off + v.size > size) {
+                writePos += size - off
+                off = 0
+            }
+            val pos = writePos
+            writePos += v.size
+            val b = buf.duplicate()
+            b.position(off)
+            b.put(v)
+            return pos
+        }
+
+        @Synchronized
+        fun get(pos: Long, len: Int): ByteArray? {
+            if (writePos > pos + size) return null
+            val b = buf.duplicate()
+            b.position((pos % size).toInt())
+            val r = ByteArray(len)
+            b.get(r)
+            return r
+        }
+    }
+
+    companion object {
+        // length of value is packed into the low 16 bits of its position
+        private const val MAX_OFF_HEAP_VALUE = 0xffff
+        private const val MAX_RING_SIZE = 1L shl 30
+        private const val MIN_RING_SIZE = 1L shl 24
+        private const val RINGS = 16
+        private const val STRIPES = 64
+
+        // rings are locked on access, so large cache is split into rings to reduce contention
+        private fun createRings(capacity: Long): Array<Ring> {
+            val n = maxOf(
+                (capacity + MAX_RING_SIZE - 1) / MAX_RING_SIZE,
+                minOf(RINGS.toLong(), capacity / MIN_RING_SIZE),
+                1
+            ).toInt()
+            return Array(n) { Ring((capacity / n).toInt()) }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.tdf.common.store
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import org.tdf.common.serialize.Codec
+import org.tdf.common.util.HexBytes
+
+/**
+ * store wrapper with bounded cache of decoded values over a store wrapped by unit of work
+ * a value loaded at version v is valid for readers of version v or later until a commit writes its key,
+ * readers of older snapshots and reads of keys buffered by current thread bypass the cache
+ *
+ * @param maximumSize maximum count of cached values
+ */
+class CachingStoreWrapper<K, V>(
+    store: Store<ByteArray, ByteArray>,
+    keyCodec: Codec<K>,
+    valueCodec: Codec<V>,
+    private val unitOfWork: UnitOfWork,
+    maximumSize: Long
+) : StoreWrapper<K, V>(store, keyCodec, valueCodec) {
+    private class Entry<V>(val value: V, val version: Long)
+
+    private val cache: Cache<HexBytes, Entry<V>> = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build()
+
+    init {
+        unitOfWork.listen(store) { cache.invalidate(HexBytes.fromBytes(it)) }
+    }
+
+    val hitRate: Double
+        get() = cache.stats().hitRate()
+
+    override fun get(k: K): V? {
+        val key = keyCodec.encoder.apply(k)
+        val version = unitOfWork.readVersion(store, key) ?: return decode(store[key])
+        val h = HexBytes.fromBytes(key)
+        cache.getIfPresent(h)?.takeIf { it.version <= version }?.let { return it.value }
+        val v = decode(store[key]) ?: return null
+        // value read from older snapshot may be overwritten
+        unitOfWork.ifCurrent(version) { cache.put(h, Entry(v, version)) }
+        return v
+    }
+
+    private fun decode(v: ByteArray?): V? {
+        return if (v == null || v.isEmpty()) null else valueCodec.decoder.apply(v)
+    }
+
+    override fun set(k: K, v: V) {
+        super.set(k, v)
+        cache.invalidate(HexBytes.fromBytes(keyCodec.encoder.apply(k)))
+    }
+
+    override fun remove(k: K) {
+        super.remove(k)
+        cache.invalidate(HexBytes.fromBytes(keyCodec.encoder.apply(k)))
+    }
+
+    override fun toString(): String {
+        return "size = ${cache.size()} hit rate = ${"%.4f".format(hitRate)}"
+    }
+}
@@ -1,11 +1,71 @@
 package org.tdf.common.store
 
+/**
+ * tuning profile of a database store or a column family
+ */
 data class DBSettings(
     val maxOpenFiles: Int = 32,
-    val maxThreads: Int = 1
+    val maxThreads: Int = 1,
+    // size of block cache in bytes, 0 means no block cache
+    val blockCacheSize: Long = 0,
+    // bits per key of bloom filter, 0 means no bloom filter, ignored by leveldb
+    val bloomBitsPerKey: Int = 0,
+    // uncompressed size of data block, a point read loads at least one block from disk
+    val blockSize: Int = 16 * 1024,
+    val writeBufferSize: Long = 10L * 1024 * 1024,
+    val compactionStyle: CompactionStyle = CompactionStyle.LEVEL,
+    val compression: Compression = Compression.NONE,
+    // aggressively check consistency of data when open
+    val paranoidChecks: Boolean = true,
+    // verify checksum of every block read from disk
+    val verifyChecksums: Boolean = true
 ) {
+    enum class CompactionStyle {
+        // low read amplification, suitable for random keys like trie nodes
+        LEVEL,
+
+        // low write amplification, suitable for append mostly keys like headers and transactions
+        UNIVERSAL
+    }
+
+    // leveldb supports only NONE and SNAPPY, other types fallback to SNAPPY
+    enum class Compression {
+        NONE,
+        SNAPPY,
+        LZ4,
+        ZSTD
+    }
+
     companion object {
         @JvmField
         val DEFAULT = DBSettings()
+
+        // trie nodes are keyed by hash and read randomly, prefer large cache, small block and bloom filter
+        // values are hashes mostly which are not compressible
+        // checksum is skipped since node is verified by its hash when resolved
+        @JvmField
+        val TRIE = DBSettings(
+            blockCacheSize = 256L * 1024 * 1024,
+            bloomBitsPerKey = 10,
+            blockSize = 4 * 1024,
+            writeBufferSize = 64L * 1024 * 1024,
+            verifyChecksums = false
+        )
+
+        // headers, transactions and indices are written once and read near the chain head
+        @JvmField
+        val CHAIN = DBSettings(
+            blockCacheSize = 32L * 1024 * 1024,
+            bloomBitsPerKey = 10,
+            compactionStyle = CompactionStyle.UNIVERSAL,
+            compression = Compression.SNAPPY
+        )
+
+        @JvmField
+        val PROFILES: Map<String, DBSettings> = mapOf(
+            "default" to DEFAULT,
+            "trie" to TRIE,
+            "chain" to CHAIN
+        )
     }
-}
\ No newline at end of file
+}
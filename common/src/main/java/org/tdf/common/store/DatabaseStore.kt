@@ -3,7 +3,7 @@ package org.tdf.common.store
 /**
  * Interface represents DB source which is normally the final Source in the chain
  */
-interface DatabaseStore : BatchStore<ByteArray, ByteArray>, AutoCloseable {
+interface DatabaseStore : BatchStore<ByteArray, ByteArray>, RangeStore<ByteArray, ByteArray>, AutoCloseable {
     /**
      * Initializes DB (open table, connection, etc)
      *
@@ -25,4 +25,10 @@ interface DatabaseStore : BatchStore<ByteArray, ByteArray>, AutoCloseable {
      * Closes database, destroys its data and finally runs init()
      */
     fun clear()
+
+    /**
+     * Pins a point-in-time view of the database, reads of current thread see the view until the returned handle closed.
+     * Nested snapshots of the same thread share the outermost view.
+     */
+    fun snapshot(): AutoCloseable
 }
\ No newline at end of file
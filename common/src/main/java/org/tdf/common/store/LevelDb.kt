@@ -8,6 +8,8 @@ import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
 import java.util.concurrent.locks.ReadWriteLock
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.withLock
@@ -20,10 +22,38 @@ class LevelDb(
 
     private lateinit var dbSettings: DBSettings
 
+    private lateinit var readOptions: ReadOptions
+
+    @Volatile
     override var alive = false
         private set
     private val resetDbLock: ReadWriteLock = ReentrantReadWriteLock()
 
+    // number of reads in progress, reads are guarded by this counter instead of resetDbLock
+    private val reading = LongAdder()
+
+    // snapshots pinned by all threads, released by close if still pinned
+    private val opened: MutableSet<Pair<DB, ReadOptions>> = ConcurrentHashMap.newKeySet()
+
+    // database and read options with snapshot pinned by current thread
+    private val snapshots = ThreadSnapshot<Pair<DB, ReadOptions>>(
+        {
+            reads {
+                Pair(db, ReadOptions().verifyChecksums(dbSettings.verifyChecksums).snapshot(db.snapshot))
+                    .also { opened.add(it) }
+            }
+        },
+        { s ->
+            reading.increment()
+            try {
+                // the snapshot had been released by close if it is not opened
+                if (alive && opened.remove(s)) s.second.snapshot().close()
+            } finally {
+                reading.decrement()
+            }
+        }
+    )
+
     override fun init(settings: DBSettings) {
         dbSettings = settings
         resetDbLock.writeLock().withLock {
@@ -31,13 +61,16 @@ class LevelDb(
             if (alive) return
             val options = Options()
             options.createIfMissing(true)
-            options.compressionType(CompressionType.NONE)
-            options.blockSize(10 * 1024 * 1024)
-            options.writeBufferSize(10 * 1024 * 1024)
-            options.cacheSize(0)
-            options.paranoidChecks(true)
-            options.verifyChecksums(true)
+            options.compressionType(
+                if (settings.compression == DBSettings.Compression.NONE) CompressionType.NONE else CompressionType.SNAPPY
+            )
+            options.blockSize(settings.blockSize)
+            options.writeBufferSize(settings.writeBufferSize.toInt())
+            options.cacheSize(settings.blockCacheSize)
+            options.paranoidChecks(settings.paranoidChecks)
+            options.verifyChecksums(settings.verifyChecksums)
             options.maxOpenFiles(settings.maxOpenFiles)
+            readOptions = ReadOptions().verifyChecksums(settings.verifyChecksums)
             try {
                 log.debug("Opening database")
                 val dbPath = path
@@ -75,8 +108,12 @@ class LevelDb(
             if (!alive) return
             try {
                 log.debug("Close db: {}", directory)
-                db.close()
+                // wait for reads in progress
                 alive = false
+                while (reading.sum() != 0L) Thread.yield()
+                // snapshots still pinned are released, reads from them fail instead of reading a reopened db
+                opened.toList().forEach { if (opened.remove(it)) it.second.snapshot().close() }
+                db.close()
             } catch (e: IOException) {
                 log.error("Failed to find the db file on the close: {} ", directory)
             }
@@ -137,12 +174,35 @@ class LevelDb(
         return HexBytes.encode(this)
     }
 
+    // run a read without lock, close() waits for the read to complete
+    private inline fun <T> reads(action: () -> T): T {
+        reading.increment()
+        try {
+            if (!alive) throw RuntimeException("database $directory is closed")
+            return action()
+        } finally {
+            reading.decrement()
+        }
+    }
+
+    override fun snapshot(): AutoCloseable {
+        return snapshots.pin()
+    }
+
+    // read options of snapshot pinned by current thread or latest state
+    private fun options(): ReadOptions {
+        val s = snapshots.current ?: return readOptions
+        if (s.first !== db || !opened.contains(s)) throw RuntimeException("snapshot of database $directory is released")
+        return s.second
+    }
+
     override fun get(k: ByteArray): ByteArray? {
-        resetDbLock.readLock().withLock {
+        reads {
+            val options = options()
             if (log.isTraceEnabled)
                 log.trace("~> LevelDbDataSource.get(): " + directory + ", key: " + k.hex())
             return try {
-                val ret = db[k]
+                val ret = db.get(k, options)
                 if (log.isTraceEnabled)
                     log.trace(
                         "<~ LevelDbDataSource.get(): " + directory + ", key: " + k.hex() + ", " + (ret?.size ?: "null")
@@ -150,7 +210,7 @@ class LevelDb(
                 ret ?: ByteUtil.EMPTY_BYTE_ARRAY
             } catch (e: DBException) {
                 log.warn("Exception. Retrying again...", e)
-                val ret = db[k]
+                val ret = db.get(k, options)
                 if (log.isTraceEnabled)
                     log.trace(
                         "<~ LevelDbDataSource.get(): " + directory + ", key: " + k.hex() + ", " + (ret?.size ?: "null")
@@ -192,6 +252,26 @@ class LevelDb(
         reset()
     }
 
+    override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+        reads {
+            val options = options()
+            val r: MutableList<Map.Entry<ByteArray, ByteArray>> = mutableListOf()
+            try {
+                db.iterator(options).use {
+                    if (start == null) it.seekToFirst() else it.seek(start)
+                    while (it.hasNext() && (limit < 0 || r.size < limit)) {
+                        val e = it.next()
+                        if (end != null && RangeStore.COMPARATOR.compare(e.key, end) >= 0) break
+                        r.add(e)
+                    }
+                }
+            } catch (e: IOException) {
+                throw RuntimeException(e)
+            }
+            return r
+        }
+    }
+
     private val path: Path
         get() = Paths.get(directory)
 
@@ -0,0 +1,154 @@
+package org.tdf.common.store
+
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.zip.CRC32
+
+/**
+ * append only log of records over segmented memory mapped files
+ * every segment is a preallocated file of segmentSize bytes, a record is encoded as 4 bytes length, 4 bytes crc32
+ * of payload and payload, zero length marks the end of a segment, position of a record is segment * segmentSize + offset
+ *
+ * appended records are durable only after flush, a record torn by crash fails its checksum,
+ * write position is recovered after the last complete record of the last segment
+ */
+class MappedLog(
+    private val directory: String,
+    private val segmentSize: Int = DEFAULT_SEGMENT_SIZE
+) : Closeable {
+    private val segments: MutableList<MappedByteBuffer> = mutableListOf()
+
+    // write position of the last segment
+    private var tail: Int = 0
+
+    // index of the first segment written since last flush
+    private var dirty: Int = 0
+
+    init {
+        Files.createDirectories(Paths.get(directory))
+        var i = 0
+        while (Files.exists(segmentPath(i))) {
+            segments.add(map(i))
+            i++
+        }
+        if (segments.isEmpty()) {
+            segments.add(map(0))
+        }
+        // recover write position of last segment
+        val last = segments.last()
+        while (tail + HEADER_SIZE <= segmentSize) {
+            val len = last.getInt(tail)
+            if (len <= 0 || tail + HEADER_SIZE + len > segmentSize || checksum(last, tail, len) != last.getInt(tail + 4))
+                break
+            tail += HEADER_SIZE + len
+        }
+        dirty = segments.size - 1
+        log.info("open log at {} segments = {} tail = {}", directory, segments.size, tail)
+    }
+
+    private fun segmentPath(i: Int): Path {
+        return Paths.get(directory, String.format("%06d.log", i))
+    }
+
+    private fun map(i: Int): MappedByteBuffer {
+        RandomAccessFile(segmentPath(i).toFile(), "rw").use {
+            return it.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize.toLong())
+        }
+    }
+
+    /**
+     * append a record, return position of the record
+     */
+    @Synchronized
+    fun append(record: ByteArray): Long {
+        if (record.isEmpty() || record.size + HEADER_SIZE + 4 > segmentSize)
+            throw RuntimeException("invalid record size ${record.size}, segment size is $segmentSize")
+        // keep 4 zero bytes as end mark of segment
+        if (tail + HEADER_SIZE + record.size + 4 > segmentSize) {
+            segments.add(map(segments.size))
+            tail = 0
+        }
+        val seg = segments.last()
+        val buf = seg.duplicate()
+        buf.position(tail + HEADER_SIZE)
+        buf.put(record)
+        // dirty pages may reach disk in any order, a record is complete after flush or if its checksum matches
+        val crc = CRC32()
+        crc.update(record)
+        seg.putInt(tail + 4, crc.value.toInt())
+        seg.putInt(tail, record.size)
+        val pos = (segments.size - 1).toLong() * segmentSize + tail
+        tail += HEADER_SIZE + record.size
+        return pos
+    }
+
+    /**
+     * read only view of record at position, no copy is made, null if the record is missing or torn
+     */
+    fun sliceOrNull(position: Long): ByteBuffer? {
+        val seg = synchronized(this) { segments.getOrNull((position / segmentSize).toInt()) } ?: return null
+        val offset = (position % segmentSize).toInt()
+        if (offset + HEADER_SIZE > segmentSize) return null
+        val len = seg.getInt(offset)
+        if (len <= 0 || offset + HEADER_SIZE + len > segmentSize || checksum(seg, offset, len) != seg.getInt(offset + 4))
+            return null
+        val buf = seg.asReadOnlyBuffer()
+        buf.position(offset + HEADER_SIZE)
+        buf.limit(offset + HEADER_SIZE + len)
+        return buf.slice()
+    }
+
+    fun slice(position: Long): ByteBuffer {
+        return sliceOrNull(position) ?: throw RuntimeException("record not found at position $position")
+    }
+
+    fun readOrNull(position: Long): ByteArray? {
+        val buf = sliceOrNull(position) ?: return null
+        val r = ByteArray(buf.remaining())
+        buf.get(r)
+        return r
+    }
+
+    fun read(position: Long): ByteArray {
+        return readOrNull(position) ?: throw RuntimeException("record not found at position $position")
+    }
+
+    /**
+     * write dirty pages of all segments written since last flush to disk
+     */
+    @Synchronized
+    fun flush() {
+        for (i in dirty until segments.size) segments[i].force()
+        dirty = segments.size - 1
+    }
+
+    @Synchronized
+    override fun close() {
+        segments.forEach { it.force() }
+        segments.clear()
+    }
+
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024
+
+        // length and crc32 of record
+        private const val HEADER_SIZE = 8
+
+        private fun checksum(seg: ByteBuffer, offset: Int, len: Int): Int {
+            val buf = seg.duplicate()
+            buf.position(offset + HEADER_SIZE)
+            buf.limit(offset + HEADER_SIZE + len)
+            val crc = CRC32()
+            crc.update(buf)
+            return crc.value.toInt()
+        }
+        private val log = LoggerFactory.getLogger("db")
+    }
+}
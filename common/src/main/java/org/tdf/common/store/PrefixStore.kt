@@ -1,14 +1,15 @@
 package org.tdf.common.store
 
-import com.github.salpadding.rlpstream.Rlp
 import org.tdf.common.serialize.Codec
 import org.tdf.common.util.HexBytes
-import org.tdf.common.util.decode
 import org.tdf.common.util.hex
 import java.util.*
 
+/**
+ * namespace of keys start with prefix in a range store, keys are enumerated by ordered scan of contract storage
+ */
 class PrefixStore<K, V>(
-    private val contractStorage: Store<HexBytes, HexBytes>,
+    private val contractStorage: RangeStore<HexBytes, HexBytes>,
     private val prefix: HexBytes,
     private val kCodec: Codec<K>,
     private val vCodec: Codec<V>
@@ -28,35 +29,12 @@ class PrefixStore<K, V>(
     override fun set(k: K, v: V) {
         val encoded = kCodec.encoder.apply(k)
         val withPrefix = verifyAndPrefix(encoded)
-        addKey(encoded)
         contractStorage[withPrefix] = vCodec.encoder.apply(v).hex()
     }
 
-    private fun keySet(): TreeSet<HexBytes> {
-        val keys = contractStorage[prefix]
-        return if (keys == null || keys.size == 0) TreeSet() else TreeSet(
-            keys.decode(
-                Array<HexBytes>::class.java
-            ).toList()
-        )
-    }
-
-    private fun addKey(key: ByteArray) {
-        val keySet = keySet()
-        keySet.add(key.hex())
-        contractStorage[prefix] = Rlp.encode(keySet.toTypedArray()).hex()
-    }
-
-    private fun removeKey(key: ByteArray) {
-        val keySet = keySet()
-        keySet.remove(key.hex())
-        contractStorage[prefix] = Rlp.encode(keySet.toTypedArray()).hex()
-    }
-
     override fun remove(k: K) {
         val encoded = kCodec.encoder.apply(k)
         val withPrefix = verifyAndPrefix(encoded)
-        removeKey(encoded)
         contractStorage.remove(withPrefix)
     }
 
@@ -64,13 +42,29 @@ class PrefixStore<K, V>(
         contractStorage.flush()
     }
 
-    override fun iterator(): Iterator<Map.Entry<K, V>> {
-        val map: MutableMap<K, V> = mutableMapOf()
-        for (key in keySet()) {
-            map[kCodec.decoder.apply(key.bytes)] = vCodec.decoder.apply(
-                contractStorage[verifyAndPrefix(key.bytes)]!!.bytes
+    /**
+     * key-value pairs in ascending order of encoded key, start after the encoded key of after if present
+     */
+    fun scan(after: K?, limit: Int): List<Map.Entry<K, V>> {
+        // the least key greater than prefix + encoded
+        val start = after?.let { verifyAndPrefix(kCodec.encoder.apply(it)).bytes + byteArrayOf(0) } ?: prefix.bytes
+        val end = RangeStore.prefixEnd(prefix.bytes)?.hex()
+        val r: MutableList<Map.Entry<K, V>> = mutableListOf()
+        // the legacy key set stored at prefix is skipped
+        for (e in contractStorage.scan(start.hex(), end, if (limit < 0) limit else limit + 1)) {
+            if (e.key.size == prefix.size || e.value.size == 0) continue
+            if (limit in 0..r.size) break
+            r.add(
+                AbstractMap.SimpleImmutableEntry(
+                    kCodec.decoder.apply(e.key.bytes.copyOfRange(prefix.size, e.key.size)),
+                    vCodec.decoder.apply(e.value.bytes)
+                )
             )
         }
-        return map.entries.iterator()
+        return r
+    }
+
+    override fun iterator(): Iterator<Map.Entry<K, V>> {
+        return scan(null, -1).iterator()
     }
-}
\ No newline at end of file
+}
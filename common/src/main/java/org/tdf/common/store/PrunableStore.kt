@@ -0,0 +1,77 @@
+package org.tdf.common.store
+
+import org.tdf.common.trie.NodeCache
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.hex
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * no delete store of trie nodes whose unreachable nodes are removed by a pruner,
+ * keys written in the current and the previous prune cycle are recorded and never removed,
+ * so nodes of new states and of pending states not referenced by any block, e.g. written by transaction pool
+ * or miner before the cycle began, survive at least one prune interval
+ *
+ * @param nodeCache decoded nodes of tries over this store, removed nodes should be invalidated
+ */
+class PrunableStore @JvmOverloads constructor(
+    private val delegate: Store<ByteArray, ByteArray>,
+    private val nodeCache: NodeCache? = null
+) :
+    NoDeleteStore<ByteArray, ByteArray>(delegate, { it == null || it.isEmpty() }) {
+
+    // keys written since current prune cycle began, null before the first cycle
+    @Volatile
+    private var current: MutableSet<HexBytes>? = null
+
+    // keys written in previous prune cycle
+    @Volatile
+    private var previous: MutableSet<HexBytes> = mutableSetOf()
+
+    override fun set(k: ByteArray, v: ByteArray) {
+        if (v.isEmpty()) return
+        // record before write, a key written concurrently with removal is always found by the pruner
+        current?.add(k.hex())
+        delegate[k] = v
+    }
+
+    /**
+     * begin a new prune cycle, keys recorded before previous cycle are forgotten,
+     * return false on the first cycle since keys written before it are unknown and nothing should be removed
+     */
+    @Synchronized
+    fun beginCycle(): Boolean {
+        val c = current
+        previous = c ?: mutableSetOf()
+        current = ConcurrentHashMap.newKeySet()
+        return c != null
+    }
+
+    fun isWritten(k: ByteArray): Boolean {
+        val hex = k.hex()
+        return current?.contains(hex) == true || previous.contains(hex)
+    }
+
+    /**
+     * key-value pairs in ascending order of key start from start
+     */
+    fun scan(start: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+        val range = delegate as? RangeStore<ByteArray, ByteArray>
+            ?: throw UnsupportedOperationException("scan is not supported by $delegate")
+        return range.scan(start, null, limit)
+    }
+
+    /**
+     * remove a node physically
+     */
+    fun delete(k: ByteArray) {
+        delegate.remove(k)
+    }
+
+    /**
+     * drop decoded node of a removed key, called after the removal is flushed,
+     * so the node is not cached again from unflushed store
+     */
+    fun invalidate(k: ByteArray) {
+        nodeCache?.invalidate(k)
+    }
+}
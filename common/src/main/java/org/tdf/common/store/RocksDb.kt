@@ -0,0 +1,350 @@
+package org.tdf.common.store
+
+import org.rocksdb.*
+import org.slf4j.LoggerFactory
+import org.tdf.common.util.ByteUtil
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.AbstractMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReadWriteLock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.function.Function
+import kotlin.concurrent.withLock
+
+/**
+ * rocksdb backed database store, the default column family is used by this store,
+ * named column families are returned by column(name), every column family has its own
+ * block cache, bloom filter and compaction settings provided by columnSettings
+ */
+class RocksDb(
+    private val directory: String,
+    private val columnSettings: Function<String, DBSettings> = Function { DBSettings.DEFAULT }
+) : DatabaseStore {
+    private lateinit var db: RocksDB
+
+    private lateinit var dbSettings: DBSettings
+
+    override var alive = false
+        private set
+    private val resetDbLock: ReadWriteLock = ReentrantReadWriteLock()
+
+    // column family name -> opened handle
+    private val handles: MutableMap<String, ColumnFamilyHandle> = ConcurrentHashMap()
+
+    // column family name -> read options
+    private val readOptions: MutableMap<String, ReadOptions> = ConcurrentHashMap()
+
+    // native options and filters, released after db closed
+    private val resources: MutableList<AbstractNativeReference> = mutableListOf()
+
+    private val writeOptions = WriteOptions()
+
+    // snapshot of db and its read options of every column family
+    private class PinnedSnapshot(val db: RocksDB, val snapshot: Snapshot) {
+        val readOptions: MutableMap<String, ReadOptions> = ConcurrentHashMap()
+    }
+
+    // snapshots pinned by all threads, released by close if still pinned
+    private val opened: MutableSet<PinnedSnapshot> = ConcurrentHashMap.newKeySet()
+
+    private val snapshots = ThreadSnapshot<PinnedSnapshot>(
+        { resetDbLock.readLock().withLock { PinnedSnapshot(db, db.snapshot).also { opened.add(it) } } },
+        { s ->
+            resetDbLock.readLock().withLock {
+                // the snapshot had been released by close if it is not opened
+                if (opened.remove(s)) release(s)
+            }
+        }
+    )
+
+    private fun release(s: PinnedSnapshot) {
+        s.readOptions.values.forEach { it.close() }
+        s.readOptions.clear()
+        db.releaseSnapshot(s.snapshot)
+    }
+
+    override fun init(settings: DBSettings) {
+        dbSettings = settings
+        resetDbLock.writeLock().withLock {
+            log.debug("~> RocksDbDataSource.init(): $directory")
+            if (alive) return
+            try {
+                Files.createDirectories(Paths.get(directory))
+                val dbOptions = DBOptions()
+                    .setCreateIfMissing(true)
+                    .setCreateMissingColumnFamilies(true)
+                    .setMaxOpenFiles(settings.maxOpenFiles)
+                    .setIncreaseParallelism(Math.max(1, settings.maxThreads))
+                    .setParanoidChecks(settings.paranoidChecks)
+                resources.add(dbOptions)
+
+                // all existed column families must be opened
+                val names = Options().use { o ->
+                    RocksDB.listColumnFamilies(o, directory).map { String(it, StandardCharsets.UTF_8) }
+                }.toMutableList()
+                names.remove(DEFAULT_COLUMN)
+                names.add(0, DEFAULT_COLUMN)
+
+                val descriptors = names.map {
+                    ColumnFamilyDescriptor(
+                        it.toByteArray(StandardCharsets.UTF_8),
+                        columnOptions(it, if (it == DEFAULT_COLUMN) settings else columnSettings.apply(it))
+                    )
+                }
+                val opened: MutableList<ColumnFamilyHandle> = mutableListOf()
+                log.debug("Initializing new or existing database: '{}' column families = {}", directory, names)
+                db = RocksDB.open(dbOptions, directory, descriptors, opened)
+                names.forEachIndexed { i, n -> handles[n] = opened[i] }
+                alive = true
+            } catch (e: Exception) {
+                log.error(e.message, e)
+                throw RuntimeException("Can't initialize database", e)
+            }
+            log.debug("<~ RocksDbDataSource.init(): $directory")
+        }
+    }
+
+    private fun columnOptions(name: String, settings: DBSettings): ColumnFamilyOptions {
+        val read = ReadOptions().setVerifyChecksums(settings.verifyChecksums)
+        resources.add(read)
+        readOptions[name] = read
+
+        val table = BlockBasedTableConfig()
+        table.setBlockSize(settings.blockSize.toLong())
+        if (settings.blockCacheSize > 0) {
+            table.setBlockCacheSize(settings.blockCacheSize)
+            table.setCacheIndexAndFilterBlocks(true)
+            table.setPinL0FilterAndIndexBlocksInCache(true)
+        } else {
+            table.setNoBlockCache(true)
+        }
+        if (settings.bloomBitsPerKey > 0) {
+            val filter = BloomFilter(settings.bloomBitsPerKey, false)
+            resources.add(filter)
+            table.setFilter(filter)
+        }
+        val options = ColumnFamilyOptions()
+            .setWriteBufferSize(settings.writeBufferSize)
+            .setTableFormatConfig(table)
+            .setCompressionType(
+                when (settings.compression) {
+                    DBSettings.Compression.NONE -> CompressionType.NO_COMPRESSION
+                    DBSettings.Compression.SNAPPY -> CompressionType.SNAPPY_COMPRESSION
+                    DBSettings.Compression.LZ4 -> CompressionType.LZ4_COMPRESSION
+                    DBSettings.Compression.ZSTD -> CompressionType.ZSTD_COMPRESSION
+                }
+            )
+        when (settings.compactionStyle) {
+            DBSettings.CompactionStyle.LEVEL -> {
+                options.setCompactionStyle(CompactionStyle.LEVEL)
+                options.setLevelCompactionDynamicLevelBytes(true)
+            }
+            DBSettings.CompactionStyle.UNIVERSAL -> options.setCompactionStyle(CompactionStyle.UNIVERSAL)
+        }
+        resources.add(options)
+        return options
+    }
+
+    /**
+     * get or create a column family, the returned store is still valid after clear()
+     */
+    fun column(name: String): ColumnStore {
+        require(name != DEFAULT_COLUMN) { "default column family is used by the database store" }
+        return ColumnStore(name)
+    }
+
+    private fun handle(name: String): ColumnFamilyHandle {
+        handles[name]?.let { return it }
+        synchronized(handles) {
+            handles[name]?.let { return it }
+            log.info("create column family {} at {}", name, directory)
+            val h = db.createColumnFamily(
+                ColumnFamilyDescriptor(
+                    name.toByteArray(StandardCharsets.UTF_8),
+                    columnOptions(name, columnSettings.apply(name))
+                )
+            )
+            handles[name] = h
+            return h
+        }
+    }
+
+    override fun close() {
+        resetDbLock.writeLock().withLock {
+            if (!alive) return
+            log.debug("Close db: {}", directory)
+            // snapshots still pinned are released, reads from them fail instead of reading a reopened db
+            opened.forEach { release(it) }
+            opened.clear()
+            handles.values.forEach { it.close() }
+            handles.clear()
+            readOptions.clear()
+            db.close()
+            resources.forEach { it.close() }
+            resources.clear()
+            alive = false
+        }
+    }
+
+    fun reset() {
+        close()
+        FileUtil.recursiveDelete(directory)
+        init(dbSettings)
+    }
+
+    override fun clear() {
+        reset()
+    }
+
+    override fun flush() {}
+
+    override fun snapshot(): AutoCloseable {
+        return snapshots.pin()
+    }
+
+    // read options of column family with snapshot pinned by current thread
+    private fun readOptionsOf(column: String): ReadOptions? {
+        val s = snapshots.current ?: return readOptions[column]
+        if (s.db !== db || !opened.contains(s)) throw RuntimeException("snapshot of database $directory is released")
+        return s.readOptions.computeIfAbsent(column) {
+            ReadOptions()
+                .setVerifyChecksums(readOptions[column]?.verifyChecksums() ?: true)
+                .setSnapshot(s.snapshot)
+        }
+    }
+
+    private fun columnGet(column: String, k: ByteArray): ByteArray {
+        resetDbLock.readLock().withLock {
+            return try {
+                val h = handle(column)
+                db.get(h, readOptionsOf(column), k) ?: ByteUtil.EMPTY_BYTE_ARRAY
+            } catch (e: RocksDBException) {
+                log.error("Failed to get from db '{}'", directory, e)
+                throw RuntimeException(e)
+            }
+        }
+    }
+
+    private fun columnSet(column: String, k: ByteArray, v: ByteArray) {
+        resetDbLock.readLock().withLock {
+            try {
+                if (v.isEmpty()) {
+                    db.delete(handle(column), writeOptions, k)
+                } else {
+                    db.put(handle(column), writeOptions, k, v)
+                }
+            } catch (e: RocksDBException) {
+                log.error("Failed to put into db '{}'", directory, e)
+                throw RuntimeException(e)
+            }
+        }
+    }
+
+    private fun columnPutAll(column: String, rows: Collection<Map.Entry<ByteArray, ByteArray>>) {
+        putAll(mapOf(column to rows))
+    }
+
+    /**
+     * write rows of many column families in one atomic write batch, empty value means deletion
+     */
+    fun putAll(columns: Map<String, Collection<Map.Entry<ByteArray, ByteArray>>>) {
+        resetDbLock.readLock().withLock {
+            try {
+                WriteBatch().use { batch ->
+                    for ((column, rows) in columns) {
+                        val h = handle(column)
+                        for ((key, value) in rows) {
+                            if (value.isEmpty()) {
+                                batch.remove(h, key)
+                            } else {
+                                batch.put(h, key, value)
+                            }
+                        }
+                    }
+                    db.write(writeOptions, batch)
+                }
+            } catch (e: RocksDBException) {
+                log.error("Failed to update batch of db '{}'", directory, e)
+                throw RuntimeException(e)
+            }
+        }
+    }
+
+    private fun columnScan(
+        column: String,
+        start: ByteArray?,
+        end: ByteArray?,
+        limit: Int
+    ): List<Map.Entry<ByteArray, ByteArray>> {
+        resetDbLock.readLock().withLock {
+            val r: MutableList<Map.Entry<ByteArray, ByteArray>> = mutableListOf()
+            val h = handle(column)
+            db.newIterator(h, readOptionsOf(column)).use {
+                if (start == null) it.seekToFirst() else it.seek(start)
+                while (it.isValid && (limit < 0 || r.size < limit)) {
+                    val k = it.key()
+                    if (end != null && RangeStore.COMPARATOR.compare(k, end) >= 0) break
+                    r.add(AbstractMap.SimpleImmutableEntry(k, it.value()))
+                    it.next()
+                }
+            }
+            return r
+        }
+    }
+
+    override fun get(k: ByteArray): ByteArray? {
+        return columnGet(DEFAULT_COLUMN, k)
+    }
+
+    override fun set(k: ByteArray, v: ByteArray) {
+        columnSet(DEFAULT_COLUMN, k, v)
+    }
+
+    override fun remove(k: ByteArray) {
+        columnSet(DEFAULT_COLUMN, k, ByteUtil.EMPTY_BYTE_ARRAY)
+    }
+
+    override fun putAll(rows: Collection<Map.Entry<ByteArray, ByteArray>>) {
+        columnPutAll(DEFAULT_COLUMN, rows)
+    }
+
+    override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+        return columnScan(DEFAULT_COLUMN, start, end, limit)
+    }
+
+    inner class ColumnStore internal constructor(private val name: String) : BatchStore<ByteArray, ByteArray>,
+        RangeStore<ByteArray, ByteArray> {
+        override fun get(k: ByteArray): ByteArray? {
+            return columnGet(name, k)
+        }
+
+        override fun set(k: ByteArray, v: ByteArray) {
+            columnSet(name, k, v)
+        }
+
+        override fun remove(k: ByteArray) {
+            columnSet(name, k, ByteUtil.EMPTY_BYTE_ARRAY)
+        }
+
+        override fun putAll(rows: Collection<Map.Entry<ByteArray, ByteArray>>) {
+            columnPutAll(name, rows)
+        }
+
+        override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+            return columnScan(name, start, end, limit)
+        }
+
+        override fun flush() {}
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger("rocksdb")
+        private val DEFAULT_COLUMN = String(RocksDB.DEFAULT_COLUMN_FAMILY, StandardCharsets.UTF_8)
+
+        init {
+            RocksDB.loadLibrary()
+        }
+    }
+}
@@ -1,18 +1,20 @@
 package org.tdf.common.store
 
 import org.tdf.common.serialize.Codec
+import java.util.*
 
 /**
  * delegate `Store<ByteArray, ByteArray>` as `Store<K, V>`
+ * scan is supported when store is a range store, the key codec should preserve order
  *
  * @param <K> type of key
  * @param <V> type of value
 </V></K> */
-class StoreWrapper<K, V>(
+open class StoreWrapper<K, V>(
     val store: Store<ByteArray, ByteArray>,
-    private val keyCodec: Codec<K>,
-    private val valueCodec: Codec<V>
-) : Store<K, V> {
+    protected val keyCodec: Codec<K>,
+    protected val valueCodec: Codec<V>
+) : RangeStore<K, V> {
     override fun get(k: K): V? {
         val v = store[keyCodec.encoder.apply(k)]
         return if (v == null || v.isEmpty()) null else valueCodec.decoder.apply(v)
@@ -27,4 +29,11 @@ class StoreWrapper<K, V>(
     }
 
     override fun flush() {}
+
+    override fun scan(start: K?, end: K?, limit: Int): List<Map.Entry<K, V>> {
+        val range = store as? RangeStore<ByteArray, ByteArray>
+            ?: throw UnsupportedOperationException("scan is not supported by $store")
+        return range.scan(start?.let { keyCodec.encoder.apply(it) }, end?.let { keyCodec.encoder.apply(it) }, limit)
+            .map { AbstractMap.SimpleImmutableEntry(keyCodec.decoder.apply(it.key), valueCodec.decoder.apply(it.value)) }
+    }
 }
\ No newline at end of file
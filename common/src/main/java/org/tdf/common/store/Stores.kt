@@ -1,6 +1,8 @@
 package org.tdf.common.store
 
 import org.tdf.common.util.ByteArrayMap
+import org.tdf.common.util.FastByteComparisons
+import java.util.*
 import java.util.function.Predicate
 
 /**
@@ -51,8 +53,100 @@ class NoDoubleDeleteStore<K, V>(private val delegate: Store<K, V>, private val i
 
 interface IterableStore<K, V> : Store<K, V>, Iterable<Map.Entry<K, V>>
 
+/**
+ * store which supports ordered scan of keys, byte array keys are ordered lexicographically as unsigned bytes
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+interface RangeStore<K, V> : Store<K, V> {
+    /**
+     * get key-value pairs in ascending order of key where start <= key < end
+     *
+     * @param start inclusive lower bound, null means no lower bound
+     * @param end exclusive upper bound, null means no upper bound
+     * @param limit maximum size of result, negative means no limit
+     */
+    fun scan(start: K?, end: K?, limit: Int = -1): List<Map.Entry<K, V>>
+
+    companion object {
+        @JvmField
+        val COMPARATOR: Comparator<ByteArray> = Comparator { a, b ->
+            FastByteComparisons.compareTo(a, 0, a.size, b, 0, b.size)
+        }
+
+        /**
+         * the least key greater than all keys starts with prefix, null if no such key
+         */
+        @JvmStatic
+        fun prefixEnd(prefix: ByteArray): ByteArray? {
+            for (i in prefix.indices.reversed()) {
+                if (prefix[i] != 0xff.toByte()) {
+                    val r = prefix.copyOf(i + 1)
+                    r[i]++
+                    return r
+                }
+            }
+            return null
+        }
+
+        /**
+         * key-value pairs of keys start with prefix
+         */
+        @JvmStatic
+        fun <V> scanPrefix(
+            store: RangeStore<ByteArray, V>,
+            prefix: ByteArray,
+            limit: Int = -1
+        ): List<Map.Entry<ByteArray, V>> {
+            return store.scan(prefix, prefixEnd(prefix), limit)
+        }
+
+        /**
+         * scan a sorted map, used by in memory stores
+         */
+        fun <V> scan(
+            map: SortedMap<ByteArray, V>,
+            start: ByteArray?,
+            end: ByteArray?,
+            limit: Int
+        ): List<Map.Entry<ByteArray, V>> {
+            val sub = when {
+                start != null && end != null -> {
+                    if (COMPARATOR.compare(start, end) >= 0) return emptyList()
+                    map.subMap(start, end)
+                }
+                start != null -> map.tailMap(start)
+                end != null -> map.headMap(end)
+                else -> map
+            }
+            val r: MutableList<Map.Entry<ByteArray, V>> = mutableListOf()
+            for (e in sub.entries) {
+                if (limit in 0..r.size) break
+                r.add(AbstractMap.SimpleImmutableEntry(e.key, e.value))
+            }
+            return r
+        }
+    }
+}
+
+
+/**
+ * in memory database store, snapshot is implemented by copy on write, a map pinned by a snapshot is never modified,
+ * the first write after a snapshot copies the map
+ */
+class MemoryDatabaseStore : DatabaseStore, IterableStore<ByteArray, ByteArray> {
+    @Volatile
+    private var cache: TreeMap<ByteArray, ByteArray> = TreeMap(RangeStore.COMPARATOR)
+
+    // true if current map is pinned by snapshot
+    private var shared = false
+
+    private val snapshots = ThreadSnapshot<SortedMap<ByteArray, ByteArray>>(
+        { synchronized(this) { shared = true; cache } },
+        { }
+    )
 
-class MemoryDatabaseStore : ByteArrayMapStore<ByteArray>(), DatabaseStore {
     override fun init(settings: DBSettings) {}
     override val alive: Boolean
         get() {
@@ -60,8 +154,56 @@ class MemoryDatabaseStore : ByteArrayMapStore<ByteArray>(), DatabaseStore {
         }
 
     override fun close() {}
+
+    override fun snapshot(): AutoCloseable {
+        return snapshots.pin()
+    }
+
+    // map to modify, copy current map if it is pinned
+    private fun writable(): TreeMap<ByteArray, ByteArray> {
+        if (shared) {
+            cache = TreeMap(cache)
+            shared = false
+        }
+        return cache
+    }
+
+    override fun get(k: ByteArray): ByteArray? {
+        snapshots.current?.let { return it[k] }
+        synchronized(this) { return cache[k] }
+    }
+
+    // empty value means deletion, keep the same semantic as leveldb
+    @Synchronized
+    override fun set(k: ByteArray, v: ByteArray) {
+        if (v.isEmpty()) writable().remove(k) else writable()[k] = v
+    }
+
+    @Synchronized
+    override fun remove(k: ByteArray) {
+        writable().remove(k)
+    }
+
+    @Synchronized
+    override fun putAll(rows: Collection<Map.Entry<ByteArray, ByteArray>>) {
+        rows.forEach { set(it.key, it.value) }
+    }
+
+    @Synchronized
     override fun clear() {
-        cache.clear()
+        cache = TreeMap(RangeStore.COMPARATOR)
+        shared = false
+    }
+
+    override fun flush() {}
+
+    override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+        snapshots.current?.let { return RangeStore.scan(it, start, end, limit) }
+        synchronized(this) { return RangeStore.scan(cache, start, end, limit) }
+    }
+
+    override fun iterator(): Iterator<Map.Entry<ByteArray, ByteArray>> {
+        return scan(null, null).iterator()
     }
 }
 
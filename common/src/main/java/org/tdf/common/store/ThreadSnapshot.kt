@@ -0,0 +1,42 @@
+package org.tdf.common.store
+
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+/**
+ * point-in-time views pinned by threads, nested pins of the same thread share the outermost view
+ *
+ * @param open create a view of current state
+ * @param release release a view when the outermost pin closed
+ */
+class ThreadSnapshot<S>(
+    private val open: Supplier<S>,
+    private val release: Consumer<S>
+) {
+    private class Pinned<S>(val snapshot: S) {
+        @Volatile
+        var depth = 0
+    }
+
+    private val pinned = ThreadLocal<Pinned<S>>()
+
+    // view pinned by current thread, null if not pinned
+    val current: S?
+        get() = pinned.get()?.takeIf { it.depth > 0 }?.snapshot
+
+    fun pin(): AutoCloseable {
+        val p = pinned.get()?.takeIf { it.depth > 0 } ?: Pinned(open.get()).also { pinned.set(it) }
+        p.depth++
+        var closed = false
+        return AutoCloseable {
+            if (closed) return@AutoCloseable
+            closed = true
+            p.depth--
+            if (p.depth == 0) {
+                // the handle may be closed by another thread
+                if (pinned.get() === p) pinned.remove()
+                release.accept(p.snapshot)
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.tdf.common.store
+
+import org.tdf.common.util.ByteArrayMap
+import org.tdf.common.util.ByteUtil
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.function.Consumer
+import java.util.function.Supplier
+import kotlin.concurrent.withLock
+
+/**
+ * unit of work over named stores of one database
+ * writes made by a thread between begin() and commit() are buffered and visible to this thread only,
+ * the buffered writes are flushed by flusher in one atomic batch, empty value in the batch means deletion
+ * every commit increases version of committed state, listeners of a store are notified of committed keys
+ *
+ * @param flusher writes store name -> rows to the database atomically
+ */
+class UnitOfWork(
+    private val flusher: Consumer<Map<String, Collection<Map.Entry<ByteArray, ByteArray>>>>
+) {
+    private class Pending {
+        var depth = 0
+        val stores: MutableMap<String, MutableMap<ByteArray, ByteArray>> = mutableMapOf()
+    }
+
+    private val pending = ThreadLocal<Pending>()
+
+    // commits hold write lock, version and state read by readers are consistent under read lock
+    private val commitLock = ReentrantReadWriteLock()
+
+    // version of committed state
+    @Volatile
+    var version = 0L
+        private set
+
+    // version of state seen by snapshot pinned by current thread
+    private val versions = ThreadSnapshot<Long>({ version }, {})
+
+    // store name -> listeners of committed keys
+    private val listeners: MutableMap<String, MutableList<Consumer<ByteArray>>> = ConcurrentHashMap()
+
+    val active: Boolean
+        get() = pending.get() != null
+
+    // current thread reads a pinned snapshot, which may be older than committed state
+    val pinned: Boolean
+        get() = versions.current != null
+
+    /**
+     * listen keys of store committed by this unit of work, store must be returned by wrap()
+     */
+    fun listen(store: Store<ByteArray, ByteArray>, listener: Consumer<ByteArray>) {
+        val s = store as? BufferedStore ?: throw RuntimeException("$store is not wrapped by unit of work")
+        listeners.computeIfAbsent(s.name) { CopyOnWriteArrayList() }.add(listener)
+    }
+
+    /**
+     * pin a database snapshot opened by open together with version of committed state it sees
+     */
+    fun snapshot(open: Supplier<AutoCloseable>): AutoCloseable {
+        commitLock.readLock().withLock {
+            val s = open.get()
+            val v = versions.pin()
+            return AutoCloseable {
+                v.close()
+                s.close()
+            }
+        }
+    }
+
+    /**
+     * version of committed state read by current thread from key of store,
+     * null if the key is buffered by current thread
+     */
+    fun readVersion(store: Store<ByteArray, ByteArray>, key: ByteArray): Long? {
+        val p = pending.get() ?: return versions.current ?: version
+        val name = (store as BufferedStore).name
+        return if (p.stores[name]?.containsKey(key) == true) null else version
+    }
+
+    /**
+     * run action if no commit happened since version, skipped when a commit is in progress
+     */
+    fun ifCurrent(version: Long, action: Runnable) {
+        val lock = commitLock.readLock()
+        if (!lock.tryLock()) return
+        try {
+            if (version == this.version) action.run()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * begin a unit of work on current thread, nested begin joins the outer unit
+     */
+    fun begin() {
+        val p = pending.get() ?: Pending().also { pending.set(it) }
+        p.depth++
+    }
+
+    /**
+     * flush buffered writes of current thread if the outermost unit committed
+     */
+    fun commit() {
+        val p = pending.get() ?: throw RuntimeException("unit of work not began")
+        p.depth--
+        if (p.depth > 0) return
+        pending.remove()
+        flush(p)
+    }
+
+    /**
+     * flush buffered writes of current thread and keep the unit of work open
+     */
+    fun flush() {
+        pending.get()?.let { flush(it) }
+    }
+
+    /**
+     * discard buffered writes of current thread and keep the unit of work open
+     */
+    fun rollback() {
+        pending.get()?.stores?.clear()
+    }
+
+    private fun flush(p: Pending) {
+        if (p.stores.isEmpty()) return
+        commitLock.writeLock().withLock {
+            flusher.accept(p.stores.mapValues { it.value.entries })
+            version++
+            p.stores.forEach { (name, rows) -> listeners[name]?.forEach { l -> rows.keys.forEach { l.accept(it) } } }
+        }
+        p.stores.clear()
+    }
+
+    // write without unit of work is committed immediately
+    private fun writeThrough(name: String, key: ByteArray, write: Runnable) {
+        val ls = listeners[name]
+        if (ls == null) {
+            write.run()
+            return
+        }
+        commitLock.writeLock().withLock {
+            write.run()
+            version++
+            ls.forEach { it.accept(key) }
+        }
+    }
+
+    /**
+     * wrap a store of database as name, writes to the returned store are buffered when unit of work began
+     */
+    fun wrap(name: String, store: Store<ByteArray, ByteArray>): RangeStore<ByteArray, ByteArray> {
+        return BufferedStore(name, store)
+    }
+
+    private inner class BufferedStore(
+        val name: String,
+        private val delegate: Store<ByteArray, ByteArray>
+    ) : RangeStore<ByteArray, ByteArray> {
+        override fun get(k: ByteArray): ByteArray? {
+            val buffered = pending.get()?.stores?.get(name)?.get(k)
+            return buffered ?: delegate[k]
+        }
+
+        override fun set(k: ByteArray, v: ByteArray) {
+            val p = pending.get()
+            if (p == null) {
+                writeThrough(name, k) { delegate[k] = v }
+                return
+            }
+            p.stores.getOrPut(name) { ByteArrayMap() }[k] = v
+        }
+
+        override fun remove(k: ByteArray) {
+            if (pending.get() == null) {
+                writeThrough(name, k) { delegate.remove(k) }
+                return
+            }
+            set(k, ByteUtil.EMPTY_BYTE_ARRAY)
+        }
+
+        override fun flush() {
+            delegate.flush()
+        }
+
+        // merge buffered writes into result of delegate
+        override fun scan(start: ByteArray?, end: ByteArray?, limit: Int): List<Map.Entry<ByteArray, ByteArray>> {
+            val range = delegate as? RangeStore<ByteArray, ByteArray>
+                ?: throw UnsupportedOperationException("scan is not supported by $delegate")
+            val buffered = pending.get()?.stores?.get(name)?.entries?.filter {
+                (start == null || RangeStore.COMPARATOR.compare(it.key, start) >= 0)
+                    && (end == null || RangeStore.COMPARATOR.compare(it.key, end) < 0)
+            } ?: return range.scan(start, end, limit)
+
+            // buffered deletions remove at most buffered.size rows from result of delegate
+            val merged = TreeMap<ByteArray, ByteArray>(RangeStore.COMPARATOR)
+            range.scan(start, end, if (limit < 0) limit else limit + buffered.size).forEach { merged[it.key] = it.value }
+            buffered.forEach { if (it.value.isEmpty()) merged.remove(it.key) else merged[it.key] = it.value }
+            return RangeStore.scan(merged, null, null, limit)
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.tdf.common.trie
 
 import org.tdf.common.serialize.Codec
 import org.tdf.common.store.Store
+import org.tdf.common.util.HexBytes
+import java.util.AbstractMap.SimpleImmutableEntry
 import java.util.function.BiFunction
 import java.util.function.Function
 
@@ -14,6 +16,15 @@ abstract class AbstractTrie<K, V> : Trie<K, V> {
 
     abstract fun putBytes(key: ByteArray, value: ByteArray)
     abstract fun removeBytes(key: ByteArray)
+
+    // entries are sorted by key
+    open fun putAllBytes(entries: Sequence<Pair<ByteArray, ByteArray>>) {
+        entries.forEach { putBytes(it.first, it.second) }
+    }
+
+    override fun putAll(sortedEntries: Iterable<Map.Entry<K, V>>) {
+        putAllBytes(sortedEntries.asSequence().map { kCodec.encoder.apply(it.key) to vCodec.encoder.apply(it.value) })
+    }
     override fun set(k: K, v: V) {
         putBytes(kCodec.encoder.apply(k), vCodec.encoder.apply(v))
     }
@@ -44,5 +55,31 @@ abstract class AbstractTrie<K, V> : Trie<K, V> {
         }
     }
 
+    /**
+     * cursor over encoded key-value pairs where start <= key < end
+     */
+    abstract fun iterator(start: ByteArray?, end: ByteArray?): Iterator<Map.Entry<ByteArray, ByteArray>>
+
+    override fun scan(start: K?, end: K?, limit: Int): List<Map.Entry<K, V>> {
+        val it = iterator(start?.let { kCodec.encoder.apply(it) }, end?.let { kCodec.encoder.apply(it) })
+        val r: MutableList<Map.Entry<K, V>> = mutableListOf()
+        while (it.hasNext() && (limit < 0 || r.size < limit)) {
+            val e = it.next()
+            r.add(SimpleImmutableEntry(kCodec.decoder.apply(e.key), vCodec.decoder.apply(e.value)))
+        }
+        return r
+    }
+
+    /**
+     * cursor over encoded differences between this trie and the trie at other root
+     */
+    abstract fun diffIterator(otherRoot: HexBytes): Iterator<TrieDiff<ByteArray>>
+
+    override fun diff(otherRoot: HexBytes): Sequence<TrieDiff<V>> {
+        return diffIterator(otherRoot).asSequence().map {
+            TrieDiff(it.key, it.before?.let(vCodec.decoder::apply), it.after?.let(vCodec.decoder::apply))
+        }
+    }
+
     abstract fun traverseInternal(traverser: BiFunction<ByteArray, ByteArray, Boolean>)
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package org.tdf.common.trie;
+
+import org.tdf.common.util.FastByteComparisons;
+import org.tdf.common.util.HexBytes;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * walks two tries at once in ascending order of key and yields keys whose values differ,
+ * subtrees with the same hash are skipped without loading, so the cost is proportional to the difference
+ */
+class DiffIterator implements Iterator<TrieDiff<byte[]>> {
+    // a node or the part of a leaf or extension below its first hexes
+    private static class Cursor {
+        final Node node;
+        // remaining key of leaf or extension, empty for branch, null until the node is loaded
+        private TrieKey rest;
+        // rest is the whole key of node
+        final boolean whole;
+
+        Cursor(Node node, TrieKey rest, boolean whole) {
+            this.node = node;
+            this.rest = rest;
+            this.whole = whole;
+        }
+
+        // node is not loaded until its type or key is needed
+        static Cursor of(Node node) {
+            return node == null ? null : new Cursor(node, null, true);
+        }
+
+        TrieKey rest() {
+            if (rest == null) rest = node.getType() == Node.Type.BRANCH ? TrieKey.EMPTY : node.getKey();
+            return rest;
+        }
+    }
+
+    private static class Frame {
+        final TrieKey path;
+        final Cursor a;
+        final Cursor b;
+
+        Frame(TrieKey path, Cursor a, Cursor b) {
+            this.path = path;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private final Deque<TrieDiff<byte[]>> ready = new ArrayDeque<>();
+
+    DiffIterator(Node a, Node b) {
+        if (a != null || b != null) stack.push(new Frame(TrieKey.EMPTY, Cursor.of(a), Cursor.of(b)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (ready.isEmpty() && !stack.isEmpty()) step(stack.pop());
+        return !ready.isEmpty();
+    }
+
+    @Override
+    public TrieDiff<byte[]> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return ready.poll();
+    }
+
+    private void step(Frame f) {
+        if (same(f.a, f.b)) return;
+        Cursor a = descend(f.a);
+        Cursor b = descend(f.b);
+        if (same(a, b)) return;
+
+        // leaves are compared by keys instead of hex by hex
+        if (isLeaf(a) && (b == null || isLeaf(b)) || a == null && isLeaf(b)) {
+            leaves(f.path, a, b);
+            return;
+        }
+
+        emit(f.path, valueAt(a), valueAt(b));
+        for (int i = Node.BRANCH_SIZE - 2; i >= 0; i--) {
+            Cursor ca = childAt(a, i);
+            Cursor cb = childAt(b, i);
+            if (ca != null || cb != null) stack.push(new Frame(f.path.concat(TrieKey.single(i)), ca, cb));
+        }
+    }
+
+    // an extension is replaced by its child when its key is consumed
+    private static Cursor descend(Cursor c) {
+        if (c == null || c.node.getType() != Node.Type.EXTENSION || !c.rest().isEmpty()) return c;
+        return Cursor.of(c.node.getExtension());
+    }
+
+    private static boolean isLeaf(Cursor c) {
+        return c != null && c.node.getType() == Node.Type.LEAF;
+    }
+
+    private void leaves(TrieKey path, Cursor a, Cursor b) {
+        int c = a == null ? 1 : b == null ? -1 : compare(a.rest(), b.rest());
+        if (c == 0) {
+            emit(path.concat(a.rest()), a.node.getValue(), b.node.getValue());
+            return;
+        }
+        Cursor first = c < 0 ? a : b;
+        Cursor second = c < 0 ? b : a;
+        emitLeaf(path, first, first == a);
+        if (second != null) emitLeaf(path, second, second == a);
+    }
+
+    // lexicographic order of hexes, a key is less than keys it is prefix of
+    private static int compare(TrieKey x, TrieKey y) {
+        int n = x.commonPrefixSize(y);
+        if (n == x.size() || n == y.size()) return Integer.compare(x.size(), y.size());
+        return Integer.compare(x.get(n), y.get(n));
+    }
+
+    private void emitLeaf(TrieKey path, Cursor c, boolean before) {
+        byte[] v = c.node.getValue();
+        emit(path.concat(c.rest()), before ? v : null, before ? null : v);
+    }
+
+    private void emit(TrieKey key, byte[] before, byte[] after) {
+        if (before != null && before.length == 0) before = null;
+        if (after != null && after.length == 0) after = null;
+        if (before == null && after == null) return;
+        if (before != null && after != null && FastByteComparisons.equal(before, after)) return;
+        ready.add(new TrieDiff<>(HexBytes.fromBytes(key.toNormal()), before, after));
+    }
+
+    private static byte[] valueAt(Cursor c) {
+        if (c == null) return null;
+        switch (c.node.getType()) {
+            case BRANCH:
+                return c.node.getValue();
+            case LEAF:
+                return c.rest().isEmpty() ? c.node.getValue() : null;
+            default:
+                return null;
+        }
+    }
+
+    private static Cursor childAt(Cursor c, int i) {
+        if (c == null) return null;
+        if (c.node.getType() == Node.Type.BRANCH) return Cursor.of(c.node.getChild(i));
+        if (c.rest().isEmpty() || c.rest().get(0) != i) return null;
+        return new Cursor(c.node, c.rest().shift(), false);
+    }
+
+    // committed nodes are identified by hash, embedded nodes by encoding
+    private static boolean same(Cursor x, Cursor y) {
+        if (x == null || y == null || !x.whole || !y.whole) return false;
+        Node a = x.node;
+        Node b = y.node;
+        if (a == b) return true;
+        if (a.isDirty() || b.isDirty()) return false;
+        if (a.getHash() != null || b.getHash() != null)
+            return a.getHash() != null && b.getHash() != null && FastByteComparisons.equal(a.getHash(), b.getHash());
+        return a.rlp != null && b.rlp != null && FastByteComparisons.equal(a.rlp, b.rlp);
+    }
+}
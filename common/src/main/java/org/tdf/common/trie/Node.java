@@ -9,8 +9,13 @@ import org.tdf.common.util.FastByteComparisons;
 import org.tdf.common.util.HashUtil;
 import org.tdf.common.util.HexBytes;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 import static org.tdf.common.trie.TrieKey.EMPTY;
 
@@ -29,6 +34,8 @@ public class Node {
     private byte[] hash;
     // for lazy load, read only
     private final Store<byte[], byte[]> readOnlyCache;
+    // decoded nodes shared by tries over the same store, nullable
+    private final NodeCache nodeCache;
     // if node is branch node, the length of children is 17
     // the first 16 element is children, and the 17th element is value
     // if node is extension node or leaf node, the length of children is 2
@@ -36,15 +43,27 @@ public class Node {
     private Object[] children;
 
     private Node(byte[] rlp, boolean dirty, byte[] hash, Store<byte[], byte[]> readOnlyCache, Object[] children) {
+        this(rlp, dirty, hash, readOnlyCache, null, children);
+    }
+
+    private Node(
+        byte[] rlp, boolean dirty, byte[] hash,
+        Store<byte[], byte[]> readOnlyCache, NodeCache nodeCache, Object[] children
+    ) {
         this.rlp = rlp;
         this.dirty = dirty;
         this.hash = hash;
         this.readOnlyCache = readOnlyCache;
+        this.nodeCache = nodeCache;
         this.children = children;
     }
 
     static Node fromRootHash(byte[] hash, Store<byte[], byte[]> readOnlyCache) {
-        return new Node(null, false, hash, readOnlyCache, null);
+        return fromRootHash(hash, readOnlyCache, null);
+    }
+
+    static Node fromRootHash(byte[] hash, Store<byte[], byte[]> readOnlyCache, NodeCache nodeCache) {
+        return new Node(null, false, hash, readOnlyCache, nodeCache, null);
     }
 
     // create root node from database and reference
@@ -85,12 +104,21 @@ public class Node {
         dirty = true;
     }
 
+    byte[] commit(
+        Store<byte[], byte[]> cache,
+        boolean forceHash
+    ) {
+        return commit(cache, forceHash, 0);
+    }
+
     // encode and commit root node to store
     // return rlp encoded
     // if commit is call at root node, force hash is set to true
+    // children of branch are committed in parallel if count of dirty nodes reaches parallelThreshold (0 means never)
     byte[] commit(
         Store<byte[], byte[]> cache,
-        boolean forceHash
+        boolean forceHash,
+        int parallelThreshold
     ) {
         // if child node is dirty, the parent node must be dirty also
         if (!dirty) return hash != null ? Rlp.encodeBytes(hash) : rlp;
@@ -106,11 +134,15 @@ public class Node {
             case EXTENSION: {
                 this.rlp = Rlp.encodeElements(
                     Rlp.encodeBytes(getKey().toPacked(false)),
-                    getExtension().commit(cache, false)
+                    getExtension().commit(cache, false, parallelThreshold)
                 );
                 break;
             }
             default: {
+                if (parallelThreshold > 0 && countDirty(parallelThreshold) >= parallelThreshold) {
+                    this.rlp = Rlp.encodeElements(commitChildren(cache, parallelThreshold));
+                    break;
+                }
                 List<byte[]> elements = new ArrayList<>(BRANCH_SIZE);
                 for (int i = 0; i < BRANCH_SIZE - 1; i++) {
                     Node child = (Node) children[i];
@@ -118,7 +150,7 @@ public class Node {
                         elements.add(Constants.NULL);
                         continue;
                     }
-                    elements.add(child.commit(cache, false));
+                    elements.add(child.commit(cache, false, parallelThreshold));
                 }
                 elements.add(Rlp.encodeBytes(getValue()));
                 this.rlp = Rlp.encodeElements(elements);
@@ -138,6 +170,85 @@ public class Node {
         return rlp;
     }
 
+    // count dirty nodes of this subtree, stop counting when limit reached
+    private int countDirty(int limit) {
+        if (!dirty) return 0;
+        int n = 1;
+        for (Object o : children) {
+            if (n >= limit) break;
+            if (o instanceof Node) n += ((Node) o).countDirty(limit - n);
+        }
+        return n;
+    }
+
+    // commit dirty children in parallel, every child records its writes in a log,
+    // logs are replayed in order of children, so the store sees the same writes as sequential commit
+    private List<byte[]> commitChildren(Store<byte[], byte[]> cache, int parallelThreshold) {
+        List<ForkJoinTask<WriteLog>> tasks = new ArrayList<>(BRANCH_SIZE - 1);
+        for (int i = 0; i < BRANCH_SIZE - 1; i++) {
+            Node child = (Node) children[i];
+            if (child == null || !child.dirty) {
+                tasks.add(null);
+                continue;
+            }
+            tasks.add(ForkJoinTask.adapt(() -> {
+                WriteLog log = new WriteLog();
+                log.encoded = child.commit(log, false, parallelThreshold);
+                return log;
+            }).fork());
+        }
+        List<byte[]> elements = new ArrayList<>(BRANCH_SIZE);
+        for (int i = 0; i < BRANCH_SIZE - 1; i++) {
+            Node child = (Node) children[i];
+            ForkJoinTask<WriteLog> task = tasks.get(i);
+            if (task == null) {
+                elements.add(child == null ? Constants.NULL : child.commit(cache, false));
+                continue;
+            }
+            WriteLog log = task.join();
+            log.replay(cache);
+            elements.add(log.encoded);
+        }
+        elements.add(Rlp.encodeBytes(getValue()));
+        return elements;
+    }
+
+    // writes of a subtree committed in parallel
+    private static class WriteLog implements Store<byte[], byte[]> {
+        // rows to remove have null values
+        private final List<Object[]> rows = new ArrayList<>();
+        private byte[] encoded;
+
+        @Override
+        public byte[] get(byte[] k) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void set(byte[] k, byte[] v) {
+            rows.add(new Object[]{k, v});
+        }
+
+        @Override
+        public void remove(byte[] k) {
+            rows.add(new Object[]{k, null});
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        void replay(Store<byte[], byte[]> store) {
+            for (Object[] row : rows) {
+                if (row[1] == null) {
+                    store.remove((byte[]) row[0]);
+                } else {
+                    store.set((byte[]) row[0], (byte[]) row[1]);
+                }
+            }
+        }
+    }
+
     // get actual rlp encoding in the cache
     private void resolve() {
         if (rlp != null || hash == null) return;
@@ -151,34 +262,55 @@ public class Node {
     }
 
 
-    // parse encoded from cache
+    // parse encoded from cache, nodes referenced by hash are decoded once and shared by tries via node cache
     private void parse() {
         // has parsed
         if (children != null) return;
+        if (rlp == null && hash != null && nodeCache != null) {
+            NodeCache.Decoded cached = nodeCache.get(hash);
+            if (cached != null) {
+                rlp = cached.encoded;
+                children = copyChildren(cached.children, readOnlyCache, nodeCache);
+                return;
+            }
+        }
         resolve();
-        long streamId = StreamId.decodeElement(this.rlp, 0, this.rlp.length, true);
-        RlpList rlp = StreamId.asList(this.rlp, streamId, BRANCH_SIZE);
+        Object[] decoded = decode(this.rlp);
+        if (hash != null && nodeCache != null) nodeCache.put(hash, new NodeCache.Decoded(this.rlp, decoded));
+        children = copyChildren(decoded, readOnlyCache, nodeCache);
+    }
+
+    // decode children, child nodes are unparsed and without store
+    private static Object[] decode(byte[] encoded) {
+        long streamId = StreamId.decodeElement(encoded, 0, encoded.length, true);
+        RlpList rlp = StreamId.asList(encoded, streamId, BRANCH_SIZE);
         if (rlp.size() == 2) {
-            children = new Object[2];
+            Object[] children = new Object[2];
             byte[] packed = rlp.bytesAt(0);
-            TrieKey key = TrieKey.fromPacked(packed);
-            children[0] = key;
+            children[0] = TrieKey.fromPacked(packed);
             boolean terminal = TrieKey.isTerminal(packed);
-            if (terminal) {
-                children[1] = rlp.bytesAt(1);
-                return;
-            }
-            children[1] = fromListIndex(rlp, 1, readOnlyCache);
-            return;
+            children[1] = terminal ? rlp.bytesAt(1) : fromListIndex(rlp, 1, null);
+            return children;
         }
-        children = new Object[BRANCH_SIZE];
+        Object[] children = new Object[BRANCH_SIZE];
         for (int i = 0; i < BRANCH_SIZE - 1; i++) {
             if (rlp.isNullAt(i)) continue;
-            children[i] = fromListIndex(rlp, i, readOnlyCache);
+            children[i] = fromListIndex(rlp, i, null);
         }
         byte[] item = rlp.bytesAt(BRANCH_SIZE - 1);
-        if (item.length == 0) return;
-        children[BRANCH_SIZE - 1] = item;
+        if (item.length > 0) children[BRANCH_SIZE - 1] = item;
+        return children;
+    }
+
+    // copy decoded children, child nodes are copied with store, keys and values are immutable and shared
+    private static Object[] copyChildren(Object[] decoded, Store<byte[], byte[]> readOnlyCache, NodeCache nodeCache) {
+        Object[] children = decoded.clone();
+        for (int i = 0; i < children.length; i++) {
+            if (!(children[i] instanceof Node)) continue;
+            Node n = (Node) children[i];
+            children[i] = new Node(n.rlp, false, n.hash, readOnlyCache, nodeCache, null);
+        }
+        return children;
     }
 
     // clean key-value in database
@@ -228,17 +360,23 @@ public class Node {
     }
 
     public byte[] get(TrieKey key) {
-        parse();
-        Type type = getType();
-        if (type == Type.BRANCH) {
-            if (key.isEmpty()) return getValue();
-            Node child = getChild(key.get(0));
-            return child == null ? null : child.get(key.shift());
+        // descend by position in key, no slice of key is created
+        Node n = this;
+        int pos = 0;
+        while (true) {
+            Type type = n.getType();
+            if (type == Type.BRANCH) {
+                if (pos == key.size()) return n.getValue();
+                n = n.getChild(key.get(pos++));
+                if (n == null) return null;
+                continue;
+            }
+            TrieKey k = n.getKey();
+            if (!key.matchAt(pos, k)) return null;
+            pos += k.size();
+            if (type == Type.LEAF) return pos == key.size() ? n.getValue() : null;
+            n = n.getExtension();
         }
-        TrieKey k1 = key.matchAndShift(getKey());
-        if (k1 == null) return null;
-        if (type == Type.LEAF) return k1.isEmpty() ? getValue() : null;
-        return getExtension().get(k1);
     }
 
     // deep-first scanning
@@ -263,6 +401,104 @@ public class Node {
         action.scan(init.concat(getKey()), this);
     }
 
+    // add hashes of nodes reachable from root hash into marked without building node tree
+    // subtrees whose hash is already marked are skipped, values of newly visited nodes are passed to values
+    static void mark(byte[] rootHash, Store<byte[], byte[]> store, Set<HexBytes> marked, Consumer<byte[]> values) {
+        Deque<byte[]> hashes = new ArrayDeque<>();
+        if (marked.add(HexBytes.fromBytes(rootHash))) hashes.push(rootHash);
+        while (!hashes.isEmpty()) {
+            byte[] hash = hashes.pop();
+            byte[] v = store.get(hash);
+            if (v == null || v.length == 0)
+                throw new RuntimeException("node " + HexBytes.encode(hash) + " not found");
+            markEncoded(v, hashes, marked, values);
+        }
+    }
+
+    private static void markEncoded(byte[] encoded, Deque<byte[]> hashes, Set<HexBytes> marked, Consumer<byte[]> values) {
+        long streamId = StreamId.decodeElement(encoded, 0, encoded.length, true);
+        RlpList rlp = StreamId.asList(encoded, streamId, BRANCH_SIZE);
+        if (rlp.size() == 2) {
+            if (TrieKey.isTerminal(rlp.bytesAt(0))) {
+                values.accept(rlp.bytesAt(1));
+                return;
+            }
+            markChild(rlp, 1, hashes, marked, values);
+            return;
+        }
+        for (int i = 0; i < BRANCH_SIZE - 1; i++) {
+            if (rlp.isNullAt(i)) continue;
+            markChild(rlp, i, hashes, marked, values);
+        }
+        byte[] item = rlp.bytesAt(BRANCH_SIZE - 1);
+        if (item.length > 0) values.accept(item);
+    }
+
+    private static void markChild(RlpList rlp, int idx, Deque<byte[]> hashes, Set<HexBytes> marked, Consumer<byte[]> values) {
+        // embedded node is not stored in db
+        if (rlp.isListAt(idx)) {
+            markEncoded(rlp.rawAt(idx), hashes, marked, values);
+            return;
+        }
+        byte[] hash = rlp.bytesAt(idx);
+        if (marked.add(HexBytes.fromBytes(hash))) hashes.push(hash);
+    }
+
+    /**
+     * pass keys of stored nodes reachable from rootHash to marks, subtrees equal to the subtree at the same position
+     * of the trie at baseHash are skipped, so the cost is proportional to the difference of the tries,
+     * all nodes are passed if baseHash is null, nodes are read one by one and not retained
+     */
+    static void markNew(byte[] rootHash, byte[] baseHash, Store<byte[], byte[]> store, Consumer<byte[]> marks, Consumer<byte[]> values) {
+        // pairs of reference to node and to node at the same position of base, a reference is hash or embedded encoding
+        Deque<byte[][]> refs = new ArrayDeque<>();
+        refs.push(new byte[][]{rootHash, baseHash});
+        while (!refs.isEmpty()) {
+            byte[][] r = refs.pop();
+            if (r[1] != null && FastByteComparisons.equal(r[0], r[1])) continue;
+            if (!isEmbedded(r[0])) marks.accept(r[0]);
+            RlpList rlp = resolve(r[0], store);
+            if (rlp.size() == 2 && TrieKey.isTerminal(rlp.bytesAt(0))) {
+                values.accept(rlp.bytesAt(1));
+                continue;
+            }
+            RlpList base = r[1] == null ? null : resolve(r[1], store);
+            if (rlp.size() == 2) {
+                // children of extensions are at the same position only if keys are equal
+                boolean same = base != null && base.size() == 2 && FastByteComparisons.equal(rlp.bytesAt(0), base.bytesAt(0));
+                refs.push(new byte[][]{refAt(rlp, 1), same ? refAt(base, 1) : null});
+                continue;
+            }
+            boolean branch = base != null && base.size() == BRANCH_SIZE;
+            for (int i = 0; i < BRANCH_SIZE - 1; i++) {
+                if (rlp.isNullAt(i)) continue;
+                refs.push(new byte[][]{refAt(rlp, i), branch && !base.isNullAt(i) ? refAt(base, i) : null});
+            }
+            byte[] item = rlp.bytesAt(BRANCH_SIZE - 1);
+            if (item.length > 0) values.accept(item);
+        }
+    }
+
+    // embedded node is encoded in less than a hash
+    private static boolean isEmbedded(byte[] ref) {
+        return ref.length < HashUtil.EMPTY_TRIE_HASH.length;
+    }
+
+    private static byte[] refAt(RlpList rlp, int idx) {
+        return rlp.isListAt(idx) ? rlp.rawAt(idx) : rlp.bytesAt(idx);
+    }
+
+    private static RlpList resolve(byte[] ref, Store<byte[], byte[]> store) {
+        byte[] encoded = ref;
+        if (!isEmbedded(ref)) {
+            encoded = store.get(ref);
+            if (encoded == null || encoded.length == 0)
+                throw new RuntimeException("node " + HexBytes.encode(ref) + " not found");
+        }
+        long streamId = StreamId.decodeElement(encoded, 0, encoded.length, true);
+        return StreamId.asList(encoded, streamId, BRANCH_SIZE);
+    }
+
     // for test only
     void insert(TrieKey key, byte[] value) {
         insert(key, value, null);
@@ -282,15 +518,15 @@ public class Node {
 
         TrieKey current = getKey();
         // by definition, common prefix <= current and common prefix <= key ( <= represents subset of here )
-        TrieKey commonPrefix = key.getCommonPrefix(current);
+        int common = key.commonPrefixSize(current);
 
         // current is leaf and current equals to key
-        if (type == Type.LEAF && commonPrefix.size() == current.size() && commonPrefix.size() == key.size()) {
+        if (type == Type.LEAF && common == current.size() && common == key.size()) {
             return setValue(value);
         }
 
         // space is not enough, convert to branch node
-        if (commonPrefix.isEmpty()) {
+        if (common == 0) {
             dispose(cache);
             toBranch();
             branchInsert(key, value, cache);
@@ -299,22 +535,22 @@ public class Node {
         }
 
         // convert self to extension node
-        if ((type == Type.LEAF && commonPrefix.size() == current.size())) {
+        if ((type == Type.LEAF && common == current.size())) {
             dispose(cache);
             byte[] val = getValue();
             Node newBranch = newBranch();
             children[1] = newBranch;
             newBranch.setValue(val);
-            newBranch.branchInsert(key.shift(commonPrefix.size()), value, cache);
+            newBranch.branchInsert(key.shift(common), value, cache);
             setDirty();
             return dirty;
         }
 
         // current is extension and common prefix equals to current
-        if (type == Type.EXTENSION && commonPrefix.size() == current.size()) {
+        if (type == Type.EXTENSION && common == current.size()) {
             // TODO: remove this assertion for the extension must be branch
             getExtension().assertBranch();
-            this.dirty |= getExtension().branchInsert(key.shift(commonPrefix.size()), value, cache);
+            this.dirty |= getExtension().branchInsert(key.shift(common), value, cache);
             return dirty;
         }
 
@@ -322,17 +558,17 @@ public class Node {
         dispose(cache);
         // common prefix is a strict subset of current here
         // common prefix < current => tmp couldn't be empty
-        TrieKey tmp = current.shift(commonPrefix.size());
+        TrieKey tmp = current.shift(common);
 
         Object o = children[1];
         Node newBranch = newBranch();
         children[1] = newBranch;
         // reset to common prefix
-        children[0] = commonPrefix;
+        children[0] = current.prefix(common);
 
         newBranch.children[tmp.get(0)] = newShort(tmp.shift(), o);
 
-        tmp = key.shift(commonPrefix.size());
+        tmp = key.shift(common);
         if (tmp.isEmpty()) {
             // tmp is empty => common prefix = key => key < current
             newBranch.children[BRANCH_SIZE - 1] = value;
@@ -433,12 +669,12 @@ public class Node {
         branchCompact(index);
     }
 
-    private Node getChild(int index) {
+    Node getChild(int index) {
         assertBranch();
         return (Node) children[index];
     }
 
-    private Node getExtension() {
+    Node getExtension() {
         assertExtension();
         return (Node) children[1];
     }
@@ -0,0 +1,55 @@
+package org.tdf.common.trie;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.tdf.common.util.HexBytes;
+
+/**
+ * cache of decoded committed nodes keyed by hash, shared by tries over the same store,
+ * cached nodes are never modified, a trie copies the children of cached node into its own node on parse,
+ * so modifications of one trie are invisible to others
+ * a cached node is used without reading store, so nodes removed from store physically should be invalidated
+ */
+public final class NodeCache {
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    // decoded node, child nodes are unparsed nodes without store
+    static final class Decoded {
+        final byte[] encoded;
+        final Object[] children;
+
+        Decoded(byte[] encoded, Object[] children) {
+            this.encoded = encoded;
+            this.children = children;
+        }
+    }
+
+    private final Cache<HexBytes, Decoded> cache;
+
+    /**
+     * @param capacity maximum bytes of cached nodes, 0 means no cache
+     */
+    public NodeCache(long capacity) {
+        // decoded children take about the same size as encoded
+        this.cache = capacity <= 0 ? null : CacheBuilder.newBuilder()
+            .maximumWeight(capacity)
+            .<HexBytes, Decoded>weigher((k, v) -> k.getSize() + v.encoded.length * 2)
+            .build();
+    }
+
+    Decoded get(byte[] hash) {
+        return cache == null ? null : cache.getIfPresent(HexBytes.fromBytes(hash));
+    }
+
+    void put(byte[] hash, Decoded decoded) {
+        if (cache != null) cache.put(HexBytes.fromBytes(hash), decoded);
+    }
+
+    public void invalidate(byte[] hash) {
+        if (cache != null) cache.invalidate(HexBytes.fromBytes(hash));
+    }
+
+    public void clear() {
+        if (cache != null) cache.invalidateAll();
+    }
+}
@@ -0,0 +1,50 @@
+package org.tdf.common.trie
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import org.tdf.common.serialize.Codec
+import org.tdf.common.store.Store
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.sha3
+
+/**
+ * bounded cache of hashed keys of a secure trie and their preimages, shared by tries reverted from the secure trie,
+ * keys should have value equality e.g. HexBytes, otherwise hashed keys are computed on every access
+ *
+ * @param codec key codec of trie
+ * @param size maximum count of cached keys
+ * @param store hashed key -> encoded key, preimages of written keys are persisted if not null
+ */
+class PreimageCache<K>(
+    private val codec: Codec<K>,
+    size: Long = DEFAULT_SIZE,
+    val store: Store<ByteArray, ByteArray>? = null
+) {
+    private val hashes: Cache<K, ByteArray> = CacheBuilder.newBuilder().maximumSize(size).build()
+    private val preimages: Cache<HexBytes, K> = CacheBuilder.newBuilder().maximumSize(size).build()
+
+    fun hash(k: K): ByteArray {
+        return hashes.get(k) {
+            val h = codec.encoder.apply(k).sha3()
+            preimages.put(HexBytes.fromBytes(h), k)
+            h
+        }
+    }
+
+    // called when key is written into trie
+    fun record(hashed: ByteArray, k: K) {
+        store?.set(hashed, codec.encoder.apply(k))
+    }
+
+    /**
+     * get original key of hashed key, null if the key is neither cached nor persisted
+     */
+    fun preimage(hashed: ByteArray): K? {
+        return preimages.getIfPresent(HexBytes.fromBytes(hashed))
+            ?: store?.get(hashed)?.let { codec.decoder.apply(it) }
+    }
+
+    companion object {
+        const val DEFAULT_SIZE = 65536L
+    }
+}
@@ -17,6 +17,10 @@ class ReadOnlyTrie<K, V>(private val delegate: Trie<K, V>) : Trie<K, V> by deleg
         throw UnsupportedOperationException()
     }
 
+    override fun putAll(sortedEntries: Iterable<Map.Entry<K, V>>) {
+        throw UnsupportedOperationException()
+    }
+
     override fun remove(k: K) {
         throw UnsupportedOperationException()
     }
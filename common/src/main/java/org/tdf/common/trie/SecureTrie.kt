@@ -2,8 +2,9 @@ package org.tdf.common.trie
 
 
 import org.tdf.common.store.Store
+import org.tdf.common.util.FastByteComparisons
 import org.tdf.common.util.HexBytes
-import org.tdf.common.util.sha3
+import org.tdf.common.util.hex
 import java.util.function.BiFunction
 
 /**
@@ -18,9 +19,14 @@ import java.util.function.BiFunction
  * Thus, the secure tree uses a keccak-256 hash value as its key, and prevents an attacker from creating a node at a location that he/she desires.
  *
  * @param <V> value type
-</V> */
-class SecureTrie<K, V>(delegate: Trie<K, V>) : Trie<K, V> by delegate {
+ * @param preimages hashed keys and preimages, a cache without store is created if null
+ */
+class SecureTrie<K, V> @JvmOverloads constructor(
+    delegate: Trie<K, V>,
+    preimages: PreimageCache<K>? = null
+) : Trie<K, V> by delegate {
     private val delegate: AbstractTrie<K, V>;
+    val preimages: PreimageCache<K>
 
     init {
         when (delegate) {
@@ -28,10 +34,11 @@ class SecureTrie<K, V>(delegate: Trie<K, V>) : Trie<K, V> by delegate {
             is AbstractTrie<K, V> -> this.delegate = delegate
             else -> throw RuntimeException("unsupported type ${delegate.javaClass}")
         }
+        this.preimages = preimages ?: PreimageCache(this.delegate.kCodec)
     }
 
     private fun K.bytes(): ByteArray {
-        return delegate.kCodec.encoder.apply(this).sha3()
+        return preimages.hash(this)
     }
 
 
@@ -40,18 +47,40 @@ class SecureTrie<K, V>(delegate: Trie<K, V>) : Trie<K, V> by delegate {
     }
 
     override fun set(k: K, v: V) {
-        delegate.putBytes(k.bytes(), delegate.vCodec.encoder.apply(v))
+        val h = k.bytes()
+        preimages.record(h, k)
+        delegate.putBytes(h, delegate.vCodec.encoder.apply(v))
     }
 
     override fun remove(k: K) {
         delegate.removeBytes(k.bytes())
     }
 
+    override fun putAll(sortedEntries: Iterable<Map.Entry<K, V>>) {
+        // order of hashed keys differs from order of keys
+        val entries = sortedEntries.map {
+            val h = it.key.bytes()
+            preimages.record(h, it.key)
+            h to delegate.vCodec.encoder.apply(it.value)
+        }
+            .sortedWith { x, y -> FastByteComparisons.compareTo(x.first, 0, x.first.size, y.first, 0, y.first.size) }
+        delegate.putAllBytes(entries.asSequence())
+    }
+
     override fun revert(rootHash: HexBytes, store: Store<ByteArray, ByteArray>): Trie<K, V> {
-        return SecureTrie(delegate.revert(rootHash, store))
+        return SecureTrie(delegate.revert(rootHash, store), preimages)
     }
 
+    // keys are recovered from persisted preimages
     override fun traverse(traverser: BiFunction<in K, in V, Boolean>) {
+        if (preimages.store == null) throw UnsupportedOperationException("not supported in secure trie without preimages")
+        delegate.traverseInternal { k, v ->
+            val key = preimages.preimage(k) ?: throw RuntimeException("preimage of ${k.hex()} not found")
+            traverser.apply(key, delegate.vCodec.decoder.apply(v))
+        }
+    }
+
+    override fun scan(start: K?, end: K?, limit: Int): List<Map.Entry<K, V>> {
         throw UnsupportedOperationException("not supported in secure trie")
     }
 }
\ No newline at end of file
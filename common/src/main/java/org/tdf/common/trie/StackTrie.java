@@ -0,0 +1,178 @@
+package org.tdf.common.trie;
+
+import com.github.salpadding.rlpstream.Constants;
+import com.github.salpadding.rlpstream.Rlp;
+import org.tdf.common.store.Store;
+import org.tdf.common.util.FastByteComparisons;
+import org.tdf.common.util.HashUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * builds a trie bottom-up from keys put in ascending order, the result equals to inserting the keys into TrieImpl
+ * only branches on the path of the last key are kept in memory, a subtree is encoded and hashed once when it is finished,
+ * hashed nodes are written into store if store is not null
+ */
+public class StackTrie {
+    // branch under construction, hexes of key before depth are shared by all its children
+    private static class Frame {
+        final int depth;
+        // encoded references of children
+        final byte[][] children = new byte[Node.BRANCH_SIZE - 1][];
+        byte[] value;
+
+        Frame(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private final Store<byte[], byte[]> store;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+
+    // the last key is pending until the next key or commit
+    private byte[] pendingBytes;
+    private TrieKey pendingKey;
+    private byte[] pendingValue;
+    // common prefix size of the pending key and its previous key
+    private int previousMatch = -1;
+    private byte[] root;
+
+    public StackTrie(Store<byte[], byte[]> store) {
+        this.store = store;
+    }
+
+    public StackTrie() {
+        this(null);
+    }
+
+    /**
+     * put a key-value pair, the key must be greater than the previous key in unsigned lexicographical order
+     */
+    public void put(byte[] key, byte[] value) {
+        if (root != null) throw new RuntimeException("stack trie had been committed");
+        if (key.length == 0 || value == null || value.length == 0)
+            throw new RuntimeException("empty key or value is not allowed");
+        // pending key and nodes keep slices of the key, the caller may reuse its array
+        key = key.clone();
+        TrieKey k = TrieKey.fromNormal(key);
+        if (pendingKey != null) {
+            if (FastByteComparisons.compareTo(pendingBytes, 0, pendingBytes.length, key, 0, key.length) >= 0)
+                throw new RuntimeException("keys are not put in ascending order");
+            int match = pendingKey.commonPrefixSize(k);
+            flushPending(match);
+            previousMatch = match;
+        }
+        pendingBytes = key;
+        pendingKey = k;
+        pendingValue = value;
+    }
+
+    /**
+     * finish the trie and return its root hash
+     */
+    public byte[] commit() {
+        if (root != null) return root;
+        if (pendingKey == null) {
+            root = HashUtil.EMPTY_TRIE_HASH;
+            return root;
+        }
+        flushPending(-1);
+        return root;
+    }
+
+    /**
+     * root hash of trie from rlp encoded index to value, e.g. transactions root and receipts root
+     */
+    public static byte[] orderedListRoot(List<byte[]> values) {
+        byte[][] keys = new byte[values.size()][];
+        Integer[] order = new Integer[values.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Rlp.encodeInt(i);
+            order[i] = i;
+        }
+        // rlp encoded indices are not in numeric order, e.g. 0x80 for 0 comes after 0x7f for 127
+        Arrays.sort(order, (x, y) -> FastByteComparisons.compareTo(keys[x], 0, keys[x].length, keys[y], 0, keys[y].length));
+        StackTrie trie = new StackTrie();
+        for (int i : order) {
+            trie.put(keys[i], values.get(i));
+        }
+        return trie.commit();
+    }
+
+    // place pending key into branch at max(previous match, next match), then finish branches deeper than next match
+    private void flushPending(int nextMatch) {
+        TrieKey key = pendingKey;
+        int depth = Math.max(previousMatch, nextMatch);
+        if (depth < 0) {
+            // the only key
+            root = hashRoot(leaf(key, pendingValue));
+            return;
+        }
+        if (frames.isEmpty() || frames.peek().depth < depth)
+            frames.push(new Frame(depth));
+        Frame top = frames.peek();
+        if (key.size() == depth) {
+            // key is prefix of the next key
+            top.value = pendingValue;
+        } else {
+            top.children[key.get(depth)] = reference(leaf(key.shift(depth + 1), pendingValue));
+        }
+
+        while (frames.peek().depth > nextMatch) {
+            Frame f = frames.pop();
+            byte[] encoded = branch(f);
+            if (nextMatch < 0 && frames.isEmpty()) {
+                root = hashRoot(f.depth == 0 ? encoded : extension(key.prefix(f.depth), reference(encoded)));
+                return;
+            }
+            // parent branch is shared with the next key
+            if (frames.isEmpty() || frames.peek().depth < nextMatch)
+                frames.push(new Frame(nextMatch));
+            Frame parent = frames.peek();
+            TrieKey path = key.shift(parent.depth + 1).prefix(f.depth - parent.depth - 1);
+            byte[] child = path.isEmpty() ? encoded : extension(path, reference(encoded));
+            parent.children[key.get(parent.depth)] = reference(child);
+        }
+    }
+
+    private static byte[] leaf(TrieKey path, byte[] value) {
+        return Rlp.encodeElements(
+            Rlp.encodeBytes(path.toPacked(true)),
+            Rlp.encodeBytes(value)
+        );
+    }
+
+    private static byte[] extension(TrieKey path, byte[] childReference) {
+        return Rlp.encodeElements(
+            Rlp.encodeBytes(path.toPacked(false)),
+            childReference
+        );
+    }
+
+    private byte[] branch(Frame f) {
+        List<byte[]> elements = new ArrayList<>(Node.BRANCH_SIZE);
+        for (byte[] child : f.children) {
+            elements.add(child == null ? Constants.NULL : child);
+        }
+        elements.add(Rlp.encodeBytes(f.value));
+        return Rlp.encodeElements(elements);
+    }
+
+    // node encoded less than 32 bytes is embedded in its parent
+    private byte[] reference(byte[] encoded) {
+        if (encoded.length < 32) return encoded;
+        byte[] hash = HashUtil.sha3(encoded);
+        if (store != null) store.set(hash, encoded);
+        return Rlp.encodeBytes(hash);
+    }
+
+    private byte[] hashRoot(byte[] encoded) {
+        byte[] hash = HashUtil.sha3(encoded);
+        if (store != null) store.set(hash, encoded);
+        return hash;
+    }
+}
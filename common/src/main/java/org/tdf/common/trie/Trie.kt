@@ -1,10 +1,12 @@
 package org.tdf.common.trie
 
 import org.tdf.common.store.Store
+import org.tdf.common.util.FastByteComparisons
 import org.tdf.common.util.HashUtil
 import org.tdf.common.util.HexBytes
 import java.util.AbstractMap.SimpleImmutableEntry
 import java.util.function.BiFunction
+import java.util.function.Consumer
 import java.util.function.Function
 
 interface Trie<K, V> : Store<K, V> {
@@ -28,6 +30,15 @@ interface Trie<K, V> : Store<K, V> {
      */
     fun commit(): HexBytes
 
+    /**
+     * put entries sorted by encoded keys in ascending unsigned order, an empty trie is built bottom-up
+     * and its nodes are written into store directly, otherwise entries are put one by one
+     *
+     * @param sortedEntries entries sorted by encoded keys
+     * @throws RuntimeException if entries of an empty trie are not sorted
+     */
+    fun putAll(sortedEntries: Iterable<Map.Entry<K, V>>)
+
     /**
      * dump keys this trie
      *
@@ -36,6 +47,28 @@ interface Trie<K, V> : Store<K, V> {
      */
     fun dumpKeys(): Set<HexBytes>
 
+    /**
+     * add keys of nodes reachable from root of this trie into marked, nodes are read from store one by one,
+     * subtrees whose root is already in marked are skipped, so marking tries share most nodes is cheap
+     *
+     * @param marked keys of marked nodes
+     * @param values consumer of values in newly marked nodes
+     * @throws RuntimeException if the trie is both non-null and dirty
+     */
+    fun mark(marked: MutableSet<HexBytes>, values: Consumer<in V>)
+
+    /**
+     * pass keys of nodes reachable from root of this trie to marks, except subtrees found at the same position
+     * of the trie at base root, nodes are read from store one by one and nothing is retained,
+     * so the cost is proportional to the difference and memory is independent of the size of the trie
+     *
+     * @param base root of a trie whose nodes are marked already, null means all nodes are passed
+     * @param marks consumer of keys of nodes not in base
+     * @param values consumer of values in nodes not in base
+     * @throws RuntimeException if the trie is both non-null and dirty
+     */
+    fun markNew(base: HexBytes?, marks: Consumer<ByteArray>, values: Consumer<in V>)
+
     /**
      * dump this trie
      *
@@ -86,6 +119,42 @@ interface Trie<K, V> : Store<K, V> {
         return r
     }
 
+    /**
+     * get key-value pairs in ascending order of encoded key where start <= key < end, nodes are loaded on demand,
+     * a large trie could be scanned in batches, every batch starts from the least key greater than last key
+     *
+     * @param start inclusive lower bound, null means no lower bound
+     * @param end exclusive upper bound, null means no upper bound
+     * @param limit maximum size of result, negative means no limit
+     */
+    fun scan(start: K?, end: K?, limit: Int = -1): List<Map.Entry<K, V>>
+
+    /**
+     * get keys whose values differ between this trie and the trie at other root in ascending order of encoded key,
+     * both tries are walked at once and subtrees with the same hash are skipped, nodes are loaded on demand
+     *
+     * @param otherRoot root hash of the other trie in the same store
+     * @return lazy sequence of differences, value before is in this trie and value after is in the other trie
+     * @throws RuntimeException if a node of the other trie not found in store
+     */
+    fun diff(otherRoot: HexBytes): Sequence<TrieDiff<V>>
+
     fun traverse(traverser: BiFunction<in K, in V, Boolean>)
     fun traverseValue(traverser: Function<in V, Boolean>)
-}
\ No newline at end of file
+}
+
+/**
+ * put entries in any order, entries are sorted by encoded keys so an empty trie is built bottom-up
+ */
+fun <K, V> Trie<K, V>.putAllUnsorted(entries: Map<K, V>) {
+    if (this !is AbstractTrie<K, V>) {
+        // secure trie sorts hashed keys itself
+        putAll(entries.entries)
+        return
+    }
+    val sorted = entries.entries
+        .map { Pair(kCodec.encoder.apply(it.key), it) }
+        .sortedWith { x, y -> FastByteComparisons.compareTo(x.first, 0, x.first.size, y.first, 0, y.first.size) }
+        .map { it.second }
+    putAll(sorted)
+}
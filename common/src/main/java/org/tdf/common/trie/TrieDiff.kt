@@ -0,0 +1,18 @@
+package org.tdf.common.trie
+
+import org.tdf.common.util.HexBytes
+
+/**
+ * difference of a key between two tries, null value means the key is absent in that trie
+ *
+ * @param key encoded key, hashed key in secure trie
+ * @param before value in this trie
+ * @param after value in the other trie
+ */
+data class TrieDiff<V>(val key: HexBytes, val before: V?, val after: V?) {
+    val isAdded: Boolean
+        get() = before == null
+
+    val isRemoved: Boolean
+        get() = after == null
+}
@@ -8,14 +8,30 @@ import org.tdf.common.store.Store
 import org.tdf.common.util.HexBytes
 import org.tdf.common.util.hex
 import java.util.function.BiFunction
+import java.util.function.Consumer
 
-// enhanced radix tree
-class TrieImpl<K, V>(
+/**
+ * enhanced radix tree
+ *
+ * @param parallelThreshold dirty subtrees are hashed in parallel when count of dirty nodes reaches it, 0 means never
+ * @param flushThreshold dirty nodes are committed into store when estimated bytes of them reaches it, 0 means never,
+ * the root hash is the same as committing once, but unreachable intermediate nodes are left in store
+ * @param nodeCache decoded nodes shared by tries over the same store, null means nodes are decoded by every trie
+ */
+class TrieImpl<K, V> @JvmOverloads constructor(
     override val store: Store<ByteArray, ByteArray> = ByteArrayMapStore(),
     override val kCodec: Codec<K> = Codec.identity(),
     override val vCodec: Codec<V> = Codec.identity(),
-    private var root: Node? = null
+    private var root: Node? = null,
+    private val parallelThreshold: Int = 0,
+    private val flushThreshold: Long = 0,
+    private val nodeCache: NodeCache? = null
 ) : AbstractTrie<K, V>() {
+    /**
+     * estimated bytes of uncommitted nodes
+     */
+    var dirtySize: Long = 0
+        private set
 
     override fun getFromBytes(key: ByteArray): V? {
         require(key.isNotEmpty()) { "key cannot be null" }
@@ -29,27 +45,56 @@ class TrieImpl<K, V>(
             removeBytes(key)
             return
         }
+        // inserted nodes keep slices of the key, copy it once so the caller may reuse its array
+        val k = TrieKey.fromNormal(key.copyOf())
         if (root == null) {
-            root = Node.newLeaf(TrieKey.fromNormal(key), value)
+            root = Node.newLeaf(k, value)
+        } else {
+            root!!.insert(k, value, store)
+        }
+        onWrite(key.size + value.size)
+    }
+
+    // nodes on the path of a modified key are copied or created
+    private fun onWrite(bytes: Int) {
+        dirtySize += bytes + DIRTY_NODE_OVERHEAD
+        if (flushThreshold > 0 && dirtySize >= flushThreshold) {
+            // nodes are loaded from store again on demand, so committed subtrees could be collected
+            val hash = commit()
+            root = if (hash == nullHash) null else Node.fromRootHash(hash.bytes, ReadonlyStore.of(store), nodeCache)
+        }
+    }
+
+    override fun putAllBytes(entries: Sequence<Pair<ByteArray, ByteArray>>) {
+        if (root != null) {
+            super.putAllBytes(entries)
             return
         }
-        root!!.insert(TrieKey.fromNormal(key), value, store)
+        val builder = StackTrie(store)
+        // empty value means removal, which is no-op on empty trie
+        entries.filter { it.second.isNotEmpty() }.forEach { builder.put(it.first, it.second) }
+        val hash = builder.commit()
+        if (hash.hex() != nullHash)
+            root = Node.fromRootHash(hash, ReadonlyStore.of(store), nodeCache)
     }
 
     override fun removeBytes(key: ByteArray) {
         require(key.isNotEmpty()) { "key cannot be null" }
         val r = root ?: return
         root = r.delete(TrieKey.fromNormal(key), store)
+        onWrite(key.size)
     }
 
     fun clear() {
         root = null
+        dirtySize = 0
     }
 
     override fun commit(): HexBytes {
+        dirtySize = 0
         val r = root ?: return nullHash
         if (!r.isDirty) return r.hash.hex()
-        val hash = Rlp.decodeBytes(r.commit(store, true))
+        val hash = Rlp.decodeBytes(r.commit(store, true, parallelThreshold))
         if (r.isDirty || r.hash == null)
             throw RuntimeException("unexpected error: still dirty after commit")
         return hash.hex()
@@ -60,15 +105,18 @@ class TrieImpl<K, V>(
     }
 
     override fun revert(rootHash: HexBytes, store: Store<ByteArray, ByteArray>): TrieImpl<K, V> {
+        // cached nodes may be missing in another store
+        val nodes = if (store === this.store) nodeCache else null
         if (rootHash == nullHash) return TrieImpl(
             store,
-            kCodec, vCodec, null
+            kCodec, vCodec, null, parallelThreshold, flushThreshold, nodes
         )
         store[rootHash.bytes]?.takeIf { it.isNotEmpty() }
             ?: throw RuntimeException("rollback failed, root hash not exists")
         return TrieImpl(
             store, kCodec, vCodec,
-            Node.fromRootHash(rootHash.bytes, ReadonlyStore.of(store))
+            Node.fromRootHash(rootHash.bytes, ReadonlyStore.of(store), nodes),
+            parallelThreshold, flushThreshold, nodes
         )
     }
 
@@ -84,6 +132,19 @@ class TrieImpl<K, V>(
         return dump.keys
     }
 
+    override fun mark(marked: MutableSet<HexBytes>, values: Consumer<in V>) {
+        if (isDirty) throw UnsupportedOperationException()
+        val r = root ?: return
+        Node.mark(r.hash, store, marked) { values.accept(vCodec.decoder.apply(it)) }
+    }
+
+    override fun markNew(base: HexBytes?, marks: Consumer<ByteArray>, values: Consumer<in V>) {
+        if (isDirty) throw UnsupportedOperationException()
+        val r = root ?: return
+        val b = base?.takeIf { it != nullHash }?.bytes
+        Node.markNew(r.hash, b, store, marks) { values.accept(vCodec.decoder.apply(it)) }
+    }
+
     override fun dump(): Map<HexBytes, HexBytes> {
         if (isDirty) throw UnsupportedOperationException()
         val dump = Dump()
@@ -102,6 +163,15 @@ class TrieImpl<K, V>(
         get() = root?.isDirty == true
 
 
+    override fun iterator(start: ByteArray?, end: ByteArray?): Iterator<Map.Entry<ByteArray, ByteArray>> {
+        return TrieIterator(root, start, end)
+    }
+
+    override fun diffIterator(otherRoot: HexBytes): Iterator<TrieDiff<ByteArray>> {
+        val other = if (otherRoot == nullHash) null else Node.fromRootHash(otherRoot.bytes, ReadonlyStore.of(store), nodeCache)
+        return DiffIterator(root, other)
+    }
+
     override fun traverseInternal(traverser: BiFunction<ByteArray, ByteArray, Boolean>) {
         traverseTrie { k: TrieKey, n: Node ->
             if (n.type != Node.Type.EXTENSION && n.value != null) {
@@ -110,4 +180,12 @@ class TrieImpl<K, V>(
             true
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+        // threshold for large tries like state tries, small tries are cheaper to hash in one thread
+        const val PARALLEL_THRESHOLD = 2048
+
+        // estimated heap bytes of dirty nodes per modification besides key and value
+        const val DIRTY_NODE_OVERHEAD = 256
+    }
+}
@@ -0,0 +1,131 @@
+package org.tdf.common.trie;
+
+import org.tdf.common.util.FastByteComparisons;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * cursor over key-value pairs of a trie in ascending order of key where start <= key < end,
+ * nodes are loaded on demand and subtrees before start are skipped, only branches on the path of current key are kept,
+ * the trie should not be modified during iteration
+ */
+public class TrieIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+    private static class Frame {
+        final Node node;
+        final TrieKey path;
+        // next child of branch to visit, -1 means value of branch
+        int next = -1;
+
+        Frame(Node node, TrieKey path) {
+            this.node = node;
+            this.path = path;
+        }
+    }
+
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private final TrieKey start;
+    private final byte[] end;
+    private Map.Entry<byte[], byte[]> next;
+
+    /**
+     * @param root  root node, null for empty trie
+     * @param start inclusive lower bound, null means no lower bound
+     * @param end   exclusive upper bound, null means no upper bound
+     */
+    TrieIterator(Node root, byte[] start, byte[] end) {
+        this.start = start == null ? null : TrieKey.fromNormal(start);
+        this.end = end;
+        if (root != null) push(root, TrieKey.EMPTY);
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        if (next == null) throw new NoSuchElementException();
+        Map.Entry<byte[], byte[]> r = next;
+        advance();
+        return r;
+    }
+
+    // skip subtree whose keys are all less than start
+    private void push(Node node, TrieKey prefix) {
+        if (start != null && before(prefix, start)) return;
+        stack.push(new Frame(node, prefix));
+    }
+
+    private void advance() {
+        next = null;
+        while (!stack.isEmpty()) {
+            Frame f = stack.peek();
+            Node n = f.node;
+            switch (n.getType()) {
+                case LEAF: {
+                    stack.pop();
+                    if (emit(f.path.concat(n.getKey()), n.getValue())) return;
+                    continue;
+                }
+                case EXTENSION: {
+                    stack.pop();
+                    push(n.getExtension(), f.path.concat(n.getKey()));
+                    continue;
+                }
+                default: {
+                    if (f.next < 0) {
+                        f.next = 0;
+                        byte[] v = n.getValue();
+                        if (v != null && v.length > 0 && emit(f.path, v)) return;
+                        continue;
+                    }
+                    if (f.next == Node.BRANCH_SIZE - 1) {
+                        stack.pop();
+                        continue;
+                    }
+                    int i = f.next++;
+                    Node child = n.getChild(i);
+                    if (child != null) push(child, f.path.concat(TrieKey.single(i)));
+                }
+            }
+        }
+    }
+
+    // return true if the pair is in range, the iteration is finished when key reaches end
+    private boolean emit(TrieKey key, byte[] value) {
+        if (start != null && less(key, start)) return false;
+        byte[] k = key.toNormal();
+        if (end != null && FastByteComparisons.compareTo(k, 0, k.length, end, 0, end.length) >= 0) {
+            stack.clear();
+            return false;
+        }
+        next = new AbstractMap.SimpleImmutableEntry<>(k, value);
+        return true;
+    }
+
+    // compare the first n hexes of a and b
+    private static int compare(TrieKey a, TrieKey b, int n) {
+        for (int i = 0; i < n; i++) {
+            if (a.get(i) != b.get(i)) return Integer.compare(a.get(i), b.get(i));
+        }
+        return 0;
+    }
+
+    // all keys start with prefix are less than key
+    private static boolean before(TrieKey prefix, TrieKey key) {
+        return compare(prefix, key, Math.min(prefix.size(), key.size())) < 0;
+    }
+
+    private static boolean less(TrieKey a, TrieKey b) {
+        int c = compare(a, b, Math.min(a.size(), b.size()));
+        // a key is less than keys it is prefix of
+        return c < 0 || c == 0 && a.size() < b.size();
+    }
+}
@@ -2,9 +2,6 @@ package org.tdf.common.trie;
 
 import org.tdf.common.util.HexBytes;
 
-import java.util.Arrays;
-import java.util.Objects;
-
 // HEX encoding contains one byte for each nibble of the key and an optional trailing
 // 'terminator' byte of value 0x10 which indicates whether or not the node at the key
 // contains a value. Hex key encoding is used for nodes loaded in memory because it's
@@ -22,22 +19,28 @@ public class TrieKey implements Comparable<TrieKey> {
     public static final int TERMINATOR_FLAG = 0x2;
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
     static TrieKey EMPTY = new TrieKey(EMPTY_BYTE_ARRAY, 0);
+    // hexes of key are data[offset, end) in hex, slices share data without copy
     private final byte[] data;
     private final int offset;
-    private final int hashCode;
+    private final int end;
+    // lazy computed hash code of hexes
+    private int hashCode;
 
     private TrieKey(byte[] data) {
         this(data, 0);
     }
 
     private TrieKey(byte[] data, int offset) {
-        int result = Objects.hash(offset);
-        result = 31 * result + Arrays.hashCode(data);
-        this.hashCode = result;
+        this(data, offset, data.length << 1);
+    }
+
+    private TrieKey(byte[] data, int offset, int end) {
         this.data = data;
         this.offset = offset;
+        this.end = end;
     }
 
+    // key is wrapped without copy, nodes keeping the trie key require a copy of key owned by the trie
     public static TrieKey fromNormal(byte[] key) {
         return new TrieKey(key);
     }
@@ -60,18 +63,26 @@ public class TrieKey implements Comparable<TrieKey> {
     }
 
     public byte[] toPacked(boolean terminal) {
-        // offset & 1 == 0 -> length is even
-        // offset & 1 != 0 -> length is odd
-        int flags = ((offset & 1) != 0 ? ODD_OFFSET_FLAG : 0) | (terminal ? TERMINATOR_FLAG : 0);
+        int size = size();
+        // odd size -> length is odd
+        int flags = ((size & 1) != 0 ? ODD_OFFSET_FLAG : 0) | (terminal ? TERMINATOR_FLAG : 0);
         // prepend an empty byte to store flag and
         // if size is odd, size()/2 + 1 == bytes length
         // if size is even , size()/2 + 1 == bytes length + 1
-        byte[] ret = new byte[size() / 2 + 1];
-        // if size is odd, copy all with first byte, and store flag to this byte, since the first half of this byte is useless
-        // if size is even, copy all without first byte, store flag to first half of first byte
-        int toCopy = (flags & ODD_OFFSET_FLAG) != 0 ? ret.length : ret.length - 1;
-        // copy from tail to tail, since data before offset is ignored
-        System.arraycopy(data, data.length - toCopy, ret, ret.length - toCopy, toCopy);
+        byte[] ret = new byte[size / 2 + 1];
+        if ((end & 1) == 0 && (end >> 1) == data.length) {
+            // if size is odd, copy all with first byte, and store flag to this byte, since the first half of this byte is useless
+            // if size is even, copy all without first byte, store flag to first half of first byte
+            int toCopy = (flags & ODD_OFFSET_FLAG) != 0 ? ret.length : ret.length - 1;
+            // copy from tail to tail, since data before offset is ignored
+            System.arraycopy(data, data.length - toCopy, ret, ret.length - toCopy, toCopy);
+        } else {
+            // slice not ends at the end of data, hexes are aligned to the end of ret
+            int shift = (ret.length << 1) - size;
+            for (int i = 0; i < size; i++) {
+                setHex(ret, shift + i, get(i));
+            }
+        }
         // set first half of first byte to zero
         ret[0] &= 0x0F;
         // store flag to first half of first byte
@@ -80,11 +91,17 @@ public class TrieKey implements Comparable<TrieKey> {
     }
 
     public byte[] toNormal() {
-        if ((offset & 1) != 0)
+        int size = size();
+        if ((size & 1) != 0)
             throw new RuntimeException("Can't convert a key with odd number of hexes to normal: " + this);
-        int arrLen = data.length - offset / 2;
-        byte[] ret = new byte[arrLen];
-        System.arraycopy(data, data.length - arrLen, ret, 0, arrLen);
+        byte[] ret = new byte[size >> 1];
+        if ((offset & 1) == 0) {
+            System.arraycopy(data, offset >> 1, ret, 0, ret.length);
+            return ret;
+        }
+        for (int i = 0; i < size; i++) {
+            setHex(ret, i, get(i));
+        }
         return ret;
     }
 
@@ -93,13 +110,17 @@ public class TrieKey implements Comparable<TrieKey> {
     }
 
     public int get(int index) {
-        byte b = data[(offset + index) >> 1];
-        return (((offset + index) & 1) == 0 ? (b >> 4) : b) & 0xF;
+        return hex(data, offset + index);
     }
 
-    private void set(int index, int hex) {
-        int byteIndex = (offset + index) >> 1;
-        if (((offset + index) & 1) == 0) {
+    private static int hex(byte[] data, int i) {
+        byte b = data[i >> 1];
+        return ((i & 1) == 0 ? (b >> 4) : b) & 0xF;
+    }
+
+    private static void setHex(byte[] data, int i, int hex) {
+        int byteIndex = i >> 1;
+        if ((i & 1) == 0) {
             data[byteIndex] &= 0x0F;
             data[byteIndex] |= hex << 4;
         } else {
@@ -108,8 +129,12 @@ public class TrieKey implements Comparable<TrieKey> {
         }
     }
 
+    private void set(int index, int hex) {
+        setHex(data, offset + index, hex);
+    }
+
     public int size() {
-        return (data.length << 1) - offset;
+        return end - offset;
     }
 
     public TrieKey concat(TrieKey that) {
@@ -132,67 +157,78 @@ public class TrieKey implements Comparable<TrieKey> {
     }
 
     public TrieKey shift(int hexCnt) {
-        return new TrieKey(this.data, offset + hexCnt);
+        return new TrieKey(this.data, offset + hexCnt, end);
     }
 
     public TrieKey getCommonPrefix(TrieKey k) {
-        int prefixLen = 0;
-        int thisSize = size();
-        int thatSize = k.size();
-        while (prefixLen < thisSize && prefixLen < thatSize && get(prefixLen) == k.get(prefixLen))
-            prefixLen++;
-        byte[] prefixKey = new byte[(prefixLen + 1) >> 1];
-        TrieKey ret = new TrieKey(prefixKey, (prefixLen & 1) == 0 ? 0 : 1);
-        for (int i = 0; i < prefixLen; i++) {
-            ret.set(i, k.get(i));
-        }
-        return ret;
+        return k.prefix(commonPrefixSize(k));
     }
 
-    public TrieKey matchAndShift(TrieKey that) {
-        int size = size();
-        int thatSize = that.size();
-        if (size < thatSize) return null;
+    // count of leading hexes shared with k
+    public int commonPrefixSize(TrieKey k) {
+        return commonPrefixSize(data, offset, k.data, k.offset, Math.min(size(), k.size()));
+    }
 
-        if ((offset & 1) == (that.offset & 1)) {
-            // optimization to compare whole keys bytes
-            if ((offset & 1) == 1) {
-                if (get(0) != that.get(0)) return null;
+    // count of common hexes of d1 from o1 and d2 from o2, at most max
+    private static int commonPrefixSize(byte[] d1, int o1, byte[] d2, int o2, int max) {
+        int i = 0;
+        // compare whole bytes when hexes of both keys are aligned
+        if (((o1 ^ o2) & 1) == 0) {
+            if ((o1 & 1) == 1) {
+                if (max == 0 || hex(d1, o1) != hex(d2, o2)) return 0;
+                i = 1;
             }
-            int idx1 = (offset + 1) >> 1;
-            int idx2 = (that.offset + 1) >> 1;
-            int l = thatSize >> 1;
-            for (int i = 0; i < l; i++, idx1++, idx2++) {
-                if (data[idx1] != that.data[idx2]) return null;
-            }
-        } else {
-            for (int i = 0; i < thatSize; i++) {
-                if (get(i) != that.get(i)) return null;
+            int b1 = (o1 + i) >> 1;
+            int b2 = (o2 + i) >> 1;
+            while (i + 1 < max && d1[b1] == d2[b2]) {
+                i += 2;
+                b1++;
+                b2++;
             }
         }
-        return shift(thatSize);
+        while (i < max && hex(d1, o1 + i) == hex(d2, o2 + i)) i++;
+        return i;
+    }
+
+    // the first hexCnt hexes
+    public TrieKey prefix(int hexCnt) {
+        return new TrieKey(data, offset, offset + hexCnt);
+    }
+
+    // this key has hexes of that at position pos
+    boolean matchAt(int pos, TrieKey that) {
+        int n = that.size();
+        if (size() - pos < n) return false;
+        return commonPrefixSize(data, offset + pos, that.data, that.offset, n) == n;
+    }
+
+    public TrieKey matchAndShift(TrieKey that) {
+        return matchAt(0, that) ? shift(that.size()) : null;
     }
 
     @Override
     public boolean equals(Object obj) {
         TrieKey k = (TrieKey) obj;
         int len = size();
-
-        if (len != k.size()) return false;
-        for (int i = 0; i < len; i++) {
-            if (get(i) != k.get(i)) return false;
-        }
-        return true;
+        return len == k.size() && matchAt(0, k);
     }
 
     @Override
     public int hashCode() {
-        return hashCode;
+        int h = hashCode;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < size(); i++) {
+                h = 31 * h + get(i);
+            }
+            hashCode = h;
+        }
+        return h;
     }
 
     @Override
     public String toString() {
-        return HexBytes.encode(data).substring(offset);
+        return HexBytes.encode(data).substring(offset, end);
     }
 
     @Override
@@ -32,6 +32,15 @@ public class HashUtil {
     private static final String HASH_256_ALGORITHM_NAME;
     private static final String HASH_512_ALGORITHM_NAME;
 
+    // keccak digests are reused by thread instead of looked up from provider on every call
+    private static final ThreadLocal<MessageDigest> KECCAK_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(HashUtil.HASH_256_ALGORITHM_NAME, HashUtil.CRYPTO_PROVIDER);
+        } catch (NoSuchAlgorithmException e) {
+            LOG.error("Can't find such algorithm", e);
+            throw new RuntimeException(e);
+        }
+    });
 
     static {
         Security.addProvider(SpongyCastleProvider.getInstance());
@@ -77,28 +86,16 @@ public class HashUtil {
     }
 
     public static byte[] sha3(byte[] input) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance(HASH_256_ALGORITHM_NAME, CRYPTO_PROVIDER);
-            digest.update(input);
-            return digest.digest();
-        } catch (NoSuchAlgorithmException e) {
-            LOG.error("Can't find such algorithm", e);
-            throw new RuntimeException(e);
-        }
+        MessageDigest digest = keccak256();
+        digest.update(input);
+        return digest.digest();
     }
 
     public static byte[] sha3(byte[] input1, byte[] input2) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance(HASH_256_ALGORITHM_NAME, CRYPTO_PROVIDER);
-            digest.update(input1, 0, input1.length);
-            digest.update(input2, 0, input2.length);
-            return digest.digest();
-        } catch (NoSuchAlgorithmException e) {
-            LOG.error("Can't find such algorithm", e);
-            throw new RuntimeException(e);
-        }
+        MessageDigest digest = keccak256();
+        digest.update(input1, 0, input1.length);
+        digest.update(input2, 0, input2.length);
+        return digest.digest();
     }
 
     /**
@@ -110,22 +107,15 @@ public class HashUtil {
      * @return - keccak hash of the chunk
      */
     public static byte[] sha3(byte[] input, int start, int length) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance(HASH_256_ALGORITHM_NAME, CRYPTO_PROVIDER);
-            digest.update(input, start, length);
-            return digest.digest();
-        } catch (NoSuchAlgorithmException e) {
-            LOG.error("Can't find such algorithm", e);
-            throw new RuntimeException(e);
-        }
+        MessageDigest digest = keccak256();
+        digest.update(input, start, length);
+        return digest.digest();
     }
 
 
     public static void sha3(byte[] input, int start, int length, byte[] dst, int dstOff) {
-        MessageDigest digest;
+        MessageDigest digest = keccak256();
         try {
-            digest = MessageDigest.getInstance(HASH_256_ALGORITHM_NAME, CRYPTO_PROVIDER);
             digest.update(input, start, length);
             digest.digest(dst, dstOff, dst.length);
         } catch (Exception e) {
@@ -134,6 +124,13 @@ public class HashUtil {
         }
     }
 
+    // digest of current thread, reset in case a previous call failed halfway
+    private static MessageDigest keccak256() {
+        MessageDigest digest = KECCAK_256.get();
+        digest.reset();
+        return digest;
+    }
+
     public static byte[] sha512(byte[] input) {
         MessageDigest digest;
         try {
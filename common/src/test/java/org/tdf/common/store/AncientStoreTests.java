@@ -0,0 +1,69 @@
+package org.tdf.common.store;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class AncientStoreTests {
+    private static final String DIRECTORY = "local/ancient";
+
+    @After
+    public void after() {
+        FileUtil.recursiveDelete(DIRECTORY);
+    }
+
+    @Test
+    public void testAppend() {
+        Random rd = new Random(0);
+        // small blocks and segments to test packing and rolling
+        AncientStore store = new AncientStore(DIRECTORY, 1024, 16 * 1024);
+        List<byte[]> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // compressible items
+            byte[] item = new byte[rd.nextInt(500)];
+            Arrays.fill(item, 0, item.length / 2, (byte) i);
+            for (int j = item.length / 2; j < item.length; j++) {
+                item[j] = (byte) rd.nextInt(4);
+            }
+            items.add(item);
+            assert store.append(item) == i;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            assert Arrays.equals(store.get(i), items.get(i));
+        }
+        assert store.get(items.size()) == null;
+        store.close();
+
+        store = new AncientStore(DIRECTORY, 1024, 16 * 1024);
+        assert store.getSize() == items.size();
+        for (int i = items.size() - 1; i >= 0; i--) {
+            assert Arrays.equals(store.get(i), items.get(i));
+        }
+
+        // truncate flushed items and append again
+        store.truncate(100);
+        assert store.getSize() == 100;
+        assert store.get(100) == null;
+        assert store.append(new byte[]{1, 2, 3}) == 100;
+        assert Arrays.equals(store.get(100), new byte[]{1, 2, 3});
+
+        // truncate pending items
+        store.append(new byte[]{4});
+        store.truncate(101);
+        assert store.getSize() == 101;
+        store.close();
+
+        store = new AncientStore(DIRECTORY, 1024, 16 * 1024);
+        assert store.getSize() == 101;
+        assert Arrays.equals(store.get(99), items.get(99));
+        assert Arrays.equals(store.get(100), new byte[]{1, 2, 3});
+        store.close();
+    }
+}
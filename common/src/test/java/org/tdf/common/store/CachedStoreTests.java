@@ -0,0 +1,120 @@
+package org.tdf.common.store;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.tdf.common.util.BigEndian;
+
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class CachedStoreTests {
+
+    private void testCache(boolean offHeap) {
+        MemoryDatabaseStore db = new MemoryDatabaseStore();
+        // 4 bytes key + 32 bytes value per entry, capacity of 100 entries
+        CachedStore cached = new CachedStore(db, 36 * 100, offHeap);
+        for (int i = 0; i < 1000; i++) {
+            cached.set(BigEndian.encodeInt32(i), new byte[32]);
+        }
+        // writes are not cached
+        assert cached.getSize() == 0;
+
+        for (int i = 0; i < 1000; i++) {
+            assert Arrays.equals(cached.get(BigEndian.encodeInt32(i)), new byte[32]);
+        }
+        assert cached.getMisses() == 1000;
+        assert cached.getEvictionCount() > 0;
+        assert cached.getSize() <= cached.getCapacity();
+
+        assert cached.get(BigEndian.encodeInt32(999)) != null;
+        assert cached.getHits() == 1;
+
+        // missing key is not cached
+        assert cached.get(BigEndian.encodeInt32(1000)) == null;
+        assert cached.get(BigEndian.encodeInt32(1000)) == null;
+        assert cached.getMisses() == 1002;
+
+        // write through
+        cached.set(BigEndian.encodeInt32(999), new byte[]{1});
+        assert Arrays.equals(db.get(BigEndian.encodeInt32(999)), new byte[]{1});
+        assert Arrays.equals(cached.get(BigEndian.encodeInt32(999)), new byte[]{1});
+        cached.remove(BigEndian.encodeInt32(999));
+        assert cached.get(BigEndian.encodeInt32(999)) == null;
+    }
+
+    @Test
+    public void testHeap() {
+        testCache(false);
+    }
+
+    @Test
+    public void testOffHeap() {
+        testCache(true);
+    }
+
+    @Test
+    public void testRingWrap() {
+        MemoryDatabaseStore db = new MemoryDatabaseStore();
+        CachedStore cached = new CachedStore(db, 300, true);
+        byte[] x = BigEndian.encodeInt32(-1);
+        db.set(x, new byte[10]);
+        cached.get(x);
+        // invalidated values are left in ring until overwritten
+        for (int i = 0; i < 30; i++) {
+            byte[] k = BigEndian.encodeInt32(i);
+            db.set(k, new byte[10]);
+            cached.get(k);
+            cached.set(k, new byte[]{1});
+        }
+        assert cached.getEvictionCount() == 0;
+        // x is overwritten in ring, it is read from delegate again
+        assert Arrays.equals(cached.get(x), new byte[10]);
+        assert cached.getEvictionCount() == 1;
+        assert cached.getMisses() == 32;
+        assert Arrays.equals(cached.get(x), new byte[10]);
+        assert cached.getHits() == 1;
+    }
+
+    @Test
+    public void testConcurrentInvalidate() {
+        MemoryDatabaseStore db = new MemoryDatabaseStore();
+        byte[] k = BigEndian.encodeInt32(1);
+        db.set(k, new byte[10]);
+        CachedStore[] holder = new CachedStore[1];
+        // key is removed by another writer while its old value is read from delegate
+        Store<byte[], byte[]> racing = new Store<byte[], byte[]>() {
+            @Override
+            public byte[] get(byte[] key) {
+                byte[] v = db.get(key);
+                db.remove(key);
+                holder[0].invalidate(key);
+                return v;
+            }
+
+            @Override
+            public void set(byte[] key, byte[] value) {
+                db.set(key, value);
+            }
+
+            @Override
+            public void remove(byte[] key) {
+                db.remove(key);
+            }
+
+            @Override
+            public void flush() {
+            }
+        };
+        holder[0] = new CachedStore(racing, 3600, false);
+        assert Arrays.equals(holder[0].get(k), new byte[10]);
+        // old value is not put back into cache
+        assert holder[0].getSize() == 0;
+
+        // values read from a stale view are not cached
+        db.set(k, new byte[10]);
+        CachedStore stale = new CachedStore(db, 3600, false, () -> false);
+        assert Arrays.equals(stale.get(k), new byte[10]);
+        assert stale.getSize() == 0;
+    }
+}
@@ -0,0 +1,140 @@
+package org.tdf.common.store;
+
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.tdf.common.TrieUtil;
+import org.tdf.common.serialize.Codec;
+import org.tdf.common.trie.Trie;
+import org.tdf.common.util.BigEndian;
+import org.tdf.common.util.HashUtil;
+import org.tdf.common.util.HexBytes;
+
+import java.util.*;
+
+// point read latency of trie nodes and headers under each DBSettings profile
+// usage: DBProfileBenchmark [accounts] [headers] [reads]
+public class DBProfileBenchmark {
+    private static final String DIRECTORY = "local/benchmark";
+
+    interface Backend {
+        DatabaseStore open(DBSettings settings);
+
+        Store<byte[], byte[]> store(DatabaseStore db, String name);
+    }
+
+    static class LevelDbBackend implements Backend {
+        private final org.iq80.leveldb.DBFactory factory;
+
+        LevelDbBackend(org.iq80.leveldb.DBFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public DatabaseStore open(DBSettings settings) {
+            return new LevelDb(factory, DIRECTORY);
+        }
+
+        @Override
+        public Store<byte[], byte[]> store(DatabaseStore db, String name) {
+            return new BasePrefixStore(db, name.getBytes());
+        }
+    }
+
+    static class RocksDbBackend implements Backend {
+        @Override
+        public DatabaseStore open(DBSettings settings) {
+            return new RocksDb(DIRECTORY, x -> settings);
+        }
+
+        @Override
+        public Store<byte[], byte[]> store(DatabaseStore db, String name) {
+            return ((RocksDb) db).column(name);
+        }
+    }
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int headers = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+
+        Map<String, Backend> backends = new LinkedHashMap<>();
+        backends.put("leveldb-iq80", new LevelDbBackend(Iq80DBFactory.factory));
+        backends.put("leveldb-jni", new LevelDbBackend(JniDBFactory.factory));
+        backends.put("rocksdb", new RocksDbBackend());
+
+        for (Map.Entry<String, Backend> b : backends.entrySet()) {
+            for (Map.Entry<String, DBSettings> p : DBSettings.PROFILES.entrySet()) {
+                run(b.getKey(), b.getValue(), p.getKey(), p.getValue(), accounts, headers, reads);
+            }
+        }
+    }
+
+    private static void run(
+        String backendName, Backend backend,
+        String profileName, DBSettings settings,
+        int accounts, int headers, int reads
+    ) {
+        FileUtil.recursiveDelete(DIRECTORY);
+        Random rd = new Random(0);
+        DatabaseStore db = backend.open(settings);
+        db.init(settings);
+
+        // write trie nodes by a real trie
+        Trie<byte[], byte[]> trie = TrieUtil.<byte[], byte[]>builder()
+            .store(backend.store(db, "a"))
+            .keyCodec(Codec.identity())
+            .valueCodec(Codec.identity())
+            .build();
+        for (int i = 0; i < accounts; i++) {
+            byte[] value = new byte[80];
+            rd.nextBytes(value);
+            trie.set(HashUtil.sha3(BigEndian.encodeInt32(i)), value);
+        }
+        trie.commit();
+        List<byte[]> nodes = new ArrayList<>();
+        for (HexBytes h : trie.dumpKeys()) nodes.add(h.getBytes());
+
+        // write headers
+        Store<byte[], byte[]> headerStore = backend.store(db, "h");
+        List<byte[]> headerKeys = new ArrayList<>(headers);
+        for (int i = 0; i < headers; i++) {
+            byte[] v = new byte[512];
+            rd.nextBytes(v);
+            byte[] k = HashUtil.sha3(v);
+            headerKeys.add(k);
+            headerStore.set(k, v);
+        }
+
+        // reopen to drop memory tables
+        db.close();
+        db.init(settings);
+
+        long[] nodeLatency = measure(backend.store(db, "a"), nodes, reads, rd);
+        long[] headerLatency = measure(backend.store(db, "h"), headerKeys, reads, rd);
+        System.out.printf(
+            "%-14s %-8s trie node avg %6d ns p50 %6d ns p99 %7d ns | header avg %6d ns p50 %6d ns p99 %7d ns%n",
+            backendName, profileName,
+            nodeLatency[0], nodeLatency[1], nodeLatency[2],
+            headerLatency[0], headerLatency[1], headerLatency[2]
+        );
+        db.close();
+        FileUtil.recursiveDelete(DIRECTORY);
+    }
+
+    // return average, p50 and p99 latency in nanoseconds
+    private static long[] measure(Store<byte[], byte[]> store, List<byte[]> keys, int reads, Random rd) {
+        long[] latency = new long[reads];
+        long sum = 0;
+        for (int i = 0; i < reads; i++) {
+            byte[] k = keys.get(rd.nextInt(keys.size()));
+            long start = System.nanoTime();
+            byte[] v = store.get(k);
+            latency[i] = System.nanoTime() - start;
+            sum += latency[i];
+            if (v == null || v.length == 0)
+                throw new RuntimeException("key not found " + HexBytes.encode(k));
+        }
+        Arrays.sort(latency);
+        return new long[]{sum / reads, latency[reads / 2], latency[reads * 99 / 100]};
+    }
+}
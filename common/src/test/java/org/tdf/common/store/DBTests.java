@@ -8,6 +8,7 @@ import org.tdf.common.serialize.Codecs;
 import org.tdf.common.util.ByteArrayMap;
 import org.tdf.common.util.FastByteComparisons;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -59,4 +60,43 @@ public abstract class DBTests {
         databaseStore.putAll(rows.entrySet());
         assert databaseStore.get("1".getBytes()) == null || databaseStore.get("1".getBytes()).length == 0;
     }
+
+    @Test
+    public void testScan() {
+        for (int i = 0; i < 10; i++) {
+            wrapped.set("a" + i, "" + i);
+            wrapped.set("b" + i, "" + i);
+        }
+        List<Map.Entry<byte[], byte[]>> all = RangeStore.scanPrefix(databaseStore, "a".getBytes(), -1);
+        assert all.size() == 10;
+        for (int i = 0; i < 10; i++) {
+            assert new String(all.get(i).getKey()).equals("a" + i);
+        }
+
+        List<Map.Entry<byte[], byte[]>> page = databaseStore.scan("a5".getBytes(), "b".getBytes(), 3);
+        assert page.size() == 3;
+        assert new String(page.get(0).getKey()).equals("a5");
+        assert new String(page.get(2).getValue()).equals("7");
+
+        assert databaseStore.scan("b".getBytes(), null, -1).size() == 10;
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        wrapped.set("1", "1");
+        try (AutoCloseable ignored = databaseStore.snapshot()) {
+            // write by another thread after snapshot
+            Thread t = new Thread(() -> {
+                wrapped.set("1", "2");
+                wrapped.set("2", "2");
+            });
+            t.start();
+            t.join();
+            assert wrapped.get("1").equals("1");
+            assert wrapped.get("2") == null;
+            assert databaseStore.scan(null, null, -1).size() == 1;
+        }
+        assert wrapped.get("1").equals("2");
+        assert wrapped.get("2").equals("2");
+    }
 }
@@ -1,6 +1,7 @@
 package org.tdf.common.store;
 
 import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -10,4 +11,21 @@ public class LevelDBTests extends DBTests {
     DatabaseStore getDB() {
         return new LevelDb(Iq80DBFactory.factory, "local/leveldb");
     }
+
+    @Test
+    public void testSnapshotReleasedByClose() throws Exception {
+        wrapped.set("1", "1");
+        AutoCloseable s = databaseStore.snapshot();
+        databaseStore.close();
+        databaseStore.init(DBSettings.DEFAULT);
+        // snapshot pinned before close is not used against reopened db
+        try {
+            wrapped.get("1");
+            assert false;
+        } catch (RuntimeException e) {
+            assert e.getMessage().contains("released");
+        }
+        s.close();
+        assert wrapped.get("1").equals("1");
+    }
 }
@@ -0,0 +1,77 @@
+package org.tdf.common.store;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class MappedLogTests {
+    private static final String DIRECTORY = "local/log";
+
+    @After
+    public void after() {
+        FileUtil.recursiveDelete(DIRECTORY);
+    }
+
+    @Test
+    public void testAppend() {
+        Random rd = new Random(0);
+        // small segments to test rolling
+        MappedLog log = new MappedLog(DIRECTORY, 4096);
+        List<byte[]> records = new ArrayList<>();
+        List<Long> positions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] r = new byte[1 + rd.nextInt(1000)];
+            rd.nextBytes(r);
+            records.add(r);
+            positions.add(log.append(r));
+        }
+        // forces every segment rolled over since the last flush
+        log.flush();
+        for (int i = 0; i < records.size(); i++) {
+            assert Arrays.equals(log.read(positions.get(i)), records.get(i));
+        }
+        log.close();
+
+        // append after reopen
+        log = new MappedLog(DIRECTORY, 4096);
+        long pos = log.append(new byte[]{1, 2, 3});
+        assert pos > positions.get(positions.size() - 1);
+        assert Arrays.equals(log.read(pos), new byte[]{1, 2, 3});
+        for (int i = 0; i < records.size(); i++) {
+            assert Arrays.equals(log.read(positions.get(i)), records.get(i));
+        }
+        log.close();
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        MappedLog log = new MappedLog(DIRECTORY, 4096);
+        long first = log.append(new byte[]{1, 2, 3});
+        long torn = log.append(new byte[100]);
+        log.close();
+
+        // payload of the last record is partially written before crash
+        try (RandomAccessFile f = new RandomAccessFile(Paths.get(DIRECTORY, "000000.log").toFile(), "rw")) {
+            f.seek(torn + 8 + 50);
+            f.write(1);
+        }
+
+        log = new MappedLog(DIRECTORY, 4096);
+        assert Arrays.equals(log.read(first), new byte[]{1, 2, 3});
+        assert log.readOrNull(torn) == null;
+        // write position is recovered after the last complete record
+        assert log.append(new byte[]{4}) == torn;
+        assert Arrays.equals(log.read(torn), new byte[]{4});
+        assert log.readOrNull(1 << 20) == null;
+        log.close();
+    }
+}
@@ -0,0 +1,12 @@
+package org.tdf.common.store;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemoryDBTests extends DBTests {
+    @Override
+    DatabaseStore getDB() {
+        return new MemoryDatabaseStore();
+    }
+}
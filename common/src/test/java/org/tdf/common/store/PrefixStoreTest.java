@@ -7,15 +7,22 @@ import org.tdf.common.serialize.Codecs;
 import org.tdf.common.util.HexBytes;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 
 @RunWith(JUnit4.class)
 public class PrefixStoreTest {
 
+    private static RangeStore<HexBytes, HexBytes> contractStorage() {
+        return new StoreWrapper<>(new MemoryDatabaseStore(), Codecs.INSTANCE.getHex(), Codecs.INSTANCE.getHex());
+    }
+
     @Test
     public void test0() {
-        Store<HexBytes, HexBytes> s = new MapStore<>();
+        RangeStore<HexBytes, HexBytes> s = contractStorage();
         PrefixStore<String, String> p = new PrefixStore<>(
             s,
             HexBytes.fromBytes("aaa".getBytes(StandardCharsets.US_ASCII)),
@@ -27,4 +34,42 @@ public class PrefixStoreTest {
 //        Map<String, String> m = new HashMap<>(p.asMap());
         assertEquals("bbb", p.get("aaa"));
     }
+
+    @Test
+    public void testScan() {
+        RangeStore<HexBytes, HexBytes> s = contractStorage();
+        PrefixStore<String, String> p = new PrefixStore<>(
+            s,
+            HexBytes.fromBytes("a".getBytes(StandardCharsets.US_ASCII)),
+            Codecs.string,
+            Codecs.string
+        );
+        PrefixStore<String, String> other = new PrefixStore<>(
+            s,
+            HexBytes.fromBytes("b".getBytes(StandardCharsets.US_ASCII)),
+            Codecs.string,
+            Codecs.string
+        );
+        for (int i = 0; i < 100; i++) {
+            p.set(String.format("%03d", i), "" + i);
+            other.set(String.format("%03d", i), "" + i);
+        }
+        p.remove("050");
+
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<? extends String, ? extends String> e : p) {
+            keys.add(e.getKey());
+        }
+        assertEquals(99, keys.size());
+        assertEquals("000", keys.get(0));
+        assertEquals("099", keys.get(98));
+        assert !keys.contains("050");
+
+        // paging
+        List<Map.Entry<String, String>> page = p.scan("010", 5);
+        assertEquals(5, page.size());
+        assertEquals("011", page.get(0).getKey());
+        assertEquals("015", page.get(4).getKey());
+        assertEquals("15", page.get(4).getValue());
+    }
 }
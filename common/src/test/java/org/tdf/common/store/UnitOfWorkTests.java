@@ -0,0 +1,103 @@
+package org.tdf.common.store;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.tdf.common.serialize.Codecs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class UnitOfWorkTests {
+    private MemoryDatabaseStore a;
+    private MemoryDatabaseStore b;
+    private AtomicInteger batches;
+    private UnitOfWork unitOfWork;
+    private Store<String, String> wrappedA;
+    private Store<String, String> wrappedB;
+
+    @Before
+    public void before() {
+        a = new MemoryDatabaseStore();
+        b = new MemoryDatabaseStore();
+        batches = new AtomicInteger();
+        unitOfWork = new UnitOfWork(stores -> {
+            batches.incrementAndGet();
+            stores.forEach((name, rows) -> (name.equals("a") ? a : b).putAll(rows));
+        });
+        wrappedA = new StoreWrapper<>(unitOfWork.wrap("a", a), Codecs.string, Codecs.string);
+        wrappedB = new StoreWrapper<>(unitOfWork.wrap("b", b), Codecs.string, Codecs.string);
+    }
+
+    @Test
+    public void testCommit() {
+        wrappedA.set("0", "0");
+        assert batches.get() == 0;
+
+        unitOfWork.begin();
+        wrappedA.set("1", "1");
+        wrappedB.set("1", "2");
+        wrappedA.remove("0");
+        // read your writes
+        assert wrappedA.get("1").equals("1");
+        assert a.get("1".getBytes()) == null;
+
+        // nested unit of work joins the outer one
+        unitOfWork.begin();
+        wrappedB.set("2", "2");
+        unitOfWork.commit();
+        assert b.get("2".getBytes()) == null;
+
+        unitOfWork.commit();
+        assert batches.get() == 1;
+        assert !unitOfWork.getActive();
+        assert wrappedA.get("1").equals("1");
+        assert wrappedB.get("1").equals("2");
+        assert wrappedB.get("2").equals("2");
+        assert wrappedA.get("0") == null;
+    }
+
+    @Test
+    public void testRollback() {
+        unitOfWork.begin();
+        wrappedA.set("1", "1");
+        unitOfWork.flush();
+        wrappedA.set("2", "2");
+        unitOfWork.rollback();
+        unitOfWork.commit();
+        assert batches.get() == 1;
+        assert wrappedA.get("1").equals("1");
+        assert wrappedA.get("2") == null;
+    }
+
+    @Test
+    public void testCachingStoreWrapper() throws Exception {
+        CachingStoreWrapper<String, String> cached =
+            new CachingStoreWrapper<>(unitOfWork.wrap("c", b), Codecs.string, Codecs.string, unitOfWork, 16);
+        cached.set("1", "1");
+        assert cached.get("1").equals("1");
+        // served by cache
+        b.remove("1".getBytes());
+        assert cached.get("1").equals("1");
+        b.set("1".getBytes(), "1".getBytes());
+
+        AutoCloseable snapshot = unitOfWork.snapshot(b::snapshot);
+        assert cached.get("1").equals("1");
+
+        // read your writes, cache is invalidated by commit
+        Thread writer = new Thread(() -> {
+            unitOfWork.begin();
+            cached.set("1", "2");
+            assert cached.get("1").equals("2");
+            unitOfWork.commit();
+        });
+        writer.start();
+        writer.join();
+
+        // snapshot reader never sees value committed after it
+        assert cached.get("1").equals("1");
+        snapshot.close();
+        assert cached.get("1").equals("2");
+    }
+}
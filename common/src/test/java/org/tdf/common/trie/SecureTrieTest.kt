@@ -46,4 +46,46 @@ class SecureTrieTest {
         assert(secured.revert(root2)["1".toByteArray()] == "1")
         assert(secured.revert(root2)["2".toByteArray()] == "2")
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testPutAll() {
+        val entries = (0 until 100).associate { it.toString().toByteArray() to it.toString() }
+        entries.forEach { (k, v) -> secured[k] = v }
+        val root = secured.commit()
+        // entries are sorted by hashed keys internally
+        val bulk = secured.revert()
+        bulk.putAll(entries.entries)
+        assert(bulk.rootHash == root)
+        assert(bulk["42".toByteArray()] == "42")
+    }
+
+    @Test
+    fun testPreimages() {
+        val trie = builder<String, String>()
+            .keyCodec(Codecs.string)
+            .valueCodec(Codecs.string)
+            .store(ByteArrayMapStore())
+            .build()
+        val preimages = PreimageCache(Codecs.string, 16, ByteArrayMapStore())
+        val s = SecureTrie(trie, preimages)
+        // hashed key is computed once
+        assert(preimages.hash("1") === preimages.hash("1"))
+
+        (0 until 100).forEach { s[it.toString()] = it.toString() }
+        val root = s.commit()
+        val keys = mutableSetOf<String>()
+        // keys evicted from cache are read from store
+        s.revert(root).traverse { k, v ->
+            assert(k == v)
+            keys.add(k)
+            true
+        }
+        assert(keys.size == 100)
+
+        try {
+            SecureTrie(trie.revert(root)).traverse { _, _ -> true }
+            assert(false)
+        } catch (ignored: UnsupportedOperationException) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.tdf.common.trie;
+
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.tdf.common.serialize.Codec;
+import org.tdf.common.store.*;
+import org.tdf.common.util.HexBytes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// throughput of trie operations on memory and leveldb stores, the first rounds are warmup
+// usage: TrieBenchmark [keys] [rounds]
+public class TrieBenchmark {
+    private static final String DIRECTORY = "local/trie-benchmark";
+    private static final String[] OPS = {"insert", "commit", "get", "revert+get", "delete"};
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        run("memory", false, keys, rounds);
+        run("leveldb", true, keys, rounds);
+        FileUtil.recursiveDelete(DIRECTORY);
+    }
+
+    private static void run(String name, boolean leveldb, int keys, int rounds) {
+        Random rd = new Random(0);
+        // nanoseconds per operation of measured rounds
+        long[] total = new long[OPS.length];
+        int warmup = rounds / 2;
+        for (int round = 0; round < rounds; round++) {
+            LevelDb db = null;
+            Store<byte[], byte[]> store = new ByteArrayMapStore<>();
+            if (leveldb) {
+                FileUtil.recursiveDelete(DIRECTORY);
+                db = new LevelDb(Iq80DBFactory.factory, DIRECTORY);
+                db.init(DBSettings.DEFAULT);
+                store = new BasePrefixStore(db, new byte[]{'a'});
+            }
+            List<byte[]> ks = new ArrayList<>(keys);
+            for (int i = 0; i < keys; i++) {
+                byte[] k = new byte[32];
+                rd.nextBytes(k);
+                ks.add(k);
+            }
+            byte[] value = new byte[80];
+            rd.nextBytes(value);
+            long[] elapsed = new long[OPS.length];
+
+            NodeCache cache = new NodeCache(NodeCache.DEFAULT_CAPACITY);
+            TrieImpl<byte[], byte[]> trie = new TrieImpl<>(store, Codec.identity(), Codec.identity(), null, TrieImpl.PARALLEL_THRESHOLD, 0, cache);
+            long start = System.nanoTime();
+            for (byte[] k : ks) trie.set(k, value);
+            elapsed[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            HexBytes root = trie.commit();
+            elapsed[1] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] k : ks) check(trie.get(k));
+            elapsed[2] = System.nanoTime() - start;
+
+            // nodes are loaded from store again
+            cache.clear();
+            start = System.nanoTime();
+            Trie<byte[], byte[]> reverted = trie.revert(root, store);
+            for (byte[] k : ks) check(reverted.get(k));
+            elapsed[3] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] k : ks) reverted.remove(k);
+            reverted.commit();
+            elapsed[4] = System.nanoTime() - start;
+
+            if (db != null) db.close();
+            if (round < warmup) continue;
+            for (int i = 0; i < OPS.length; i++) total[i] += elapsed[i] / keys;
+        }
+        StringBuilder sb = new StringBuilder(String.format("%-8s", name));
+        for (int i = 0; i < OPS.length; i++) {
+            sb.append(String.format(" | %s %6d ns/op", OPS[i], total[i] / (rounds - warmup)));
+        }
+        System.out.println(sb);
+    }
+
+    private static void check(byte[] v) {
+        if (v == null) throw new RuntimeException("key not found");
+    }
+}
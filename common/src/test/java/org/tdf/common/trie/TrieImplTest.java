@@ -1,9 +1,17 @@
 package org.tdf.common.trie;
 
+import com.github.salpadding.rlpstream.Rlp;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.tdf.common.serialize.Codec;
 import org.tdf.common.serialize.Codecs;
+import org.tdf.common.store.ByteArrayMapStore;
+import org.tdf.common.store.PrunableStore;
+import org.tdf.common.util.FastByteComparisons;
+import org.tdf.common.util.HexBytes;
+
+import java.util.*;
 
 import static org.tdf.common.TrieUtil.newInstance;
 
@@ -17,4 +25,299 @@ public class TrieImplTest extends AbstractTrieTest {
         return newInstance(new NoDoubleDeleteStore(), Codec.identity(), Codec.identity());
     }
 
+    @Test
+    public void testParallelCommit() {
+        NoDoubleDeleteStore s0 = new NoDoubleDeleteStore();
+        NoDoubleDeleteStore s1 = new NoDoubleDeleteStore();
+        Trie<byte[], byte[]> sequential = new TrieImpl<>(s0, Codec.identity(), Codec.identity(), null, 0);
+        // small threshold to fork at every level
+        Trie<byte[], byte[]> parallel = new TrieImpl<>(s1, Codec.identity(), Codec.identity(), null, 4);
+        Random rd = new Random(0);
+
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < 2000; i++) {
+                byte[] k = new byte[1 + rd.nextInt(8)];
+                rd.nextBytes(k);
+                if (rd.nextInt(4) == 0) {
+                    sequential.remove(k);
+                    parallel.remove(k);
+                    continue;
+                }
+                byte[] v = new byte[1 + rd.nextInt(40)];
+                rd.nextBytes(v);
+                sequential.set(k, v);
+                parallel.set(k, v);
+            }
+            HexBytes root = sequential.commit();
+            assert root.equals(parallel.commit());
+            // same nodes are written and removed
+            assert s0.getCache().size() == s1.getCache().size();
+            for (byte[] k : s0.getCache().keySet()) {
+                assert s1.get(k) != null;
+            }
+        }
+    }
+
+    @Test
+    public void testStackTrie() {
+        Random rd = new Random(0);
+        for (int n : new int[]{1, 2, 17, 300, 3000}) {
+            // short keys, many of them are prefixes of others
+            TreeMap<byte[], byte[]> entries = new TreeMap<>(
+                (x, y) -> FastByteComparisons.compareTo(x, 0, x.length, y, 0, y.length)
+            );
+            for (int i = 0; i < n; i++) {
+                byte[] k = new byte[1 + rd.nextInt(3)];
+                rd.nextBytes(k);
+                byte[] v = new byte[1 + rd.nextInt(40)];
+                rd.nextBytes(v);
+                entries.put(k, v);
+            }
+            Trie<byte[], byte[]> expected = new TrieImpl<>();
+            entries.forEach(expected::set);
+            HexBytes root = expected.commit();
+
+            NoDoubleDeleteStore store = new NoDoubleDeleteStore();
+            StackTrie st = new StackTrie(store);
+            entries.forEach(st::put);
+            assert HexBytes.fromBytes(st.commit()).equals(root);
+
+            Trie<byte[], byte[]> trie = new TrieImpl<>(store, Codec.identity(), Codec.identity(), null, 0);
+            trie.putAll(entries.entrySet());
+            assert !trie.isDirty();
+            assert trie.getRootHash().equals(root);
+            entries.forEach((k, v) -> {
+                assert Arrays.equals(trie.get(k), v);
+            });
+        }
+
+        // keys of ordered list are rlp encoded indices
+        List<byte[]> values = new ArrayList<>();
+        Trie<byte[], byte[]> expected = new TrieImpl<>();
+        for (int i = 0; i < 300; i++) {
+            byte[] v = new byte[1 + rd.nextInt(40)];
+            rd.nextBytes(v);
+            values.add(v);
+            expected.set(Rlp.encodeInt(i), v);
+        }
+        assert HexBytes.fromBytes(StackTrie.orderedListRoot(values)).equals(expected.commit());
+
+        // entries in any order are sorted by encoded keys
+        Map<String, String> m = new HashMap<>();
+        Trie<String, String> one = newStringTrie();
+        for (int i = 0; i < 100; i++) {
+            m.put("k" + i, "v" + i);
+            one.set("k" + i, "v" + i);
+        }
+        Trie<String, String> bulk = newStringTrie();
+        TrieKt.putAllUnsorted(bulk, m);
+        assert !bulk.isDirty();
+        assert bulk.getRootHash().equals(one.commit());
+    }
+
+    @Test
+    public void testNodeCache() {
+        NodeCache cache = new NodeCache(NodeCache.DEFAULT_CAPACITY);
+        PrunableStore store = new PrunableStore(new ByteArrayMapStore<>(), cache);
+        Trie<byte[], byte[]> trie = new TrieImpl<>(store, Codec.identity(), Codec.identity(), null, 0, 0, cache);
+        Random rd = new Random(0);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] k = new byte[1 + rd.nextInt(8)];
+            rd.nextBytes(k);
+            keys.add(k);
+            trie.set(k, k);
+        }
+        HexBytes root = trie.commit();
+        Trie<byte[], byte[]> t0 = trie.revert(root, trie.getStore());
+        Trie<byte[], byte[]> t1 = trie.revert(root, trie.getStore());
+        // decode all nodes into cache
+        keys.forEach(k -> {
+            assert Arrays.equals(t0.get(k), k);
+        });
+
+        // modifications are not visible to tries sharing cached nodes
+        keys.forEach(k -> t0.set(k, new byte[]{1}));
+        t0.commit();
+        keys.forEach(k -> {
+            assert Arrays.equals(t1.get(k), k);
+        });
+
+        // cached nodes are decoded without store
+        Node n = Node.fromRootHash(root.getBytes(), new NoDoubleDeleteStore(), cache);
+        keys.forEach(k -> {
+            assert Arrays.equals(n.get(TrieKey.fromNormal(k)), k);
+        });
+
+        // removed nodes are not resolved from cache after invalidated
+        store.delete(root.getBytes());
+        store.invalidate(root.getBytes());
+        try {
+            Node.fromRootHash(root.getBytes(), store, cache).get(TrieKey.fromNormal(keys.get(0)));
+            assert false;
+        } catch (RuntimeException ignored) {
+        }
+
+        // tries without cache read store
+        try {
+            Node.fromRootHash(root.getBytes(), new NoDoubleDeleteStore()).get(TrieKey.fromNormal(keys.get(0)));
+            assert false;
+        } catch (RuntimeException ignored) {
+        }
+    }
+
+    @Test
+    public void testScan() {
+        Random rd = new Random(0);
+        TreeMap<byte[], byte[]> entries = new TreeMap<>(
+            (x, y) -> FastByteComparisons.compareTo(x, 0, x.length, y, 0, y.length)
+        );
+        Trie<byte[], byte[]> trie = newBytesTrie();
+        for (int i = 0; i < 2000; i++) {
+            byte[] k = new byte[1 + rd.nextInt(3)];
+            rd.nextBytes(k);
+            entries.put(k, k);
+            trie.set(k, k);
+        }
+        // dirty trie is scanned in memory
+        for (int c = 0; c < 2; c++) {
+            for (int i = 0; i < 100; i++) {
+                byte[] start = new byte[rd.nextInt(3)];
+                rd.nextBytes(start);
+                byte[] end = new byte[1 + rd.nextInt(3)];
+                rd.nextBytes(end);
+                List<Map.Entry<byte[], byte[]>> r = trie.scan(start.length == 0 ? null : start, end, -1);
+                List<byte[]> expected = new ArrayList<>(
+                    FastByteComparisons.compareTo(start, 0, start.length, end, 0, end.length) >= 0 ?
+                        Collections.emptySet() : entries.subMap(start, end).keySet()
+                );
+                assert r.size() == expected.size();
+                for (int j = 0; j < r.size(); j++) {
+                    assert Arrays.equals(r.get(j).getKey(), expected.get(j));
+                }
+            }
+            trie.commit();
+            trie = trie.revert(trie.getRootHash(), trie.getStore());
+        }
+
+        // resume from the least key greater than last key
+        List<byte[]> keys = new ArrayList<>();
+        byte[] start = null;
+        while (true) {
+            List<Map.Entry<byte[], byte[]>> r = trie.scan(start, null, 100);
+            r.forEach(e -> keys.add(e.getKey()));
+            if (r.size() < 100) break;
+            byte[] last = r.get(r.size() - 1).getKey();
+            start = Arrays.copyOf(last, last.length + 1);
+        }
+        assert keys.size() == entries.size();
+        int i = 0;
+        for (byte[] k : entries.keySet()) {
+            assert Arrays.equals(keys.get(i++), k);
+        }
+    }
+
+    @Test
+    public void testDiff() {
+        Random rd = new Random(0);
+        Comparator<byte[]> cmp = (x, y) -> FastByteComparisons.compareTo(x, 0, x.length, y, 0, y.length);
+        TreeMap<byte[], byte[]> before = new TreeMap<>(cmp);
+        for (int i = 0; i < 2000; i++) {
+            byte[] k = new byte[1 + rd.nextInt(4)];
+            rd.nextBytes(k);
+            before.put(k, k);
+        }
+        TreeMap<byte[], byte[]> after = new TreeMap<>(before);
+        List<byte[]> keys = new ArrayList<>(before.keySet());
+        for (int i = 0; i < 100; i++) {
+            byte[] k = keys.get(rd.nextInt(keys.size()));
+            if (rd.nextBoolean()) {
+                after.remove(k);
+            } else {
+                after.put(k, new byte[]{(byte) i});
+            }
+            k = new byte[1 + rd.nextInt(4)];
+            rd.nextBytes(k);
+            after.put(k, k);
+        }
+
+        // both tries are in the same store and share unchanged subtrees
+        Trie<byte[], byte[]> a = newBytesTrie();
+        before.forEach(a::set);
+        HexBytes rootA = a.commit();
+        Trie<byte[], byte[]> b = a.revert(a.getNullHash(), a.getStore());
+        after.forEach(b::set);
+        HexBytes rootB = b.commit();
+
+        TreeSet<byte[]> changed = new TreeSet<>(cmp);
+        changed.addAll(before.keySet());
+        changed.addAll(after.keySet());
+        changed.removeIf(k -> before.containsKey(k) && after.containsKey(k) && Arrays.equals(before.get(k), after.get(k)));
+
+        List<TrieDiff<byte[]>> diff = new ArrayList<>();
+        a.diff(rootB).iterator().forEachRemaining(diff::add);
+        assert diff.size() == changed.size();
+        int i = 0;
+        for (byte[] k : changed) {
+            TrieDiff<byte[]> d = diff.get(i++);
+            assert Arrays.equals(d.getKey().getBytes(), k);
+            assert Arrays.equals(d.getBefore(), before.get(k));
+            assert Arrays.equals(d.getAfter(), after.get(k));
+        }
+
+        // reversed diff and diff against empty trie
+        List<TrieDiff<byte[]>> reversed = new ArrayList<>();
+        b.revert(rootB, b.getStore()).diff(rootA).iterator().forEachRemaining(reversed::add);
+        assert reversed.size() == changed.size();
+        assert reversed.stream().allMatch(d -> d.isAdded() == (d.getBefore() == null));
+        List<TrieDiff<byte[]>> all = new ArrayList<>();
+        a.diff(a.getNullHash()).iterator().forEachRemaining(all::add);
+        assert all.size() == before.size() && all.stream().allMatch(TrieDiff::isRemoved);
+        assert !a.diff(rootA).iterator().hasNext();
+    }
+
+    @Test
+    public void testFlushThreshold() {
+        Random rd = new Random(0);
+        TrieImpl<byte[], byte[]> once = new TrieImpl<>(new ByteArrayMapStore<>(), Codec.identity(), Codec.identity());
+        TrieImpl<byte[], byte[]> bounded = new TrieImpl<>(
+            new ByteArrayMapStore<>(), Codec.identity(), Codec.identity(), null, TrieImpl.PARALLEL_THRESHOLD, 64 * 1024
+        );
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] k = new byte[32];
+            rd.nextBytes(k);
+            keys.add(k);
+            once.set(k, k);
+            bounded.set(k, k);
+            assert bounded.getDirtySize() < 64 * 1024;
+        }
+        for (int i = 0; i < 1000; i++) {
+            once.remove(keys.get(i));
+            bounded.remove(keys.get(i));
+        }
+        assert once.getDirtySize() > 64 * 1024;
+        // intermediate commits do not change root hash
+        assert once.commit().equals(bounded.commit());
+        assert bounded.getDirtySize() == 0;
+        assert Arrays.equals(bounded.get(keys.get(4999)), keys.get(4999));
+    }
+
+    // the caller reuses its key array after put
+    @Test
+    public void testReuseKey() {
+        TrieImpl<byte[], byte[]> trie = new TrieImpl<>(new ByteArrayMapStore<>(), Codec.identity(), Codec.identity());
+        StackTrie stack = new StackTrie(new ByteArrayMapStore<>());
+        byte[] k = new byte[32];
+        for (int i = 0; i < 256; i++) {
+            k[31] = (byte) i;
+            trie.set(k, new byte[]{(byte) i});
+            stack.put(k, new byte[]{(byte) i});
+        }
+        for (int i = 0; i < 256; i++) {
+            k[31] = (byte) i;
+            assert Arrays.equals(trie.get(k), new byte[]{(byte) i});
+        }
+        assert Arrays.equals(trie.commit().getBytes(), stack.commit());
+    }
 }
@@ -17,4 +17,20 @@ public class TrieKeyTest {
         assert k.get(2) == 3;
         assert Arrays.equals(k.toPacked(false), new byte[]{0x11, 0x23});
     }
+
+    @Test
+    public void testSlice() {
+        TrieKey k = TrieKey.fromNormal(new byte[]{0x12, 0x34, 0x56});
+        TrieKey s = k.shift(1).prefix(3);
+        assert s.size() == 3;
+        assert s.equals(TrieKey.fromPacked(new byte[]{0x12, 0x34}));
+        assert s.hashCode() == TrieKey.fromPacked(new byte[]{0x12, 0x34}).hashCode();
+        assert Arrays.equals(s.toPacked(true), new byte[]{0x32, 0x34});
+        assert Arrays.equals(k.shift(1).prefix(4).toNormal(), new byte[]{0x23, 0x45});
+        assert Arrays.equals(k.shift(1).prefix(4).toPacked(false), new byte[]{0x00, 0x23, 0x45});
+        assert k.commonPrefixSize(TrieKey.fromNormal(new byte[]{0x12, 0x35})) == 3;
+        assert k.shift(1).commonPrefixSize(TrieKey.fromPacked(new byte[]{0x12, 0x34, 0x57})) == 4;
+        assert k.matchAt(1, s);
+        assert !k.matchAt(2, s);
+    }
 }
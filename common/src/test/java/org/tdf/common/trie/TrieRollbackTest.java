@@ -20,8 +20,10 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RunWith(JUnit4.class)
 public class TrieRollbackTest {
@@ -114,6 +116,63 @@ public class TrieRollbackTest {
         }
     }
 
+    // mark nodes of the last roots, sweep others, the last roots are still complete
+    @Test
+    public void testMark() {
+        int retain = 10;
+        Set<HexBytes> marked = new HashSet<>();
+        Set<HexBytes> expected = new HashSet<>();
+        for (int i = roots.size() - retain; i < roots.size(); i++) {
+            Trie<String, String> t = trie.revert(roots.get(i), database);
+            List<String> values = new ArrayList<>();
+            t.mark(marked, values::add);
+            expected.addAll(t.dumpKeys());
+            assert marked.containsAll(t.dumpKeys());
+        }
+        assert marked.equals(expected);
+
+        List<byte[]> garbage = new ArrayList<>();
+        ((ByteArrayMapStore<byte[]>) delegate).getCache().keySet().forEach(k -> {
+            if (!marked.contains(HexBytes.fromBytes(k))) garbage.add(k);
+        });
+        assert !garbage.isEmpty();
+        garbage.forEach(delegate::remove);
+
+        for (int i = roots.size() - retain; i < roots.size(); i++) {
+            assert equals(dump(trie.revert(roots.get(i), database)), dumps.get(roots.get(i).getHex()));
+        }
+    }
+
+    // mark the oldest retained root fully and others by difference from previous root
+    @Test
+    public void testMarkNew() {
+        int retain = 10;
+        Set<HexBytes> marked = new HashSet<>();
+        Set<HexBytes> expected = new HashSet<>();
+        HexBytes base = null;
+        for (int i = roots.size() - retain; i < roots.size(); i++) {
+            Trie<String, String> t = trie.revert(roots.get(i), database);
+            Set<HexBytes> added = new HashSet<>();
+            t.markNew(base, k -> added.add(HexBytes.fromBytes(k)), v -> {
+            });
+            if (base != null) assert added.size() < t.dumpKeys().size();
+            marked.addAll(added);
+            expected.addAll(t.dumpKeys());
+            base = roots.get(i);
+        }
+        assert marked.equals(expected);
+
+        List<byte[]> garbage = new ArrayList<>();
+        ((ByteArrayMapStore<byte[]>) delegate).getCache().keySet().forEach(k -> {
+            if (!marked.contains(HexBytes.fromBytes(k))) garbage.add(k);
+        });
+        garbage.forEach(delegate::remove);
+
+        for (int i = roots.size() - retain; i < roots.size(); i++) {
+            assert equals(dump(trie.revert(roots.get(i), database)), dumps.get(roots.get(i).getHex()));
+        }
+    }
+
     private Map<String, String> dump(Trie<String, String> trie) {
         Map<String, String> m = new HashMap<>();
         trie.traverse((k, v) -> {
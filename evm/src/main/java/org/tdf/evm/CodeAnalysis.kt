@@ -0,0 +1,294 @@
+package org.tdf.evm
+
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * analysis of contract code shared by all executions of the same code:
+ *
+ * 1. a JUMPDEST byte is a valid jump destination only if it is an opcode rather than push data
+ * 2. code is translated into instructions, PUSHn, DUPn, SWAPn and LOGn are dispatched by a single code with argument n,
+ * push data are decoded into stack slots, and targets of jumps right after a push are resolved to instruction index
+ * 3. instructions are split into basic blocks, a block is entered only at its first instruction and
+ * left only after its last instruction, blocks are the unit of block metering and compilation
+ * 4. common sequences of solidity output inside a block are fused into virtual instructions dispatched once,
+ * ops of a sequence are static in gas table, so their gas is charged together with the block
+ *
+ * @param fuse false if fused instructions are the same as instructions
+ */
+class CodeAnalysis @JvmOverloads constructor(val code: ByteArray, private val fuse: Boolean = true) {
+    // bit i is set if code[i] is a JUMPDEST opcode
+    private val jumpDests = LongArray((code.size + 63) ushr 6)
+
+    /**
+     * instructions, low 8 bits is dispatch code, the next 8 bits is opcode
+     */
+    val insts: IntArray
+
+    /**
+     * offset of slot in immediates for push, n for dup, swap and log,
+     * instruction index of target or -1 for jump and jumpi
+     */
+    val args: IntArray
+
+    /**
+     * position in code of instructions
+     */
+    val pcs: IntArray
+
+    /**
+     * decoded push data
+     */
+    val immediates: IntArray
+
+    /**
+     * index of first instruction of basic blocks in ascending order
+     */
+    val blocks: IntArray
+
+    init {
+        var n = 0
+        var pushes = 0
+        var pc = 0
+        while (pc < code.size) {
+            val op = code[pc].toInt() and 0xff
+            if (op == OpCodes.JUMPDEST) {
+                jumpDests[pc ushr 6] = jumpDests[pc ushr 6] or (1L shl pc)
+            } else if (op >= OpCodes.PUSH1 && op <= OpCodes.PUSH32) {
+                // skip push data
+                pc += op - OpCodes.PUSH1 + 1
+                pushes++
+            }
+            n++
+            pc++
+        }
+
+        insts = IntArray(n)
+        args = IntArray(n)
+        pcs = IntArray(n)
+        immediates = IntArray(pushes * SlotUtils.SLOT_SIZE)
+        val tmp = ByteArray(SlotUtils.SLOT_BYTE_ARRAY_SIZE)
+        var p = 0
+        pc = 0
+        for (i in 0 until n) {
+            val op = code[pc].toInt() and 0xff
+            pcs[i] = pc
+            var dispatch = op
+            when (op) {
+                // codes of virtual instructions are not valid opcodes
+                in PUSH_JUMP..SELECTOR -> dispatch = INVALID
+                in OpCodes.PUSH1..OpCodes.PUSH32 -> {
+                    dispatch = OpCodes.PUSH1
+                    val size = op - OpCodes.PUSH1 + 1
+                    // truncated push data is left padded
+                    val len = minOf(size, code.size - pc - 1)
+                    Arrays.fill(tmp, 0)
+                    System.arraycopy(code, pc + 1, tmp, SlotUtils.SLOT_BYTE_ARRAY_SIZE - len, len)
+                    SlotUtils.decodeBE(tmp, 0, immediates, p)
+                    args[i] = p
+                    p += SlotUtils.SLOT_SIZE
+                    pc += size
+                }
+                in OpCodes.DUP1..OpCodes.DUP16 -> {
+                    dispatch = OpCodes.DUP1
+                    args[i] = op - OpCodes.DUP1 + 1
+                }
+                in OpCodes.SWAP1..OpCodes.SWAP16 -> {
+                    dispatch = OpCodes.SWAP1
+                    args[i] = op - OpCodes.SWAP1 + 1
+                }
+                in OpCodes.LOG0..OpCodes.LOG4 -> {
+                    dispatch = OpCodes.LOG0
+                    args[i] = op - OpCodes.LOG0
+                }
+            }
+            insts[i] = dispatch or (op shl 8)
+            pc++
+        }
+
+        for (i in 0 until n) {
+            val op = insts[i] and 0xff
+            if (op != OpCodes.JUMP && op != OpCodes.JUMPI) continue
+            // the instruction is only reachable from previous push, so the target is the pushed constant
+            args[i] = if (i > 0 && insts[i - 1] and 0xff == OpCodes.PUSH1) constTarget(args[i - 1]) else -1
+        }
+
+        // a block starts at jump destination or after instruction which leaves it
+        val starts = IntArray(n)
+        var b = 0
+        for (i in 0 until n) {
+            val op = insts[i] and 0xff
+            if (i == 0 || op == OpCodes.JUMPDEST || terminates(insts[i - 1] and 0xff)) starts[b++] = i
+        }
+        blocks = starts.copyOf(b)
+    }
+
+    // gas table and static gas of blocks computed from it
+    @Volatile
+    private var metered: Pair<LongArray, LongArray>? = null
+
+    /**
+     * static gas of basic blocks by gas table of opcodes, charged at the first instruction of each block,
+     * negative entries of table are dynamic and not included, result of the last table is cached
+     */
+    fun blockGas(table: LongArray): LongArray {
+        metered?.let { if (it.first === table) return it.second }
+        val r = LongArray(insts.size)
+        for (b in blocks.indices) {
+            val end = if (b + 1 < blocks.size) blocks[b + 1] else insts.size
+            var gas = 0L
+            for (i in blocks[b] until end) {
+                val g = table[insts[i] ushr 8]
+                if (g > 0) gas += g
+            }
+            r[blocks[b]] = gas
+        }
+        metered = Pair(table, r)
+        return r
+    }
+
+    // gas table and instructions fused for it
+    @Volatile
+    private var fused: Pair<LongArray?, IntArray>? = null
+
+    /**
+     * instructions where the first instruction of a fused sequence is replaced by virtual instruction
+     * and the others are skipped, sequences with ops of dynamic gas in table are not fused,
+     * null table means no metering, result of the last table is cached
+     */
+    fun fused(table: LongArray?): IntArray {
+        fused?.let { if (it.first === table) return it.second }
+        val r = insts.copyOf()
+        if (fuse) {
+            var i = 0
+            while (i < insts.size) i += fuseAt(r, i, table)
+        }
+        fused = Pair(table, r)
+        return r
+    }
+
+    private fun dispatch(i: Int): Int {
+        return if (i < insts.size) insts[i] and 0xff else INVALID
+    }
+
+    private fun pushed(i: Int, value: Int): Boolean {
+        for (j in 0 until SlotUtils.SLOT_SIZE - 1) {
+            if (immediates[args[i] + j] != 0) return false
+        }
+        return immediates[args[i] + SlotUtils.SLOT_SIZE - 1] == value
+    }
+
+    // replace instruction i of r by virtual instruction if a sequence starts from it, return length of the sequence,
+    // no instruction but the first of a sequence starts a block, so the sequence is inside a block
+    private fun fuseAt(r: IntArray, i: Int, table: LongArray?): Int {
+        val v: Int
+        val len: Int
+        when {
+            dispatch(i) == OpCodes.PUSH1 && dispatch(i + 1) == OpCodes.JUMP && args[i + 1] >= 0 -> {
+                v = PUSH_JUMP
+                len = 2
+            }
+            dispatch(i) == OpCodes.PUSH1 && dispatch(i + 1) == OpCodes.JUMPI && args[i + 1] >= 0 -> {
+                v = PUSH_JUMPI
+                len = 2
+            }
+            dispatch(i) == OpCodes.ISZERO && dispatch(i + 1) == OpCodes.PUSH1
+                && dispatch(i + 2) == OpCodes.JUMPI && args[i + 2] >= 0 -> {
+                v = ISZERO_PUSH_JUMPI
+                len = 3
+            }
+            dispatch(i) == OpCodes.DUP1 && dispatch(i + 1) == OpCodes.SWAP1 -> {
+                v = DUP_SWAP
+                len = 2
+            }
+            // function selector, calldataload(0) >> 224
+            dispatch(i) == OpCodes.PUSH1 && dispatch(i + 1) == OpCodes.CALLDATALOAD
+                && dispatch(i + 2) == OpCodes.PUSH1 && dispatch(i + 3) == OpCodes.SHR
+                && pushed(i, 0) && pushed(i + 2, 0xe0) -> {
+                v = SELECTOR
+                len = 4
+            }
+            else -> return 1
+        }
+        if (table != null && (i until i + len).any { table[insts[it] ushr 8] < 0 }) return 1
+        r[i] = v or (insts[i] and 0xff.inv())
+        return len
+    }
+
+    // executions counted until blocks are compiled
+    private val executions = AtomicInteger()
+
+    // gas table and blocks compiled for it
+    @Volatile
+    private var compiled: Pair<LongArray?, Array<CompiledBlock?>>? = null
+
+    /**
+     * compiled blocks indexed by instruction, null until the code is executed threshold times,
+     * blocks are compiled once per gas table since ops of dynamic gas are left to interpreter
+     */
+    fun compiled(table: LongArray?, threshold: Int): Array<CompiledBlock?>? {
+        compiled?.let { if (it.first === table) return it.second }
+        if (executions.incrementAndGet() < threshold) return null
+        synchronized(this) {
+            compiled?.let { if (it.first === table) return it.second }
+            val r = BlockCompiler.compile(this, table)
+            compiled = Pair(table, r)
+            return r
+        }
+    }
+
+    private fun terminates(op: Int): Boolean {
+        return when (op) {
+            OpCodes.JUMP, OpCodes.JUMPI, OpCodes.STOP, OpCodes.RETURN, OpCodes.REVERT, OpCodes.SUICIDE, INVALID -> true
+            else -> false
+        }
+    }
+
+    // instruction index of pushed constant if it is a valid jump destination, otherwise -1
+    private fun constTarget(slot: Int): Int {
+        for (j in 0 until SlotUtils.SLOT_SIZE - 1) {
+            if (immediates[slot + j] != 0) return -1
+        }
+        val dst = Integer.toUnsignedLong(immediates[slot + SlotUtils.SLOT_SIZE - 1])
+        return if (isJumpDest(dst)) indexOf(dst.toInt()) else -1
+    }
+
+    /**
+     * estimated bytes of this analysis including code, block gas and fused instructions
+     */
+    val size: Int
+        get() = code.size + (jumpDests.size + insts.size) * 8 + (insts.size * 4 + immediates.size + blocks.size) * 4
+
+    fun isJumpDest(dst: Long): Boolean {
+        if (dst < 0 || dst >= code.size) return false
+        val i = dst.toInt()
+        return jumpDests[i ushr 6] and (1L shl i) != 0L
+    }
+
+    /**
+     * index of instruction at position pc of code
+     */
+    fun indexOf(pc: Int): Int {
+        return Arrays.binarySearch(pcs, pc)
+    }
+
+    /**
+     * index in blocks of the basic block containing instruction i
+     */
+    fun blockOf(i: Int): Int {
+        val r = Arrays.binarySearch(blocks, i)
+        return if (r >= 0) r else -r - 2
+    }
+
+    companion object {
+        // virtual instructions
+        const val PUSH_JUMP = 0xb0
+        const val PUSH_JUMPI = 0xb1
+        const val ISZERO_PUSH_JUMPI = 0xb2
+        const val DUP_SWAP = 0xb3
+        const val SELECTOR = 0xb4
+
+        // dispatch code of undefined opcode
+        const val INVALID = 0xfe
+    }
+}
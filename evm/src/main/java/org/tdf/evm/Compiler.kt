@@ -0,0 +1,272 @@
+package org.tdf.evm
+
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes.*
+import org.objectweb.asm.Type
+import java.lang.invoke.MethodHandles
+import java.math.BigInteger
+
+/**
+ * basic block compiled into a jvm class, instructions of the block are executed on stack and memory
+ * without dispatch and hooks, the block is compiled until the first op it does not support
+ */
+abstract class CompiledBlock(
+    private val analysis: CodeAnalysis
+) {
+    @JvmField
+    protected val immediates: IntArray = analysis.immediates
+
+    /**
+     * execute from the first instruction of the block, return index of next instruction to interpret
+     */
+    abstract fun execute(stack: StackImpl, memory: Memory, callData: EvmCallData): Int
+
+    // index of instruction at jump destination, called by compiled jumps whose target is not constant
+    protected fun jump(dst: Long): Int {
+        if (!analysis.isJumpDest(dst))
+            throw RuntimeException("invalid jump destination $dst")
+        return analysis.indexOf(dst.toInt())
+    }
+}
+
+/**
+ * compiles basic blocks of analyzed code into hidden classes by asm, ops are compiled into calls of stack methods,
+ * so results and errors are the same as interpreter
+ */
+object BlockCompiler {
+    // maximum instructions compiled in a block, the rest is interpreted, keeps methods under 64kb
+    private const val MAX_INSTRUCTIONS = 2048
+
+    private val lookup = MethodHandles.lookup()
+    private val STACK = Type.getInternalName(StackImpl::class.java)
+    private val BLOCK = Type.getInternalName(CompiledBlock::class.java)
+    private val CALL_DATA = Type.getInternalName(EvmCallData::class.java)
+    private val NAME = "$BLOCK\$Compiled"
+    private val EXECUTE_DESC = Type.getMethodDescriptor(
+        Type.INT_TYPE, Type.getType(StackImpl::class.java), Type.getType(Memory::class.java),
+        Type.getType(EvmCallData::class.java)
+    )
+
+    // ops compiled into stack method without arguments
+    private val STACK_OPS: Map<Int, String> = mapOf(
+        OpCodes.ADD to "add", OpCodes.MUL to "mul", OpCodes.SUB to "sub", OpCodes.DIV to "div",
+        OpCodes.SDIV to "signedDiv", OpCodes.MOD to "mod", OpCodes.SMOD to "signedMod",
+        OpCodes.ADDMOD to "addMod", OpCodes.MULMOD to "mulMod", OpCodes.EXP to "exp",
+        OpCodes.SIGNEXTEND to "signExtend", OpCodes.LT to "lt", OpCodes.GT to "gt", OpCodes.SLT to "slt",
+        OpCodes.SGT to "sgt", OpCodes.EQ to "eq", OpCodes.ISZERO to "isZero", OpCodes.AND to "and",
+        OpCodes.OR to "or", OpCodes.XOR to "xor", OpCodes.NOT to "not", OpCodes.BYTE to "byte",
+        OpCodes.SHL to "shl", OpCodes.SHR to "shr", OpCodes.SAR to "sar", OpCodes.POP to "drop"
+    )
+
+    // ops compiled into stack method with memory
+    private val MEMORY_OPS: Map<Int, String> = mapOf(
+        OpCodes.MLOAD to "mload", OpCodes.MSTORE to "mstore", OpCodes.MSTORE8 to "mstore8"
+    )
+
+    /**
+     * compile blocks of code, result is indexed by instruction, null if the block starts at it is not compiled,
+     * ops of negative gas in table are dynamic and left to interpreter
+     */
+    fun compile(a: CodeAnalysis, table: LongArray?): Array<CompiledBlock?> {
+        val r = arrayOfNulls<CompiledBlock>(a.insts.size)
+        for (b in a.blocks.indices) {
+            val start = a.blocks[b]
+            val end = if (b + 1 < a.blocks.size) a.blocks[b + 1] else a.insts.size
+            if (!supported(a, start, table)) continue
+            r[start] = try {
+                define(a, generate(a, start, end, table))
+            } catch (e: LinkageError) {
+                // block is interpreted
+                null
+            }
+        }
+        return r
+    }
+
+    private fun supported(a: CodeAnalysis, i: Int, table: LongArray?): Boolean {
+        val inst = a.insts[i]
+        if (table != null && table[inst ushr 8] < 0) return false
+        return when (val op = inst and 0xff) {
+            OpCodes.PUSH1, OpCodes.DUP1, OpCodes.SWAP1, OpCodes.JUMPDEST, OpCodes.JUMP, OpCodes.JUMPI,
+            OpCodes.CALLDATALOAD, OpCodes.CALLDATASIZE, OpCodes.CALLVALUE, OpCodes.CALLER, OpCodes.ADDRESS,
+            OpCodes.CODESIZE, OpCodes.PC -> true
+            else -> STACK_OPS.containsKey(op) || MEMORY_OPS.containsKey(op)
+        }
+    }
+
+    private fun define(a: CodeAnalysis, bytes: ByteArray): CompiledBlock {
+        val cls = lookup.defineHiddenClass(bytes, true).lookupClass()
+        return cls.getConstructor(CodeAnalysis::class.java).newInstance(a) as CompiledBlock
+    }
+
+    private fun generate(a: CodeAnalysis, start: Int, end: Int, table: LongArray?): ByteArray {
+        val cw = object : ClassWriter(COMPUTE_FRAMES or COMPUTE_MAXS) {
+            // frames only merge types of this class and its arguments
+            override fun getCommonSuperClass(type1: String, type2: String): String = "java/lang/Object"
+        }
+        cw.visit(V11, ACC_PUBLIC or ACC_FINAL or ACC_SUPER, NAME, null, BLOCK, null)
+
+        val init = cw.visitMethod(ACC_PUBLIC, "<init>", "(${Type.getDescriptor(CodeAnalysis::class.java)})V", null, null)
+        init.visitCode()
+        init.visitVarInsn(ALOAD, 0)
+        init.visitVarInsn(ALOAD, 1)
+        init.visitMethodInsn(INVOKESPECIAL, BLOCK, "<init>", "(${Type.getDescriptor(CodeAnalysis::class.java)})V", false)
+        init.visitInsn(RETURN)
+        init.visitMaxs(0, 0)
+        init.visitEnd()
+
+        val mv = cw.visitMethod(ACC_PUBLIC, "execute", EXECUTE_DESC, null, null)
+        mv.visitCode()
+        var i = start
+        while (true) {
+            // fall through to next block, or interpret the rest
+            if (i == end || i - start == MAX_INSTRUCTIONS || !supported(a, i, table)) {
+                returnIndex(mv, i)
+                break
+            }
+            if (!emit(mv, a, i)) break
+            i++
+        }
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+        cw.visitEnd()
+        return cw.toByteArray()
+    }
+
+    private fun returnIndex(mv: MethodVisitor, i: Int) {
+        mv.visitLdcInsn(i)
+        mv.visitInsn(IRETURN)
+    }
+
+    private fun stackCall(mv: MethodVisitor, name: String, desc: String) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STACK, name, desc, false)
+    }
+
+    private fun callData(mv: MethodVisitor, getter: String, desc: String) {
+        mv.visitVarInsn(ALOAD, 3)
+        mv.visitMethodInsn(INVOKEVIRTUAL, CALL_DATA, getter, desc, false)
+    }
+
+    // push a left padded address of call data
+    private fun pushAddress(mv: MethodVisitor, getter: String) {
+        callData(mv, getter, "()[B")
+        mv.visitVarInsn(ASTORE, 4)
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitVarInsn(ALOAD, 4)
+        mv.visitInsn(ICONST_0)
+        mv.visitVarInsn(ALOAD, 4)
+        mv.visitInsn(ARRAYLENGTH)
+        stackCall(mv, "pushLeftPadding", "([BII)V")
+    }
+
+    // jump to constant target or to popped destination, destination is popped already if not constant
+    private fun jumpTo(mv: MethodVisitor, target: Int) {
+        if (target >= 0) {
+            returnIndex(mv, target)
+            return
+        }
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(LLOAD, 4)
+        mv.visitMethodInsn(INVOKEVIRTUAL, BLOCK, "jump", "(J)I", false)
+        mv.visitInsn(IRETURN)
+    }
+
+    // emit instruction i, return false if the method returned
+    private fun emit(mv: MethodVisitor, a: CodeAnalysis, i: Int): Boolean {
+        val op = a.insts[i] and 0xff
+        val arg = a.args[i]
+        STACK_OPS[op]?.let {
+            mv.visitVarInsn(ALOAD, 1)
+            stackCall(mv, it, "()V")
+            return true
+        }
+        MEMORY_OPS[op]?.let {
+            mv.visitVarInsn(ALOAD, 1)
+            mv.visitVarInsn(ALOAD, 2)
+            stackCall(mv, it, "(${Type.getDescriptor(Memory::class.java)})V")
+            return true
+        }
+        when (op) {
+            OpCodes.JUMPDEST -> {}
+            OpCodes.PUSH1 -> {
+                mv.visitVarInsn(ALOAD, 1)
+                if (isU32(a.immediates, arg)) {
+                    // constant fits in the last int of slot
+                    mv.visitLdcInsn(a.immediates[arg + SlotUtils.SLOT_SIZE - 1])
+                    stackCall(mv, "pushInt", "(I)V")
+                } else {
+                    mv.visitVarInsn(ALOAD, 0)
+                    mv.visitFieldInsn(GETFIELD, BLOCK, "immediates", "[I")
+                    mv.visitLdcInsn(arg)
+                    stackCall(mv, "push", "([II)V")
+                }
+            }
+            OpCodes.DUP1, OpCodes.SWAP1 -> {
+                mv.visitVarInsn(ALOAD, 1)
+                mv.visitLdcInsn(arg)
+                stackCall(mv, if (op == OpCodes.DUP1) "dup" else "swap", "(I)V")
+            }
+            OpCodes.CALLDATALOAD -> {
+                mv.visitVarInsn(ALOAD, 1)
+                callData(mv, "getInput", "()[B")
+                stackCall(mv, "callDataLoad", "([B)V")
+            }
+            OpCodes.CALLDATASIZE, OpCodes.CODESIZE -> {
+                mv.visitVarInsn(ALOAD, 1)
+                callData(mv, if (op == OpCodes.CALLDATASIZE) "getInput" else "getCode", "()[B")
+                mv.visitInsn(ARRAYLENGTH)
+                stackCall(mv, "pushInt", "(I)V")
+            }
+            OpCodes.CALLVALUE -> {
+                mv.visitVarInsn(ALOAD, 1)
+                callData(mv, "getValue", "()${Type.getDescriptor(BigInteger::class.java)}")
+                stackCall(mv, "push", "(${Type.getDescriptor(BigInteger::class.java)})V")
+            }
+            OpCodes.CALLER -> pushAddress(mv, "getCaller")
+            OpCodes.ADDRESS -> pushAddress(mv, "getReceipt")
+            OpCodes.PC -> {
+                mv.visitVarInsn(ALOAD, 1)
+                mv.visitLdcInsn(a.pcs[i])
+                stackCall(mv, "pushInt", "(I)V")
+            }
+            OpCodes.JUMP -> {
+                mv.visitVarInsn(ALOAD, 1)
+                if (arg >= 0) {
+                    stackCall(mv, "drop", "()V")
+                } else {
+                    stackCall(mv, "popU32", "()J")
+                    mv.visitVarInsn(LSTORE, 4)
+                }
+                jumpTo(mv, arg)
+                return false
+            }
+            OpCodes.JUMPI -> {
+                // destination is popped before condition
+                mv.visitVarInsn(ALOAD, 1)
+                stackCall(mv, "popU32", "()J")
+                mv.visitVarInsn(LSTORE, 4)
+                mv.visitVarInsn(ALOAD, 1)
+                stackCall(mv, "popU32", "()J")
+                mv.visitInsn(LCONST_0)
+                mv.visitInsn(LCMP)
+                val no = Label()
+                mv.visitJumpInsn(IFEQ, no)
+                jumpTo(mv, arg)
+                mv.visitLabel(no)
+                returnIndex(mv, i + 1)
+                return false
+            }
+            else -> throw RuntimeException("unsupported op $op")
+        }
+        return true
+    }
+
+    private fun isU32(imm: IntArray, off: Int): Boolean {
+        for (j in 0 until SlotUtils.SLOT_SIZE - 1) {
+            if (imm[off + j] != 0) return false
+        }
+        return true
+    }
+}
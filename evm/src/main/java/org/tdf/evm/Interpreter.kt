@@ -78,6 +78,19 @@ fun interface EvmHook {
     fun onOp(op: Int, extraInfo: Long)
 }
 
+/**
+ * hook metering by basic block, static gas of a block is charged once at entry,
+ * onOp is only called after ops of dynamic gas
+ */
+interface EvmGasMeter : EvmHook {
+    /**
+     * static gas of opcodes, negative for ops of dynamic gas, the array should not be modified
+     */
+    val gasTable: LongArray
+
+    fun onBlock(gas: Long)
+}
+
 class Interpreter(
     val host: EvmHost,
     val ctx: EvmContext,
@@ -85,10 +98,21 @@ class Interpreter(
     private val vmLog: PrintStream? = null,
     private val hook: EvmHook? = null,
     maxStackSize: Int = Int.MAX_VALUE,
-    maxMemorySize: Int = Int.MAX_VALUE
+    maxMemorySize: Int = Int.MAX_VALUE,
+    // analysis of callData.code, cached by caller for deployed contracts
+    analysis: CodeAnalysis? = null,
+    // executions of the analysis before its blocks are compiled, 0 means never
+    private val jitThreshold: Int = 0
 ) {
+    private val analysis = analysis ?: CodeAnalysis(callData.code)
+
+    private val meter = hook as? EvmGasMeter
+
+    // hook called after every op when ops are not metered by block
+    private val opHook = if (meter == null) hook else null
+
     var pc: Int = 0
-    private val stack: Stack = StackImpl(maxStackSize)
+    private val stack = StackImpl(maxStackSize)
     private val memory = MemoryImpl(maxMemorySize)
     private var ret: ByteArray = emptyByteArray
 
@@ -100,25 +124,54 @@ class Interpreter(
     private var key: ByteArray = emptyByteArray
 
 
-    // TODO: code segment check
-    private fun jump(dst: Long) {
-        if (dst < 0 || dst >= callData.code.size)
-            throw RuntimeException("jump destination overflow")
-        if (callData.code[dst.toInt()].toUByte().toInt() != OpCodes.JUMPDEST)
-            throw RuntimeException("jump destination is not JUMPDEST")
+    // push at instruction i and jumpi to resolved target, return index of next instruction
+    private fun pushJumpI(i: Int): Int {
+        stack.push(analysis.immediates, analysis.args[i])
+        stack.drop()
+        return if (stack.popU32() != 0L) analysis.args[i + 1] else i + 2
+    }
+
+    // return instruction index of destination
+    private fun jump(dst: Long): Int {
+        if (!analysis.isJumpDest(dst))
+            throw RuntimeException("invalid jump destination $dst")
         this.pc = dst.toInt()
+        return analysis.indexOf(pc)
     }
 
 
     fun execute(): ByteArray {
         logInfo()
 
-        while (pc < callData.code.size) {
-            op = callData.code[pc].toUByte().toInt()
+        // fused instructions skip logs and hooks of ops in a sequence, only used when ops are not traced
+        val insts = if (vmLog == null && opHook == null) analysis.fused(meter?.gasTable) else analysis.insts
+        val args = analysis.args
+        val pcs = analysis.pcs
+        val imm = analysis.immediates
+        // static gas charged at instructions, only first instructions of blocks are charged
+        val blockGas = meter?.let { analysis.blockGas(it.gasTable) }
+        // compiled blocks skip logs and hooks of every op, only used when ops are not traced
+        val compiled = if (jitThreshold > 0 && vmLog == null && opHook == null)
+            analysis.compiled(meter?.gasTable, jitThreshold)
+        else
+            null
+        // index of current instruction
+        var i = 0
+
+        while (i < insts.size) {
+            if (blockGas != null && blockGas[i] != 0L) meter!!.onBlock(blockGas[i])
+            val block = compiled?.get(i)
+            if (block != null) {
+                i = block.execute(stack, memory, callData)
+                continue
+            }
+            val inst = insts[i]
+            op = inst ushr 8
+            pc = pcs[i]
             opInfo = 0
             beforeExecute()
 
-            when (op) {
+            when (inst and 0xff) {
                 OpCodes.STOP -> {
                     afterExecute()
                     return ret
@@ -204,22 +257,27 @@ class Interpreter(
                 OpCodes.SLOAD -> stack.pushLeftPadding(host.getStorage(callData.receipt, stack.popBytes()))
                 OpCodes.SSTORE -> host.setStorage(callData.receipt, stack.popBytes(), stack.popBytes())
                 OpCodes.JUMP -> {
-                    jump(stack.popU32())
+                    val target = args[i]
+                    if (target >= 0) {
+                        stack.drop()
+                        pc = pcs[target]
+                        i = target
+                    } else {
+                        i = jump(stack.popU32())
+                    }
                     afterExecute()
                     continue
                 }
                 OpCodes.JUMPI -> {
                     val dst = stack.popU32()
                     val cond = stack.popU32() != 0L
-                    if (cond) {
-                        jump(dst)
-                        afterExecute()
-                        continue
-                    } else {
-                        pc++
-                        afterExecute()
-                        continue
+                    i = when {
+                        !cond -> i + 1
+                        args[i] >= 0 -> args[i].also { pc = pcs[it] }
+                        else -> jump(dst)
                     }
+                    afterExecute()
+                    continue
                 }
                 OpCodes.PC -> stack.pushInt(pc)
                 OpCodes.MSIZE -> stack.pushInt(memory.size)
@@ -227,22 +285,17 @@ class Interpreter(
                 OpCodes.JUMPDEST -> {
 
                 }
-                // push(code[pc+1:pc+1+n]), push n is right padded
-                in OpCodes.PUSH1..OpCodes.PUSH32 -> {
-                    val size = op - OpCodes.PUSH1 + 1
-                    val n = min(size, callData.code.size - pc - 1)
-                    stack.pushLeftPadding(callData.code, pc + 1, n)
-                    pc += size
-                }
-                in OpCodes.DUP1..OpCodes.DUP16 -> stack.dup(op - OpCodes.DUP1 + 1)
-                in OpCodes.SWAP1..OpCodes.SWAP16 -> stack.swap(op - OpCodes.SWAP1 + 1)
+                // push n, push data is decoded in analysis
+                OpCodes.PUSH1 -> stack.push(imm, args[i])
+                OpCodes.DUP1 -> stack.dup(args[i])
+                OpCodes.SWAP1 -> stack.swap(args[i])
 
                 // TODO: Test log operation
-                in OpCodes.LOG0..OpCodes.LOG4 -> {
-                    val n = op - OpCodes.LOG0
+                OpCodes.LOG0 -> {
+                    val n = args[i]
                     val topics = mutableListOf<ByteArray>()
                     val data = stack.popMemory(memory)
-                    for (i in 0 until n) {
+                    repeat(n) {
                         topics.add(stack.popBytes())
                     }
                     host.log(callData.receipt, data, topics)
@@ -260,12 +313,43 @@ class Interpreter(
                     throw RevertException(memory.resizeAndCopy(off, size), host.digest)
                 }
                 OpCodes.STATICCALL, OpCodes.CALL, OpCodes.DELEGATECALL -> call(op)
+
+                // virtual instructions, gas of the sequence is static and charged with the block
+                CodeAnalysis.PUSH_JUMP -> {
+                    stack.push(imm, args[i])
+                    stack.drop()
+                    i = args[i + 1]
+                    continue
+                }
+                CodeAnalysis.PUSH_JUMPI -> {
+                    i = pushJumpI(i)
+                    continue
+                }
+                CodeAnalysis.ISZERO_PUSH_JUMPI -> {
+                    stack.isZero()
+                    i = pushJumpI(i + 1)
+                    continue
+                }
+                CodeAnalysis.DUP_SWAP -> {
+                    stack.dup(args[i])
+                    stack.swap(args[i + 1])
+                    i += 2
+                    continue
+                }
+                CodeAnalysis.SELECTOR -> {
+                    stack.push(imm, args[i])
+                    stack.callDataLoad(callData.input)
+                    stack.push(imm, args[i + 2])
+                    stack.shr()
+                    i += 4
+                    continue
+                }
                 OpCodes.CREATE -> create()
                 OpCodes.CREATE2 -> create(true)
                 else -> throw RuntimeException("unsupported op $op")
             }
             afterExecute()
-            pc++
+            i++
         }
         return emptyByteArray
     }
@@ -411,7 +495,8 @@ class Interpreter(
     }
 
     fun afterExecute() {
-        hook?.onOp(op, opInfo)
+        opHook?.onOp(op, opInfo)
+        meter?.let { if (it.gasTable[op] < 0) it.onOp(op, opInfo) }
 
         vmLog?.let {
             it.println("after execute op ${OpCodes.nameOf(op)} pc = $pc")
@@ -0,0 +1,182 @@
+package org.tdf.evm
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class CodeAnalysisTests {
+    @Test
+    fun testJumpDests() {
+        val code = byteArrayOf(
+            OpCodes.PUSH2.toByte(), OpCodes.JUMPDEST.toByte(), OpCodes.JUMPDEST.toByte(),
+            OpCodes.JUMPDEST.toByte(),
+            OpCodes.PUSH1.toByte(), 3,
+            OpCodes.JUMP.toByte(),
+            // truncated push data
+            OpCodes.PUSH32.toByte(), OpCodes.JUMPDEST.toByte()
+        )
+        val a = CodeAnalysis(code)
+        assert(a.isJumpDest(3))
+        // JUMPDEST bytes in push data
+        assert(!a.isJumpDest(1))
+        assert(!a.isJumpDest(2))
+        assert(!a.isJumpDest(8))
+        assert(!a.isJumpDest(0))
+        assert(!a.isJumpDest(-1))
+        assert(!a.isJumpDest(code.size.toLong()))
+
+        // jump destination at 64 is in the second word of bitmap
+        val long = ByteArray(130) { OpCodes.JUMPDEST.toByte() }
+        val b = CodeAnalysis(long)
+        assert((0L until 130L).all { b.isJumpDest(it) })
+    }
+
+    private fun run(code: ByteArray): ByteArray {
+        return Interpreter(MockEvmHost(), EvmContext(), EvmCallData(code = code)).execute()
+    }
+
+    private fun code(vararg ops: Int): ByteArray {
+        return ByteArray(ops.size) { ops[it].toByte() }
+    }
+
+    @Test
+    fun testInstructions() {
+        // count from 0 to 10 and return
+        val loop = intArrayOf(
+            OpCodes.PUSH1, 0, OpCodes.JUMPDEST, OpCodes.PUSH1, 1, OpCodes.ADD,
+            OpCodes.DUP1, OpCodes.PUSH1, 10, OpCodes.GT, OpCodes.PUSH1, 2, OpCodes.JUMPI,
+            OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN
+        )
+        val a = CodeAnalysis(code(*loop))
+        assert(a.insts.size == 14)
+        // target of jumpi after push is resolved to index of JUMPDEST
+        assert(a.args[8] == 1)
+        assert(a.pcs[8] == 12)
+        assert(java.math.BigInteger(1, run(code(*loop))).toInt() == 10)
+
+        // jump target from dup is looked up at runtime
+        val dynamic = loop.copyOfRange(0, 12) + intArrayOf(OpCodes.DUP1, OpCodes.POP) + loop.copyOfRange(12, loop.size)
+        assert(CodeAnalysis(code(*dynamic)).args[10] == -1)
+        assert(java.math.BigInteger(1, run(code(*dynamic))).toInt() == 10)
+
+        // jump into push data
+        try {
+            run(code(OpCodes.PUSH1, OpCodes.JUMPDEST, OpCodes.PUSH1, 1, OpCodes.JUMP))
+            assert(false)
+        } catch (e: RuntimeException) {
+            assert(e.message!!.startsWith("invalid jump destination"))
+        }
+    }
+
+    @Test
+    fun testBlocks() {
+        val loop = intArrayOf(
+            OpCodes.PUSH1, 0, OpCodes.JUMPDEST, OpCodes.PUSH1, 1, OpCodes.ADD,
+            OpCodes.DUP1, OpCodes.PUSH1, 10, OpCodes.GT, OpCodes.PUSH1, 2, OpCodes.JUMPI,
+            OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN,
+            // unreachable
+            OpCodes.PUSH1, 0, OpCodes.POP
+        )
+        val a = CodeAnalysis(code(*loop))
+        // entry, loop body from JUMPDEST, fall through of JUMPI, after RETURN
+        assert(a.blocks.contentEquals(intArrayOf(0, 1, 9, 14)))
+        assert(a.blockOf(0) == 0)
+        assert(a.blockOf(8) == 1)
+        assert(a.blockOf(13) == 2)
+        assert(a.blockOf(15) == 3)
+        assert(CodeAnalysis(ByteArray(0)).blocks.isEmpty())
+    }
+
+    @Test
+    fun testBlockGas() {
+        // exp is dynamic, the others cost op + 1
+        val table = LongArray(256) { if (it == OpCodes.EXP) -1L else it + 1L }
+        val perOp = object : EvmHook {
+            var gas = 0L
+            override fun onOp(op: Int, extraInfo: Long) {
+                gas += if (op == OpCodes.EXP) 100 * extraInfo else table[op]
+            }
+        }
+        val meter = object : EvmGasMeter {
+            var gas = 0L
+            var dynamic = 0
+            override val gasTable = table
+            override fun onBlock(gas: Long) {
+                this.gas += gas
+            }
+
+            override fun onOp(op: Int, extraInfo: Long) {
+                dynamic++
+                gas += 100 * extraInfo
+            }
+        }
+        // count down from selector and 0xff to zero with 2 ** 3 in every round
+        val code = code(
+            OpCodes.PUSH1, 0, OpCodes.CALLDATALOAD, OpCodes.PUSH1, 0xe0, OpCodes.SHR,
+            OpCodes.PUSH1, 0xff, OpCodes.AND, OpCodes.JUMPDEST,
+            OpCodes.PUSH1, 3, OpCodes.PUSH1, 2, OpCodes.EXP, OpCodes.POP,
+            OpCodes.PUSH1, 1, OpCodes.SWAP1, OpCodes.SUB,
+            OpCodes.DUP1, OpCodes.SWAP1, OpCodes.DUP1, OpCodes.ISZERO, OpCodes.PUSH1, 32, OpCodes.JUMPI,
+            OpCodes.POP, OpCodes.PUSH1, 9, OpCodes.JUMP, 0xfe, OpCodes.JUMPDEST,
+            OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN
+        )
+        val input = byteArrayOf(0x12, 0x34, 0x56, 0x05)
+        val a = CodeAnalysis(code)
+        Interpreter(MockEvmHost(), EvmContext(), EvmCallData(code = code, input = input), hook = perOp, analysis = a).execute()
+        Interpreter(MockEvmHost(), EvmContext(), EvmCallData(code = code, input = input), hook = meter, analysis = a).execute()
+        assert(perOp.gas > 0)
+        assert(meter.gas == perOp.gas)
+        // only exp is hooked
+        assert(meter.dynamic == 5)
+        // block gas is cached by table
+        assert(a.blockGas(table) === a.blockGas(table))
+    }
+
+    @Test
+    fun testFusion() {
+        val code = code(
+            // selector
+            OpCodes.PUSH1, 0, OpCodes.CALLDATALOAD, OpCodes.PUSH1, 0xe0, OpCodes.SHR,
+            // count down from selector and 0xff to zero
+            OpCodes.PUSH1, 0xff, OpCodes.AND, OpCodes.JUMPDEST,
+            OpCodes.PUSH1, 1, OpCodes.SWAP1, OpCodes.SUB,
+            OpCodes.DUP1, OpCodes.SWAP1, OpCodes.DUP1, OpCodes.ISZERO, OpCodes.PUSH1, 26, OpCodes.JUMPI,
+            OpCodes.POP, OpCodes.PUSH1, 9, OpCodes.JUMP, 0xfe, OpCodes.JUMPDEST,
+            OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN
+        )
+        val a = CodeAnalysis(code)
+        val fused = a.fused(null)
+        assert(fused[0] and 0xff == CodeAnalysis.SELECTOR)
+        assert(fused.count { it and 0xff == CodeAnalysis.ISZERO_PUSH_JUMPI } == 1)
+        assert(fused.count { it and 0xff == CodeAnalysis.DUP_SWAP } == 1)
+        assert(fused.count { it and 0xff == CodeAnalysis.PUSH_JUMP } == 1)
+        // sequences with ops of dynamic gas are not fused
+        val table = LongArray(256) { if (it == OpCodes.SHR) -1L else 3L }
+        assert(a.fused(table)[0] == a.insts[0])
+        // codes of virtual instructions in code are invalid
+        assert(CodeAnalysis(code(CodeAnalysis.PUSH_JUMP)).insts[0] and 0xff == CodeAnalysis.INVALID)
+
+        // results and gas are the same as plain dispatch
+        val input = byteArrayOf(0x12, 0x34, 0x56, 0x05)
+        val results = listOf(true, false).map { fuse ->
+            val meter = object : EvmGasMeter {
+                var gas = 0L
+                override val gasTable = LongArray(256) { it + 1L }
+                override fun onBlock(gas: Long) {
+                    this.gas += gas
+                }
+
+                override fun onOp(op: Int, extraInfo: Long) {
+                }
+            }
+            val r = Interpreter(
+                MockEvmHost(), EvmContext(), EvmCallData(code = code, input = input),
+                hook = meter, analysis = CodeAnalysis(code, fuse)
+            ).execute()
+            Pair(java.math.BigInteger(1, r), meter.gas)
+        }
+        assert(results[0].first.signum() == 0)
+        assert(results[0] == results[1])
+    }
+}
@@ -0,0 +1,229 @@
+package org.tdf.evm
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.spongycastle.util.encoders.Hex
+import org.tdf.common.util.ByteUtil
+import org.tdf.common.util.HashUtil
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.bn
+import org.tdf.common.util.hex
+import org.tdf.sunflower.vm.abi.Abi
+import java.math.BigInteger
+
+// host of contracts whose blocks are compiled after jitThreshold executions, analyses are shared by calls of a code
+private class CompilerHost(private val jitThreshold: Int, private val hook: EvmHook?) : EvmHost {
+    override val digest: Digest = sha3
+    private val accounts: MutableMap<HexBytes, MemAccount> = mutableMapOf()
+    private val analyses: MutableMap<HexBytes, CodeAnalysis> = mutableMapOf()
+
+    private fun execute(callData: EvmCallData): ByteArray {
+        val analysis = analyses.getOrPut(HexBytes.fromBytes(callData.code)) { CodeAnalysis(callData.code) }
+        return Interpreter(
+            this, EvmContext(), callData, hook = hook, analysis = analysis, jitThreshold = jitThreshold
+        ).execute()
+    }
+
+    private fun account(address: ByteArray): MemAccount {
+        return accounts.getOrPut(HexBytes.fromBytes(address)) { MemAccount() }
+    }
+
+    override fun getBalance(address: ByteArray): BigInteger {
+        return account(address).balance
+    }
+
+    override fun getStorage(address: ByteArray, key: ByteArray): ByteArray {
+        return account(address).storage[HexBytes.fromBytes(key)]?.bytes ?: HexBytes.EMPTY_BYTES
+    }
+
+    override fun setStorage(address: ByteArray, key: ByteArray, value: ByteArray) {
+        account(address).storage[HexBytes.fromBytes(key)] = HexBytes.fromBytes(value)
+    }
+
+    override fun getCode(addr: ByteArray): ByteArray {
+        return account(addr).code
+    }
+
+    override fun getCodeSize(addr: ByteArray): Int {
+        return account(addr).code.size
+    }
+
+    override fun call(
+        caller: ByteArray,
+        receipt: ByteArray,
+        input: ByteArray,
+        value: BigInteger,
+        staticCall: Boolean
+    ): ByteArray {
+        val code = account(receipt).code
+        if (code.isEmpty()) throw RuntimeException("not a contract account")
+        return execute(EvmCallData(caller, receipt, value, input, code))
+    }
+
+    override fun delegate(
+        originCaller: ByteArray,
+        originContract: ByteArray,
+        delegateAddr: ByteArray,
+        input: ByteArray
+    ): ByteArray {
+        throw UnsupportedOperationException()
+    }
+
+    override fun drop(address: ByteArray) {
+    }
+
+    override fun create(caller: ByteArray, value: BigInteger, createCode: ByteArray, salt: ByteArray?): ByteArray {
+        val c = account(caller)
+        val addr = HashUtil.calcNewAddr(caller, ByteUtil.longToBytesNoLeadZeroes(c.nonce++))
+        account(addr).code = execute(EvmCallData(caller, addr, value, emptyByteArray, createCode))
+        return addr
+    }
+
+    override fun log(contract: ByteArray, data: ByteArray, topics: List<ByteArray>) {
+    }
+}
+
+@RunWith(JUnit4::class)
+class CompilerTests {
+    private fun code(vararg ops: Int): ByteArray {
+        return ByteArray(ops.size) { ops[it].toByte() }
+    }
+
+    private fun run(a: CodeAnalysis, input: ByteArray = emptyByteArray, threshold: Int = 1, hook: EvmHook? = null): ByteArray {
+        return Interpreter(
+            CompilerHost(threshold, hook), EvmContext(), EvmCallData(input = input, code = a.code), hook = hook,
+            analysis = a, jitThreshold = threshold
+        ).execute()
+    }
+
+    @Test
+    fun testSpecs() {
+        val ops = mapOf(
+            "add" to OpCodes.ADD, "and" to OpCodes.AND, "byte" to OpCodes.BYTE, "div" to OpCodes.DIV,
+            "eq" to OpCodes.EQ, "exp" to OpCodes.EXP, "gt" to OpCodes.GT, "lt" to OpCodes.LT,
+            "mod" to OpCodes.MOD, "mul" to OpCodes.MUL, "or" to OpCodes.OR, "sar" to OpCodes.SAR,
+            "sdiv" to OpCodes.SDIV, "sgt" to OpCodes.SGT, "shl" to OpCodes.SHL, "shr" to OpCodes.SHR,
+            "signext" to OpCodes.SIGNEXTEND, "slt" to OpCodes.SLT, "smod" to OpCodes.SMOD, "sub" to OpCodes.SUB,
+            "xor" to OpCodes.XOR
+        )
+        for ((name, op) in ops) {
+            // push x and y from input, return result of op
+            val a = CodeAnalysis(
+                code(
+                    OpCodes.PUSH1, 0, OpCodes.CALLDATALOAD, OpCodes.PUSH1, 32, OpCodes.CALLDATALOAD, op,
+                    OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN
+                )
+            )
+            TestUtil.testSpec("testdata/testcases_$name.json") { c: EvmSpec ->
+                Hex.toHexString(run(a, Hex.decode(c.x + c.y)))
+            }
+            Assert.assertNotNull(a.compiled(null, 1)!![0])
+        }
+    }
+
+    @Test
+    fun testJumps() {
+        // count from 0 to 10 and return
+        val loop = intArrayOf(
+            OpCodes.PUSH1, 0, OpCodes.JUMPDEST, OpCodes.PUSH1, 1, OpCodes.ADD,
+            OpCodes.DUP1, OpCodes.PUSH1, 10, OpCodes.GT, OpCodes.PUSH1, 2, OpCodes.JUMPI,
+            OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN
+        )
+        val a = CodeAnalysis(code(*loop))
+        // blocks are interpreted until threshold, lookup of compiled blocks is counted as execution
+        Assert.assertEquals(10, BigInteger(1, run(a, threshold = 3)).toInt())
+        Assert.assertNull(a.compiled(null, 3))
+        Assert.assertEquals(10, BigInteger(1, run(a, threshold = 3)).toInt())
+        val compiled = a.compiled(null, 3)!!
+        Assert.assertTrue(a.blocks.all { compiled[it] != null })
+
+        // jump target from dup is looked up at runtime
+        val dynamic = loop.copyOfRange(0, 12) + intArrayOf(OpCodes.DUP1, OpCodes.POP) + loop.copyOfRange(12, loop.size)
+        Assert.assertEquals(10, BigInteger(1, run(CodeAnalysis(code(*dynamic)))).toInt())
+
+        // jump into push data
+        try {
+            run(CodeAnalysis(code(OpCodes.PUSH1, OpCodes.JUMPDEST, OpCodes.PUSH1, 1, OpCodes.JUMP)))
+            Assert.fail()
+        } catch (e: RuntimeException) {
+            Assert.assertTrue(e.message!!.startsWith("invalid jump destination"))
+        }
+    }
+
+    private class TestMeter : EvmGasMeter {
+        override val gasTable = LongArray(256) { 3 }.also {
+            it[OpCodes.EXP] = -1
+            it[OpCodes.SHA3] = -1
+            it[OpCodes.MSTORE] = -1
+            it[OpCodes.SSTORE] = -1
+        }
+        var gas = 0L
+        val ops = mutableListOf<Int>()
+
+        override fun onBlock(gas: Long) {
+            this.gas += gas
+        }
+
+        override fun onOp(op: Int, extraInfo: Long) {
+            ops.add(op)
+            gas += extraInfo
+        }
+    }
+
+    @Test
+    fun testMeter() {
+        // exp in the middle of a block is left to interpreter for its dynamic gas
+        val a = CodeAnalysis(
+            code(
+                OpCodes.PUSH1, 3, OpCodes.PUSH1, 2, OpCodes.EXP, OpCodes.PUSH1, 1, OpCodes.ADD,
+                OpCodes.PUSH1, 0, OpCodes.MSTORE, OpCodes.PUSH1, 32, OpCodes.PUSH1, 0, OpCodes.RETURN
+            )
+        )
+        val expected = TestMeter()
+        Assert.assertEquals(9, BigInteger(1, run(a, threshold = 0, hook = expected)).toInt())
+        val actual = TestMeter()
+        Assert.assertEquals(9, BigInteger(1, run(a, hook = actual)).toInt())
+        Assert.assertNotNull(a.compiled(actual.gasTable, 1)!![0])
+        Assert.assertEquals(expected.gas, actual.gas)
+        Assert.assertEquals(expected.ops, actual.ops)
+    }
+
+    @Test
+    fun testContracts() {
+        val mapper = jacksonObjectMapper()
+        val owner = Hex.decode("8bb3194c582a9f70bdc079e4c20cde4a7fc3c807")
+        val ownerCode = Hex.decode(
+            mapper.readValue(TestUtil.readClassPathFile("contracts/owner.json"), JsonNode::class.java)
+                .get("object").asText()
+        )
+        val node = mapper.readValue(TestUtil.readClassPathFile("contracts/Hasher.json"), JsonNode::class.java)
+        val abi = Abi.fromJson(node["abi"].toString())
+        val hasherCode = node.get("bytecode").asText().hex().bytes
+        val input = abi.findFunction { it.name == "MiMCSponge" }.encode(
+            "21663839004416932945382355908790599225266501822907911457504978515578255421292".bn(),
+            "0".bn()
+        )
+
+        val results = listOf(Int.MAX_VALUE, 1).map { threshold ->
+            val meter = TestMeter()
+            val mock = CompilerHost(threshold, meter)
+            val con = mock.create(owner, BigInteger.ZERO, ownerCode)
+            val hasher = mock.create(owner, BigInteger.ZERO, hasherCode)
+            // executed repeatedly to run compiled blocks after threshold
+            val r = (0 until 2).map {
+                listOf(
+                    Hex.toHexString(mock.call(ZERO_ADDRESS, con, Hex.decode("893d20e8"))),
+                    Hex.toHexString(mock.call(ZERO_ADDRESS, hasher, input, BigInteger.ZERO, true))
+                )
+            }
+            Assert.assertEquals(r[0], r[1])
+            Pair(r[0], meter.gas)
+        }
+        Assert.assertEquals(Hex.toHexString(owner), results[0].first[0].substring(24))
+        Assert.assertEquals(results[0], results[1])
+    }
+}
@@ -0,0 +1,148 @@
+package org.tdf.evm
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.spongycastle.util.encoders.Hex
+import org.tdf.common.util.HexBytes
+import org.tdf.sunflower.vm.abi.Abi
+import java.io.File
+import java.math.BigInteger
+
+/**
+ * time of contract calls with and without fused instructions, gas is metered by block as transactions do
+ *
+ * usage: FusionBench [rounds] [contract.json:selector-and-arguments-hex ...]
+ * contract json contains creation code in "bytecode" or "object", bundled contracts are used if no contract given
+ */
+object FusionBench {
+    private class BenchHost : EvmHost {
+        override val digest: Digest = sha3
+        private val storage: MutableMap<HexBytes, ByteArray> = mutableMapOf()
+
+        override fun getBalance(address: ByteArray): BigInteger = BigInteger.ZERO
+
+        override fun getStorage(address: ByteArray, key: ByteArray): ByteArray {
+            return storage[HexBytes.fromBytes(key)] ?: emptyByteArray
+        }
+
+        override fun setStorage(address: ByteArray, key: ByteArray, value: ByteArray) {
+            storage[HexBytes.fromBytes(key)] = value
+        }
+
+        override fun getCode(addr: ByteArray): ByteArray = emptyByteArray
+        override fun getCodeSize(addr: ByteArray): Int = 0
+
+        override fun call(
+            caller: ByteArray,
+            receipt: ByteArray,
+            input: ByteArray,
+            value: BigInteger,
+            staticCall: Boolean
+        ): ByteArray = throw UnsupportedOperationException()
+
+        override fun delegate(
+            originCaller: ByteArray,
+            originContract: ByteArray,
+            delegateAddr: ByteArray,
+            input: ByteArray
+        ): ByteArray = throw UnsupportedOperationException()
+
+        override fun drop(address: ByteArray) {}
+
+        override fun create(caller: ByteArray, value: BigInteger, createCode: ByteArray, salt: ByteArray?): ByteArray =
+            throw UnsupportedOperationException()
+
+        override fun log(contract: ByteArray, data: ByteArray, topics: List<ByteArray>) {}
+    }
+
+    private class Case(val name: String, val code: ByteArray, val input: ByteArray)
+
+    private const val TRIALS = 10
+    private val OWNER = Hex.decode("8bb3194c582a9f70bdc079e4c20cde4a7fc3c807")
+
+    private fun load(json: ByteArray): ByteArray {
+        val node = jacksonObjectMapper().readValue(json, JsonNode::class.java)
+        val hex = (node["bytecode"] ?: node["object"]).asText().removePrefix("0x")
+        return Hex.decode(hex)
+    }
+
+    private fun bundled(): List<Case> {
+        // owner() and MiMCSponge(x, 0)
+        val hasher = TestUtil.readClassPathFile("contracts/Hasher.json")
+        val abi = Abi.fromJson(jacksonObjectMapper().readValue(hasher, JsonNode::class.java)["abi"].toString())
+        val mimc = abi.findFunction { it.name == "MiMCSponge" }.encode(
+            "21663839004416932945382355908790599225266501822907911457504978515578255421292".toBigInteger(),
+            BigInteger.ZERO
+        )
+        return listOf(
+            Case("owner", load(TestUtil.readClassPathFile("contracts/owner.json")), Hex.decode("893d20e8")),
+            Case("hasher", load(hasher), mimc)
+        )
+    }
+
+    // ops of storage, hash and exp are dynamic, the others are static
+    private class BenchMeter : EvmGasMeter {
+        override val gasTable = LongArray(256) { if (it < OpCodes.PUSH1) 3 else 5 }.also {
+            for (op in intArrayOf(OpCodes.EXP, OpCodes.SHA3, OpCodes.SLOAD, OpCodes.SSTORE)) it[op] = -1
+        }
+        var gas = 0L
+
+        override fun onBlock(gas: Long) {
+            this.gas += gas
+        }
+
+        override fun onOp(op: Int, extraInfo: Long) {
+            gas += 50
+        }
+    }
+
+    // nanoseconds per call and gas of the last call
+    private fun measure(host: BenchHost, code: ByteArray, input: ByteArray, fuse: Boolean, rounds: Int): Pair<Long, Long> {
+        val analysis = CodeAnalysis(code, fuse)
+        val meter = BenchMeter()
+        val callData = EvmCallData(OWNER, OWNER, BigInteger.ZERO, input, code)
+        val start = System.nanoTime()
+        for (i in 0 until rounds) {
+            meter.gas = 0
+            Interpreter(host, EvmContext(), callData, hook = meter, analysis = analysis).execute()
+        }
+        return Pair((System.nanoTime() - start) / rounds, meter.gas)
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val rounds = args.getOrNull(0)?.toInt() ?: 2000
+        val cases = if (args.size > 1) {
+            args.drop(1).map {
+                val (file, input) = it.split(":")
+                Case(File(file).nameWithoutExtension, load(File(file).readBytes()), Hex.decode(input))
+            }
+        } else bundled()
+
+        for (c in cases) {
+            val host = BenchHost()
+            // deploy by creation code, the runtime code is returned
+            val code = Interpreter(host, EvmContext(), EvmCallData(OWNER, OWNER, BigInteger.ZERO, emptyByteArray, c.code)).execute()
+            val analysis = CodeAnalysis(code)
+            val fusedInsts = analysis.fused(BenchMeter().gasTable)
+            val fusedCount = analysis.insts.indices.count { fusedInsts[it] != analysis.insts[it] }
+            // trials are interleaved and the best of them is taken, the first trials are warmup
+            var plain = Long.MAX_VALUE
+            var fused = Long.MAX_VALUE
+            for (trial in 0 until TRIALS) {
+                val p = measure(host, code, c.input, false, rounds)
+                val f = measure(host, code, c.input, true, rounds)
+                if (p.second != f.second) throw RuntimeException("gas differs, plain ${p.second}, fused ${f.second}")
+                if (trial < TRIALS / 2) continue
+                plain = minOf(plain, p.first)
+                fused = minOf(fused, f.first)
+            }
+            println(
+                String.format(
+                    "%-10s | %5d insts %4d fused | plain %8d ns/call | fused %8d ns/call | %+.1f%%",
+                    c.name, analysis.insts.size, fusedCount, plain, fused, (plain - fused) * 100.0 / plain
+                )
+            )
+        }
+    }
+}
@@ -32,6 +32,9 @@ abstract class AbstractValidator(protected val accountTrie: StateTrie<HexBytes,
         if (block.gasLimit != rd.genesis.gasLimit)
             return fault("invalid block gas limit")
 
+        // trie nodes are loaded while signatures are verified
+        accountTrie.prefetch(parent.header.stateRoot, block.body)
+
         var isCoinbase = true
         for (t in block.body) {
             // validate transaction signature
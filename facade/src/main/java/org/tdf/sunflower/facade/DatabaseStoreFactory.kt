@@ -1,10 +1,17 @@
 package org.tdf.sunflower.facade
 
 import org.tdf.common.store.Store
+import org.tdf.common.store.UnitOfWork
 
 interface DatabaseStoreFactory {
     val directory: String
     fun create(prefix: Char, comment: String = ""): Store<ByteArray, ByteArray>
     fun cleanup() {}
     val name: String?
+
+    // writes to created stores are buffered when unit of work began and flushed atomically
+    val unitOfWork: UnitOfWork
+
+    // pin a point-in-time view of created stores for reads of current thread
+    fun snapshot(): AutoCloseable
 }
\ No newline at end of file
@@ -1,11 +1,20 @@
 package org.tdf.sunflower.facade
 
+import org.tdf.common.store.UnitOfWork
 import java.io.Closeable
 import java.util.concurrent.locks.Lock
 
-class LockedRepositoryWriter(private val proxy: RepositoryWriter, val lock: Lock) : RepositoryWriter by proxy,
+class LockedRepositoryWriter(
+    private val proxy: RepositoryWriter,
+    val lock: Lock,
+    private val unitOfWork: UnitOfWork? = null
+) : RepositoryWriter by proxy,
     Closeable {
     override fun close() {
-        lock.unlock()
+        try {
+            unitOfWork?.commit()
+        } finally {
+            lock.unlock()
+        }
     }
 }
\ No newline at end of file
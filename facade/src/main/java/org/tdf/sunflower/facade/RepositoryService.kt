@@ -1,7 +1,9 @@
 package org.tdf.sunflower.facade;
 
+import org.tdf.common.store.UnitOfWork
 import org.tdf.common.util.LogLock
 import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
 import java.util.concurrent.locks.ReentrantReadWriteLock
 
 interface RepositoryService {
@@ -11,14 +13,26 @@ interface RepositoryService {
     fun reader(timeout: Long, unit: TimeUnit): RepositoryReader?
 }
 
-class RepositoryServiceImpl(private val proxy: RepositoryWriter) : RepositoryService {
+class RepositoryServiceImpl(
+    private val proxy: RepositoryWriter,
+    // writes of a writer session are flushed in one atomic batch when writer closed
+    private val unitOfWork: UnitOfWork? = null,
+    // readers read from a database snapshot instead of holding read lock if present
+    private val snapshot: Supplier<AutoCloseable>? = null
+) : RepositoryService {
     private val lock = ReentrantReadWriteLock()
     private val readLock = LogLock(lock.readLock(), "repo-r")
     private val writeLock = LogLock(lock.writeLock(), "repo-w")
 
 
+    // the writer thread reads its own writes which are not in snapshot
+    private val snapshotEnabled: Boolean
+        get() = snapshot != null && unitOfWork?.active != true
+
     override val reader: RepositoryReader
         get() {
+            if (snapshotEnabled)
+                return SnapshotRepositoryReader(proxy, snapshot!!.get())
             readLock.lock()
             return LockedRepositoryReader(proxy, readLock)
         }
@@ -26,10 +40,13 @@ class RepositoryServiceImpl(private val proxy: RepositoryWriter) : RepositorySer
     override val writer: RepositoryWriter
         get() {
             writeLock.lock()
-            return LockedRepositoryWriter(proxy, writeLock)
+            unitOfWork?.begin()
+            return LockedRepositoryWriter(proxy, writeLock, unitOfWork)
         }
 
     override fun reader(timeout: Long, unit: TimeUnit): RepositoryReader? {
+        if (snapshotEnabled)
+            return SnapshotRepositoryReader(proxy, snapshot!!.get())
         if (!readLock.tryLock(timeout, unit))
             return null
         return LockedRepositoryReader(proxy, readLock)
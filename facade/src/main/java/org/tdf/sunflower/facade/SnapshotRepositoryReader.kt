@@ -0,0 +1,12 @@
+package org.tdf.sunflower.facade
+
+import java.io.Closeable
+
+// reader over a pinned database snapshot, reads never wait for writer
+class SnapshotRepositoryReader(private val proxy: RepositoryReader, private val snapshot: AutoCloseable) :
+    RepositoryReader by proxy,
+    Closeable {
+    override fun close() {
+        snapshot.close()
+    }
+}
@@ -0,0 +1,33 @@
+package org.tdf.sunflower.state
+
+import org.tdf.common.util.HexBytes
+
+/**
+ * flat view of account trie and contract storage tries, accounts and storage are read without walking tries,
+ * tries are only used to compute state roots
+ */
+interface FlatStates {
+    /**
+     * get account at state root, empty account if not exists, null if states at root are not available
+     */
+    fun getAccount(root: HexBytes, address: HexBytes): Account?
+
+    /**
+     * get storage value at state root, empty if not exists, null if states at root are not available
+     */
+    fun getStorage(root: HexBytes, address: HexBytes, key: HexBytes): HexBytes?
+
+    /**
+     * record states modified from parent root to root
+     *
+     * @param accounts modified accounts, removed account is empty
+     * @param storage modified storage of accounts, removed value is empty
+     */
+    fun update(
+        parent: HexBytes,
+        root: HexBytes,
+        height: Long,
+        accounts: Map<HexBytes, Account>,
+        storage: Map<HexBytes, Map<HexBytes, HexBytes>>
+    )
+}
@@ -6,6 +6,7 @@ import org.tdf.common.util.HexBytes
 import org.tdf.common.util.hex
 import org.tdf.sunflower.facade.RepositoryReader
 import org.tdf.sunflower.types.Header
+import org.tdf.sunflower.types.Transaction
 import org.tdf.sunflower.vm.*
 import org.tdf.sunflower.vm.abi.Abi
 
@@ -40,6 +41,11 @@ interface StateTrie<ID, S> {
         root: HexBytes = parent.stateRoot,
     ): Backend
 
+    /**
+     * load trie paths of accounts touched by transactions at root in background before execution
+     */
+    fun prefetch(root: HexBytes, transactions: List<Transaction>) {}
+
     fun createWrapper(
         rd: RepositoryReader,
         parent: Header,
@@ -6,8 +6,7 @@ import com.github.salpadding.rlpstream.annotation.RlpProps
 import org.tdf.common.crypto.ECDSASignature
 import org.tdf.common.crypto.ECKey
 import org.tdf.common.serialize.Codec
-import org.tdf.common.trie.Trie
-import org.tdf.common.trie.TrieImpl
+import org.tdf.common.trie.StackTrie
 import org.tdf.common.types.Chained
 import org.tdf.common.types.Constants.WORD_SIZE
 import org.tdf.common.types.Hashed
@@ -280,12 +279,8 @@ data class TransactionReceipt(
         }
 
         fun calcTrie(receipts: List<TransactionReceipt>): H256 {
-            val receiptsTrie: Trie<ByteArray, ByteArray> = TrieImpl()
             if (receipts.isEmpty()) return HashUtil.EMPTY_TRIE_HASH_HEX
-            for (i in receipts.indices) {
-                receiptsTrie[i.rlp()] = receipts[i].trie
-            }
-            return receiptsTrie.commit()
+            return StackTrie.orderedListRoot(receipts.map { it.trie }).hex()
         }
 
         fun bloomOf(receipts: List<TransactionReceipt>): Bloom {
@@ -377,13 +372,9 @@ data class Transaction(
 
         @JvmStatic
         fun calcTxTrie(transactions: List<Transaction>): HexBytes {
-            val txsState: Trie<ByteArray, ByteArray> = TrieImpl()
             if (transactions.isEmpty())
                 return HashUtil.EMPTY_TRIE_HASH_HEX
-            for (i in transactions.indices) {
-                txsState[i.rlp()] = transactions[i].encoded
-            }
-            return txsState.commit()
+            return StackTrie.orderedListRoot(transactions.map { it.encoded }).hex()
         }
 
         @RlpCreator
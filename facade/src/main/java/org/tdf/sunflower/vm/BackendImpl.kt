@@ -10,6 +10,7 @@ import org.tdf.common.util.sha3
 import org.tdf.sunflower.state.Account
 import org.tdf.sunflower.state.AddrUtil
 import org.tdf.sunflower.state.Builtin
+import org.tdf.sunflower.state.FlatStates
 import org.tdf.sunflower.types.Header
 
 // backend for mining
@@ -29,14 +30,19 @@ class BackendImpl(
     // code hash -> code
     private val codeCache: MutableMap<HexBytes, HexBytes> = mutableMapOf(),
     override val height: Long = (parent?.height ?: -1) + 1,
-    private val consensusCode: Map<HexBytes, HexBytes> = emptyMap()
+    private val consensusCode: Map<HexBytes, HexBytes> = emptyMap(),
+    // flat states to read accounts and storage at trie root, null means read from trie
+    private val flat: FlatStates? = null
 ) : Backend {
+    private val stateRoot: HexBytes by lazy { trie.rootHash }
+
     // get account without clone
     private fun lookup(address: HexBytes): Account {
         val a = modifiedAccounts[address]
         if (a != null)
             return a
         if (parentBackend != null) return parentBackend.lookup(address)
+        flat?.getAccount(stateRoot, address)?.let { return it }
         val aInTrie = trie[address]
         return aInTrie ?: Account.empty()
     }
@@ -54,6 +60,7 @@ class BackendImpl(
             staticCall,
             codeStore,
             codeCache,
+            flat = flat,
         )
     }
 
@@ -84,6 +91,7 @@ class BackendImpl(
         modified.addAll(storage.keys)
 
         val tmpTrie = trie.revert(trie.rootHash)
+        val updated: MutableMap<HexBytes, Account> = mutableMapOf()
         for (addr in modified) {
             // some account has not touched, but storage or code modified
             var a = accounts[addr] ?: lookup(addr)
@@ -97,6 +105,7 @@ class BackendImpl(
                 }
             }
             a = a.copy(storageRoot = s.commit())
+            updated[addr] = if (a.isEmpty) Account.empty() else a
 
             if (!a.isEmpty)
                 tmpTrie[addr] = a
@@ -105,7 +114,9 @@ class BackendImpl(
 
             codeCache[a.contractHash]?.let { codeStore[a.contractHash] = it }
         }
-        return tmpTrie.commit()
+        val r = tmpTrie.commit()
+        flat?.update(trie.rootHash, r, height, updated, storage)
+        return r
     }
 
     override fun close() {
@@ -168,6 +179,7 @@ class BackendImpl(
         if (parentBackend != null) {
             return parentBackend.dbGet(address, key)
         }
+        flat?.getStorage(stateRoot, address, key)?.let { return it }
         val a = trie[address] ?: return HexBytes.empty()
         val v = contractStorageTrie.revert(a.storageRoot)[key]
         return v ?: HexBytes.empty()
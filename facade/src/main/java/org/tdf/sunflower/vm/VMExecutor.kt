@@ -5,6 +5,7 @@ import com.google.common.cache.CacheBuilder
 import org.slf4j.LoggerFactory
 import org.tdf.common.types.Uint256
 import org.tdf.common.util.*
+import org.tdf.evm.CodeAnalysis
 import org.tdf.evm.EvmCallData
 import org.tdf.evm.EvmContext
 import org.tdf.evm.Interpreter
@@ -97,6 +98,8 @@ data class VMExecutor(
         var code: ByteArray
         // contract constructor/call arguments
         var data: ByteArray
+        // analysis of deployed evm code, creation code is analyzed by interpreter
+        var analysis: CodeAnalysis? = null
         // if call context is evm, else web assembly
         val isWasm: Boolean
         val receiver = callData.to
@@ -145,6 +148,8 @@ data class VMExecutor(
                 isWasm = isWasm(code)
                 if(isWasm)
                     require(WASM_ENABLED)
+                if (!isWasm && code.isNotEmpty())
+                    analysis = ANALYSIS[hash, { CodeAnalysis(code) }]
             }
         }
         // call a non-contract account
@@ -152,10 +157,10 @@ data class VMExecutor(
         backend.addBalance(receiver, callData.value)
         backend.subBalance(callData.caller, callData.value)
         if (code.isEmpty()) return ByteUtil.EMPTY_BYTE_ARRAY
-        if (isWasm) return executeWasm(create, code, data) else return executeEvm(create, code, data)
+        if (isWasm) return executeWasm(create, code, data) else return executeEvm(create, code, data, analysis)
     }
 
-    private fun executeEvm(create: Boolean, code: ByteArray, input: ByteArray): ByteArray {
+    private fun executeEvm(create: Boolean, code: ByteArray, input: ByteArray, analysis: CodeAnalysis?): ByteArray {
         val evmCallData = EvmCallData(
             callData.caller.bytes,
             callData.to.bytes,
@@ -172,7 +177,10 @@ data class VMExecutor(
         )
         val host = EvmHostImpl(this)
         val interpreter =
-            Interpreter(host, ctx, evmCallData, printStream, limit, EVM_MAX_STACK_SIZE, EVM_MAX_MEMORY_SIZE)
+            Interpreter(
+                host, ctx, evmCallData, printStream, limit, EVM_MAX_STACK_SIZE, EVM_MAX_MEMORY_SIZE, analysis,
+                jitThreshold
+            )
         val ret = interpreter.execute()
         if (create) {
             backend.setCode(callData.to, ret.hex())
@@ -315,11 +323,22 @@ data class VMExecutor(
             .maximumWeight(1024L * 1024L * 8L) // 8mb cache for contracts
             .build()
 
+        // code hash -> analysis of evm code, jump destinations, instructions, basic blocks and block gas
+        val ANALYSIS: Cache<HexBytes, CodeAnalysis> = CacheBuilder
+            .newBuilder()
+            .weigher { k: Any, v: Any -> (v as CodeAnalysis).size + (k as HexBytes).size }
+            .maximumWeight(1024L * 1024L * 16L)
+            .build()
+
         private val COUNTER = AtomicInteger()
         private val WASM_MAGIC = byteArrayOf(0x00, 0x61, 0x73, 0x6d)
         private val log = LoggerFactory.getLogger("vm")
         private var outDirectory = ""
 
+        // executions of code before its blocks are compiled, 0 means never
+        @Volatile
+        var jitThreshold = 0
+
         fun enableDebug(outDirectory: String) {
             this.outDirectory = outDirectory
         }
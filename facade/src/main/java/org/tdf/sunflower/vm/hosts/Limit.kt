@@ -1,6 +1,6 @@
 package org.tdf.sunflower.vm.hosts
 
-import org.tdf.evm.EvmHook
+import org.tdf.evm.EvmGasMeter
 import org.tdf.evm.OpCodes
 import org.tdf.lotusvm.common.OpCode
 import org.tdf.lotusvm.runtime.Hook
@@ -8,7 +8,7 @@ import org.tdf.lotusvm.runtime.HostFunction
 import org.tdf.lotusvm.runtime.Memory.Companion.PAGE_SIZE
 import org.tdf.lotusvm.runtime.ModuleInstanceImpl
 
-class Limit(val gasLimit: Long) : Hook, EvmHook {
+class Limit(val gasLimit: Long) : Hook, EvmGasMeter {
 
 
     var runtimeGas: Long = 0
@@ -34,42 +34,57 @@ class Limit(val gasLimit: Long) : Hook, EvmHook {
         if (afterGrow > MAX_MEMORY) println("memory size overflow")
     }
 
-    // 1 evm op = 20 gas
-    override fun onOp(op: Int, extraInfo: Long) {
-        if (op >= OpCodes.LT && op <= OpCodes.SAR) {
-            runtimeGas += 3
-        }
+    // evm ops are metered by block, only EXP and SHA3 are hooked
+    override val gasTable: LongArray
+        get() = GAS_TABLE
 
-        when (op) {
-            // https://github.com/crytic/evm-opcodes
-            // https://docs.google.com/spreadsheets/d/1n6mRqkBz3iWcOlRem_mO09GtSKEKrAsfO7Frgx18pNU/edit#gid=0
-            OpCodes.STOP -> runtimeGas += 0
-            OpCodes.JUMPDEST -> runtimeGas += 1
-            OpCodes.ADDRESS, in OpCodes.ORIGIN..OpCodes.CALLVALUE, OpCodes.CODESIZE, OpCodes.GASPRICE,
-            OpCodes.RETURNDATASIZE, in OpCodes.COINBASE..OpCodes.POP,
-            OpCodes.CALLDATASIZE,
-            in OpCodes.PC..OpCodes.GAS,
-            -> runtimeGas += 2
-            OpCodes.ADD, OpCodes.SUB, OpCodes.CALLDATALOAD -> runtimeGas += 3
-            in OpCodes.LT..OpCodes.SAR -> runtimeGas += 3
-            in OpCodes.PUSH1..OpCodes.SWAP16 -> runtimeGas += 3
-            OpCodes.MUL, in OpCodes.DIV..OpCodes.SMOD, OpCodes.SIGNEXTEND -> runtimeGas += 5
-            OpCodes.ADDMOD, OpCodes.MULMOD -> runtimeGas += 8
-            OpCodes.EXP -> runtimeGas += if (extraInfo == 0L) 10 else 10 * extraInfo
-            OpCodes.SHA3 -> runtimeGas += 30 + 6 * extraInfo / 32
-            OpCodes.BALANCE, OpCodes.EXTCODESIZE, OpCodes.EXTCODEHASH -> runtimeGas += 700
-            OpCodes.SSTORE -> runtimeGas += 5000
-            OpCodes.SLOAD -> runtimeGas += 800
-            in OpCodes.LOG0..OpCodes.LOG4
-            -> runtimeGas += 375 + (op - OpCodes.LOG0) * 375
-            OpCodes.CREATE, OpCodes.CREATE2 -> runtimeGas += 32000
-            else -> runtimeGas += 5
-        }
+    override fun onBlock(gas: Long) {
+        runtimeGas += gas
         if (totalGas > gasLimit) throw RuntimeException("gas overflow total gas = $totalGas, gasLimit = $gasLimit ")
     }
 
+    override fun onOp(op: Int, extraInfo: Long) {
+        runtimeGas += gasOf(op, extraInfo)
+        if (totalGas > gasLimit) throw RuntimeException("gas overflow total gas = $totalGas, gasLimit = $gasLimit ")
+    }
 
     companion object {
         const val MAX_MEMORY: Int = 256 * PAGE_SIZE // memory is limited to less than 256 page = 16mb
+
+        private val GAS_TABLE = LongArray(256) {
+            if (it == OpCodes.EXP || it == OpCodes.SHA3) -1L else gasOf(it, 0)
+        }
+
+        // 1 evm op = 20 gas
+        private fun gasOf(op: Int, extraInfo: Long): Long {
+            // comparison and bitwise ops are charged twice
+            val base = if (op >= OpCodes.LT && op <= OpCodes.SAR) 3L else 0L
+
+            return base + when (op) {
+                // https://github.com/crytic/evm-opcodes
+                // https://docs.google.com/spreadsheets/d/1n6mRqkBz3iWcOlRem_mO09GtSKEKrAsfO7Frgx18pNU/edit#gid=0
+                OpCodes.STOP -> 0L
+                OpCodes.JUMPDEST -> 1L
+                OpCodes.ADDRESS, in OpCodes.ORIGIN..OpCodes.CALLVALUE, OpCodes.CODESIZE, OpCodes.GASPRICE,
+                OpCodes.RETURNDATASIZE, in OpCodes.COINBASE..OpCodes.POP,
+                OpCodes.CALLDATASIZE,
+                in OpCodes.PC..OpCodes.GAS,
+                -> 2L
+                OpCodes.ADD, OpCodes.SUB, OpCodes.CALLDATALOAD -> 3L
+                in OpCodes.LT..OpCodes.SAR -> 3L
+                in OpCodes.PUSH1..OpCodes.SWAP16 -> 3L
+                OpCodes.MUL, in OpCodes.DIV..OpCodes.SMOD, OpCodes.SIGNEXTEND -> 5L
+                OpCodes.ADDMOD, OpCodes.MULMOD -> 8L
+                OpCodes.EXP -> if (extraInfo == 0L) 10L else 10 * extraInfo
+                OpCodes.SHA3 -> 30L + 6 * extraInfo / 32
+                OpCodes.BALANCE, OpCodes.EXTCODESIZE, OpCodes.EXTCODEHASH -> 700L
+                OpCodes.SSTORE -> 5000L
+                OpCodes.SLOAD -> 800L
+                in OpCodes.LOG0..OpCodes.LOG4
+                -> 375L + (op - OpCodes.LOG0) * 375L
+                OpCodes.CREATE, OpCodes.CREATE2 -> 32000L
+                else -> 5L
+            }
+        }
     }
 }
\ No newline at end of file
@@ -4,6 +4,9 @@ import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.JsonNode
 import org.springframework.core.env.Environment
 import org.tdf.common.crypto.ECKey
+import org.tdf.common.trie.NodeCache
+import org.tdf.common.trie.PreimageCache
+import org.tdf.common.trie.TrieImpl
 import org.tdf.common.types.Constants
 import org.tdf.common.types.Uint256
 import org.tdf.common.util.HexBytes
@@ -86,7 +89,29 @@ class AppConfig(private val properties: PropertyLike) {
 
     val vmGasPrice: Uint256 = reader.getAsU256("sunflower.vm.gas-price", Uint256.ZERO)
     val isVmDebug: Boolean = reader.getAsBool("sunflower.vm.debug")
+
+    // executions of contract code before its basic blocks are compiled into jvm classes, 0 means never
+    val vmJitThreshold: Int = reader.getAsInt("sunflower.vm.jit-threshold", 0)
     val isTrieSecure: Boolean = reader.getAsBool("sunflower.trie.secure")
+
+    // dirty subtrees of account and storage trie are hashed in parallel above this count of dirty nodes, 0 means never
+    val trieParallelThreshold: Int = reader.getAsInt("sunflower.trie.parallel-threshold", TrieImpl.PARALLEL_THRESHOLD)
+
+    // dirty trie nodes are written into store when their estimated bytes reaches it, 0 means never,
+    // intermediate nodes written early are left in store, so it is only for large genesis or bulk import
+    val trieFlushThreshold: Long = reader.getAsLong("sunflower.trie.flush-threshold", 0)
+
+    // bytes of decoded nodes cached for account and storage trie stores, 0 means no cache
+    val trieNodeCacheSize: Long = reader.getAsLong("sunflower.trie.node-cache-size", NodeCache.DEFAULT_CAPACITY)
+
+    // threads loading trie nodes of transaction accounts before execution, 0 means no prefetch
+    val triePrefetchThreads: Int = reader.getAsInt("sunflower.trie.prefetch-threads", 0)
+
+    // count of cached hashed keys of each secure trie
+    val trieKeyCacheSize: Long = reader.getAsLong("sunflower.trie.key-cache-size", PreimageCache.DEFAULT_SIZE)
+
+    // persist preimages of secure trie keys, so tries could be traversed by original keys
+    val isTriePreimages: Boolean = reader.getAsBool("sunflower.trie.preimages")
     val chainId: Int get() = genesisJson["chainId"]?.asInt() ?: Constants.DEFAULT_CHAIN_ID
     val rpcTimeOut: Int get() = reader.getAsInt("sunflower.rpc.timeout", Int.MAX_VALUE)
 
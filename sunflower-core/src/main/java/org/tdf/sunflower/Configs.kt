@@ -3,6 +3,7 @@ package org.tdf.sunflower
 import org.springframework.boot.context.properties.ConfigurationProperties
 import org.springframework.stereotype.Component
 import org.tdf.sunflower.facade.PropertiesWrapper
+import org.tdf.sunflower.state.StatePruner
 import org.tdf.sunflower.types.PropertyReader
 import java.util.*
 
@@ -32,6 +33,24 @@ class DatabaseConfig(properties: DatabaseConfigProperties) {
     val directory: String = rd.getAsNonNull("directory")
     val reset: Boolean = rd.getAsBool("reset")
     val blockStore: String = rd.getAsNonNull("block-store")
+
+    // bytes of node cache shared by account trie and contract storage trie, 0 means no cache
+    val trieCacheSize: Long = rd.getAsLong("trie-cache-size", 256L * 1024 * 1024)
+    val trieCacheOffHeap: Boolean = rd.getAsBool("trie-cache-off-heap")
+
+    // keep states of the last prune-retain blocks, 0 means no pruning
+    val pruneRetain: Long = rd.getAsLong("prune-retain", 0)
+    val pruneInterval: Long = rd.getAsLong("prune-interval", 600)
+
+    // expected count of retained nodes per trie store, marks of a prune cycle take about 1.2 bytes per node
+    val pruneExpectedNodes: Long = rd.getAsLong("prune-expected-nodes", StatePruner.EXPECTED_NODES)
+
+    // move canonical blocks deeper than ancient-depth into ancient store, 0 means no freezing
+    val ancientDepth: Long = rd.getAsLong("ancient-depth", 0)
+    val ancientInterval: Long = rd.getAsLong("ancient-interval", 60)
+
+    // keep flat states with at most snapshot-depth diff layers in memory, 0 means no snapshot
+    val snapshotDepth: Int = rd.getAsInt("snapshot-depth", 128)
 }
 
 @ConfigurationProperties(prefix = "sunflower")
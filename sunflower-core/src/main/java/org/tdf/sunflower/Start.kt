@@ -16,10 +16,14 @@ import org.springframework.util.ClassUtils
 import org.springframework.web.filter.CommonsRequestLoggingFilter
 import org.tdf.common.event.EventBus
 import org.tdf.common.serialize.Codecs
+import org.tdf.common.store.AncientStore
 import org.tdf.common.store.JsonStore
-import org.tdf.common.store.NoDeleteStore
+import org.tdf.common.store.MappedLog
+import org.tdf.common.store.PrunableStore
 import org.tdf.common.store.Store
 import org.tdf.common.store.StoreWrapper
+import org.tdf.common.trie.NodeCache
+import org.tdf.common.trie.PreimageCache
 import org.tdf.common.trie.SecureTrie
 import org.tdf.common.trie.Trie
 import org.tdf.common.trie.TrieImpl
@@ -32,8 +36,12 @@ import org.tdf.sunflower.facade.*
 import org.tdf.sunflower.net.PeerServer
 import org.tdf.sunflower.net.PeerServerImpl
 import org.tdf.sunflower.pool.TransactionPoolImpl
+import org.tdf.sunflower.service.Freezer
 import org.tdf.sunflower.service.RepositoryKVImpl
+import org.tdf.sunflower.service.RepositoryLogImpl
 import org.tdf.sunflower.state.AccountTrie
+import org.tdf.sunflower.state.StatePruner
+import org.tdf.sunflower.state.StateSnapshot
 import org.tdf.sunflower.types.ConsensusConfig
 import org.tdf.sunflower.types.PropertyReader
 import org.tdf.sunflower.util.FileUtils
@@ -50,23 +58,70 @@ import java.util.*
 // for example: SPRING_CONFIG_LOCATION=classpath:\application.yml,some-path\custom-config.yml
 open class Start {
     @Bean
-    open fun sunflowerRepository(
+    open fun blockStore(
         cfg: DatabaseConfig,
         bus: EventBus,
         factory: DatabaseStoreFactory,
         accountTrie: AccountTrie,
-    ): RepositoryServiceImpl {
+    ): RepositoryKVImpl {
+        val ancient = if (cfg.ancientDepth > 0) AncientStore(Paths.get(factory.directory, "ancient").toString()) else null
         when (val type = cfg.blockStore) {
             "rdbms" -> {
                 throw UnsupportedOperationException()
             }
             "kv" -> {
-                return RepositoryServiceImpl(RepositoryKVImpl(bus, factory, accountTrie))
+                return RepositoryKVImpl(bus, factory, accountTrie, ancient)
+            }
+            "log" -> {
+                val bodies = MappedLog(Paths.get(factory.directory, "blocks").toString())
+                return RepositoryLogImpl(bus, factory, accountTrie, bodies, ancient)
             }
             else -> throw RuntimeException("unknown block store type: $type")
         }
     }
 
+    @Bean
+    open fun sunflowerRepository(factory: DatabaseStoreFactory, blockStore: RepositoryKVImpl): RepositoryServiceImpl {
+        return RepositoryServiceImpl(blockStore, factory.unitOfWork, factory::snapshot)
+    }
+
+    @Bean
+    open fun stateSnapshot(
+        cfg: DatabaseConfig,
+        factory: DatabaseStoreFactory,
+        repoSrv: RepositoryServiceImpl,
+        accountTrie: AccountTrie,
+        bus: EventBus,
+        engine: ConsensusEngine // this dependency asserts genesis states had been written
+    ): StateSnapshot {
+        val snapshot = StateSnapshot(
+            factory.create('d', "flat state snapshot"), factory.unitOfWork, accountTrie, repoSrv, bus, cfg.snapshotDepth
+        )
+        if (cfg.snapshotDepth > 0) snapshot.start()
+        return snapshot
+    }
+
+    @Bean
+    open fun freezer(cfg: DatabaseConfig, repoSrv: RepositoryServiceImpl, blockStore: RepositoryKVImpl): Freezer {
+        val freezer = Freezer(repoSrv, blockStore, cfg.ancientDepth)
+        freezer.start(cfg.ancientInterval)
+        return freezer
+    }
+
+    @Bean
+    open fun statePruner(
+        cfg: DatabaseConfig,
+        repoSrv: RepositoryServiceImpl,
+        accountTrie: AccountTrie,
+        @Qualifier("contractStorageTrie") contractStorageTrie: Trie<HexBytes, HexBytes>
+    ): StatePruner {
+        val pruner = StatePruner(
+            repoSrv, accountTrie.trie, contractStorageTrie, cfg.pruneRetain, expectedNodes = cfg.pruneExpectedNodes
+        )
+        pruner.start(cfg.pruneInterval)
+        return pruner
+    }
+
     @Bean
     open fun objectMapper(): ObjectMapper {
         return MAPPER
@@ -103,13 +158,21 @@ open class Start {
         databaseStoreFactory: DatabaseStoreFactory,
         @Qualifier("contractStorageTrie") contractStorageTrie: Trie<HexBytes, HexBytes>,
         @Qualifier("contractCodeStore") contractCodeStore: Store<HexBytes, HexBytes>,
+        @Qualifier("preimageStore") preimageStore: Store<ByteArray, ByteArray>,
+        @Qualifier("accountNodeCache") nodeCache: NodeCache,
         c: AppConfig
     ): AccountTrie {
         return AccountTrie(
             databaseStoreFactory.create('a', "account trie"),
             contractCodeStore,
             contractStorageTrie,
-            c.isTrieSecure
+            c.isTrieSecure,
+            c.trieParallelThreshold,
+            c.trieFlushThreshold,
+            c.triePrefetchThreads,
+            c.trieKeyCacheSize,
+            if (c.isTriePreimages) preimageStore else null,
+            nodeCache
         )
     }
 
@@ -214,17 +277,42 @@ open class Start {
         )
     }
 
+    // decoded nodes of account trie store, node cache size is split between account and storage trie stores
+    @Bean
+    open fun accountNodeCache(c: AppConfig): NodeCache {
+        return NodeCache(c.trieNodeCacheSize / 2)
+    }
+
+    // decoded nodes of contract storage trie store
+    @Bean
+    open fun storageNodeCache(c: AppConfig): NodeCache {
+        return NodeCache(c.trieNodeCacheSize / 2)
+    }
+
     // storage root of contract store
     @Bean
-    open fun contractStorageTrie(factory: DatabaseStoreFactory, c: AppConfig): Trie<HexBytes, HexBytes> {
+    open fun contractStorageTrie(
+        factory: DatabaseStoreFactory,
+        @Qualifier("preimageStore") preimageStore: Store<ByteArray, ByteArray>,
+        @Qualifier("storageNodeCache") nodeCache: NodeCache,
+        c: AppConfig
+    ): Trie<HexBytes, HexBytes> {
         val ret = TrieImpl(
-            NoDeleteStore(
-                factory.create('o', "contract storage trie")
-            ) { it == null || it.isEmpty() },
+            PrunableStore(factory.create('o', "contract storage trie"), nodeCache),
             Codecs.hex,
-            Codecs.hex
+            Codecs.hex,
+            parallelThreshold = c.trieParallelThreshold,
+            flushThreshold = c.trieFlushThreshold,
+            nodeCache = nodeCache
         )
-        return if (c.isTrieSecure) SecureTrie(ret) else ret
+        if (!c.isTrieSecure) return ret
+        return SecureTrie(ret, PreimageCache(Codecs.hex, c.trieKeyCacheSize, preimageStore.takeIf { c.isTriePreimages }))
+    }
+
+    // hashed key -> original key of secure tries, written only if preimages are enabled
+    @Bean
+    open fun preimageStore(factory: DatabaseStoreFactory): Store<ByteArray, ByteArray> {
+        return factory.create('p', "secure trie key preimages")
     }
 
     // contract hash code -> contract binary
@@ -306,6 +394,7 @@ open class Start {
 
             app.addInitializers({
                 loadConstants(it.environment)
+                VMExecutor.jitThreshold = AppConfig.get().vmJitThreshold
                 if (AppConfig.get().isVmDebug) VMExecutor.enableDebug(
                     Paths.get(
                         System.getProperty("user.dir"),
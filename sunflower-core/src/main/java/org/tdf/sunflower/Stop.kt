@@ -5,6 +5,11 @@ import org.springframework.stereotype.Component
 import org.tdf.sunflower.facade.DatabaseStoreFactory
 import org.tdf.sunflower.facade.Miner
 import org.tdf.sunflower.net.PeerServer
+import org.tdf.sunflower.service.Freezer
+import org.tdf.sunflower.service.RepositoryKVImpl
+import org.tdf.sunflower.state.AccountTrie
+import org.tdf.sunflower.state.StatePruner
+import org.tdf.sunflower.state.StateSnapshot
 import javax.annotation.PreDestroy
 
 // resource cleaner
@@ -12,7 +17,12 @@ import javax.annotation.PreDestroy
 class Stop(
     private val miner: Miner,
     private val peerServer: PeerServer,
-    private val factory: DatabaseStoreFactory
+    private val factory: DatabaseStoreFactory,
+    private val pruner: StatePruner,
+    private val freezer: Freezer,
+    private val snapshot: StateSnapshot,
+    private val accountTrie: AccountTrie,
+    private val blockStore: RepositoryKVImpl
 ) {
     @PreDestroy
     @Throws(Exception::class)
@@ -20,6 +30,11 @@ class Stop(
         log.info("clean resources before exit program...")
         miner.stop()
         peerServer.stop()
+        pruner.stop()
+        freezer.stop()
+        snapshot.stop()
+        accountTrie.stop()
+        blockStore.stop()
         factory.cleanup()
     }
 
@@ -5,6 +5,7 @@ import org.iq80.leveldb.impl.Iq80DBFactory
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Component
 import org.tdf.common.store.*
+import org.tdf.common.util.ByteArrayMap
 import org.tdf.sunflower.DatabaseConfig
 import org.tdf.sunflower.facade.DatabaseStoreFactory
 
@@ -12,6 +13,10 @@ import org.tdf.sunflower.facade.DatabaseStoreFactory
 class DatabaseStoreFactoryImpl(private val config: DatabaseConfig) : DatabaseStoreFactory {
     private val created: MutableSet<Byte> = mutableSetOf()
     private val base: DatabaseStore
+    override val unitOfWork: UnitOfWork
+
+    // node caches of trie stores, prefix -> cache
+    val caches: MutableMap<String, CachedStore> = mutableMapOf()
     override val directory: String
         get() = config.directory
 
@@ -22,16 +27,43 @@ class DatabaseStoreFactoryImpl(private val config: DatabaseConfig) : DatabaseSto
             throw RuntimeException("this prefix $prefix had been used")
         created.add(b)
 
-        return BasePrefixStore(base, byteArrayOf(b))
+        // rocksdb stores every prefix in its own column family
+        val rocks = base as? RocksDb
+        var store = rocks?.column(prefix.toString()) ?: BasePrefixStore(base, byteArrayOf(b))
+
+        // hot nodes near the trie root are resolved by every reader, cache them below unit of work
+        if (prefix.toString() in TRIE_COLUMNS && config.trieCacheSize > 0) {
+            // nodes read from a pinned snapshot may have been pruned since, they are not cached
+            val cached = CachedStore(store, config.trieCacheSize / TRIE_COLUMNS.size, config.trieCacheOffHeap) {
+                !unitOfWork.pinned
+            }
+            caches[prefix.toString()] = cached
+            store = cached
+        }
+        return unitOfWork.wrap(prefix.toString(), store)
     }
 
     override val name: String
         get() = config.name
 
-    override fun cleanup() {}
+    override fun snapshot(): AutoCloseable {
+        return unitOfWork.snapshot { base.snapshot() }
+    }
+
+    override fun cleanup() {
+        caches.forEach { (k, v) -> log.info("trie node cache {} {}", k, v) }
+    }
 
     companion object {
         private val log = LoggerFactory.getLogger("db")
+
+        // account trie and contract storage trie
+        private val TRIE_COLUMNS = setOf("a", "o")
+
+        // tuning profile of column family
+        private fun columnSettings(column: String): DBSettings {
+            return if (column in TRIE_COLUMNS) DBSettings.TRIE else DBSettings.CHAIN
+        }
     }
 
     init {
@@ -40,18 +72,44 @@ class DatabaseStoreFactoryImpl(private val config: DatabaseConfig) : DatabaseSto
             "leveldb-jni", "leveldb" -> base = LevelDb(JniDBFactory.factory, config.directory)
             "memory" -> base = MemoryDatabaseStore()
             "leveldb-iq80" -> base = LevelDb(Iq80DBFactory.factory, config.directory)
+            "rocksdb" -> base = RocksDb(config.directory) { columnSettings(it) }
             else -> {
                 base = LevelDb(JniDBFactory.factory, config.directory)
                 log.warn("Data source is not supported, default is leveldb")
             }
         }
+        // leveldb keeps all stores in one keyspace, tune it for trie nodes which dominate reads
+        // but keep checksums since headers and transactions are not verified by hash
+        val profile = if (base is RocksDb) DBSettings.DEFAULT else DBSettings.TRIE.copy(verifyChecksums = true)
         base.init(
-            DBSettings(
-                config.maxOpenFiles, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+            profile.copy(
+                maxOpenFiles = config.maxOpenFiles,
+                maxThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
             )
         )
         if (config.reset) {
             base.clear()
         }
+        val db = base
+        unitOfWork = UnitOfWork { stores ->
+            // invalidated before and after the write, reads during the write are not cached
+            stores.forEach { (name, entries) ->
+                caches[name]?.let { c -> entries.forEach { c.invalidate(it.key) } }
+            }
+            if (db is RocksDb) {
+                db.putAll(stores)
+            } else {
+                // store name is the key prefix when all stores share one keyspace
+                val rows = ByteArrayMap<ByteArray>()
+                stores.forEach { (name, entries) ->
+                    val prefix = byteArrayOf(name[0].code.toByte())
+                    entries.forEach { rows[prefix + it.key] = it.value }
+                }
+                db.putAll(rows.entries)
+            }
+            stores.forEach { (name, entries) ->
+                caches[name]?.let { c -> entries.forEach { c.invalidate(it.key) } }
+            }
+        }
     }
 }
\ No newline at end of file
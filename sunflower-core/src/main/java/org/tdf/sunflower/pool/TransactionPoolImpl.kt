@@ -105,6 +105,7 @@ class TransactionPoolImpl(
         val errors: MutableMap<HexBytes, String> = mutableMapOf()
 
         writeLock.withLock {
+            pendingRec.backend?.let { trie.prefetch(it.root.trieRoot, transactions.toList()) }
             val newCollected: MutableList<Transaction> = mutableListOf()
             for (tx in transactions) {
                 log.debug("new tx {} received from {} rpc sender = {}, nonce = {}", tx.hash, source, tx.sender, tx.nonce)
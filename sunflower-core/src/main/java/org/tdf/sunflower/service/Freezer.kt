@@ -0,0 +1,51 @@
+package org.tdf.sunflower.service
+
+import org.slf4j.LoggerFactory
+import org.tdf.common.util.FixedDelayScheduler
+import org.tdf.sunflower.facade.RepositoryService
+
+/**
+ * moves canonical blocks deeper than depth into ancient store in background,
+ * every batch is frozen in a short writer session, so block import waits for one batch at most
+ */
+class Freezer(
+    private val repo: RepositoryService,
+    private val store: RepositoryKVImpl,
+    private val depth: Long,
+    private val batchSize: Int = 256
+) {
+    private var scheduler: FixedDelayScheduler? = null
+
+    fun start(interval: Long) {
+        if (depth <= 0) return
+        log.info("freezer started, depth = {} blocks, interval = {} seconds", depth, interval)
+        val s = FixedDelayScheduler("freezer", interval)
+        s.delay {
+            try {
+                freeze()
+            } catch (e: Exception) {
+                log.error("freeze failed", e)
+            }
+        }
+        scheduler = s
+    }
+
+    fun stop() {
+        scheduler?.shutdownNow()
+    }
+
+    @Synchronized
+    fun freeze(): Long {
+        var total = 0L
+        while (true) {
+            val n = repo.writer.use { store.freeze(depth, batchSize) }
+            total += n
+            if (n < batchSize) break
+        }
+        return total
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger("freezer")
+    }
+}
@@ -1,11 +1,17 @@
 package org.tdf.sunflower.service
 
+import com.github.salpadding.rlpstream.annotation.RlpCreator
+import com.github.salpadding.rlpstream.annotation.RlpProps
 import org.slf4j.LoggerFactory
 import org.tdf.common.event.EventBus
 import org.tdf.common.serialize.Codecs
+import org.tdf.common.store.AncientStore
+import org.tdf.common.store.CachingStoreWrapper
 import org.tdf.common.store.Store
 import org.tdf.common.store.StoreWrapper
 import org.tdf.common.util.HexBytes
+import org.tdf.common.util.decode
+import org.tdf.common.util.rlp
 import org.tdf.sunflower.events.NewBestBlock
 import org.tdf.sunflower.facade.DatabaseStoreFactory
 import org.tdf.sunflower.facade.TransactionInfo
@@ -15,10 +21,19 @@ import org.tdf.sunflower.state.AccountTrie
 import org.tdf.sunflower.types.*
 import java.util.*
 
-class RepositoryKVImpl(
+// canonical block and receipts of its transactions frozen in ancient store
+@RlpProps("block", "indices")
+class AncientBlock @RlpCreator constructor(val block: Block, val indices: Array<TransactionIndex>)
+
+/**
+ * @param ancient canonical blocks older than finality depth are moved into ancient store by freeze(),
+ * lookups fall back to ancient store when missed in key value store
+ */
+open class RepositoryKVImpl(
     bus: EventBus,
     factory: DatabaseStoreFactory,
-    accountTrie: AccountTrie
+    accountTrie: AccountTrie,
+    private val ancient: AncientStore? = null
 ) : AbstractRepository(
     bus, factory, accountTrie
 ) {
@@ -38,8 +53,10 @@ class RepositoryKVImpl(
     private val status: Store<String, Header>
 
     // transaction hash -> receipts
-    private val transactionIndices: Store<HexBytes, Array<TransactionIndex>>
+    protected val transactionIndices: Store<HexBytes, Array<TransactionIndex>>
 
+    // block hash or transaction hash -> height of frozen block
+    private val ancientLookup: Store<HexBytes, Long>
 
     override fun saveGenesis(b: Block) {
         super.saveGenesis(b)
@@ -48,21 +65,65 @@ class RepositoryKVImpl(
         }
     }
 
+    // save transactions and transactions root -> transaction hashes
+    protected open fun writeBody(block: Block) {
+        block.body.forEach { transactionsStore[it.hash] = it }
+        transactionsRoot[block.transactionsRoot] = block.body.map { it.hash }.toTypedArray()
+    }
+
+    protected open fun getTransaction(hash: HexBytes, index: TransactionIndex): Transaction? {
+        return transactionsStore[hash]
+    }
+
+    // remove transactions root of a frozen block, called after transaction indices of the block are removed
+    protected open fun removeBody(block: Block) {
+        // empty transactions root is shared by empty blocks
+        if (block.body.isEmpty()) return
+        // transactions root is shared by blocks of the same transactions, e.g. forks not frozen yet,
+        // such a block includes the first transaction too
+        val rest = transactionIndices[block.body[0].hash] ?: emptyArray()
+        if (rest.any { headerStore[it.blockHash]?.transactionsRoot == block.transactionsRoot }) return
+        transactionsRoot.remove(block.transactionsRoot)
+    }
+
+    /**
+     * close files of block store, called on exit
+     */
+    open fun stop() {
+        ancient?.close()
+    }
+
+    protected fun getAncient(height: Long): AncientBlock? {
+        return ancient?.get(height)?.decode(AncientBlock::class.java)
+    }
+
+    protected fun getAncientBlock(header: Header): Block? {
+        return getAncient(header.height)?.block?.takeIf { it.hash == header.hash }
+    }
+
     override fun getBlockFromHeader(header: Header): Block {
         val txHashes = transactionsRoot[header.transactionsRoot]
-            ?: throw RuntimeException("transactions of header $header not found")
+            ?: return getAncientBlock(header)
+                ?: throw RuntimeException("transactions of header $header not found")
         return Block(header, txHashes.map { transactionsStore[it]!! })
     }
 
     override fun containsHeader(hash: HexBytes): Boolean {
-        return headerStore[hash] != null
+        return getHeaderByHash(hash) != null
     }
 
     override val bestHeader: Header
         get() = status[BEST_HEADER]!!
 
     override fun getHeaderByHash(hash: HexBytes): Header? {
-        return headerStore[hash]
+        headerStore[hash]?.let { return it }
+        val h = ancientLookup[hash] ?: return null
+        return getAncient(h)?.block?.header
+    }
+
+    private fun getHeadersAt(height: Long): List<Header> {
+        val idx = heightIndex[height] ?: return listOfNotNull(getAncient(height)?.block?.header)
+        return idx.map { headerStore[it]!! }
     }
 
     override fun getHeadersBetween(startHeight: Long, stopHeight: Long, limit: Int, descend: Boolean): List<Header> {
@@ -74,9 +135,7 @@ class RepositoryKVImpl(
         }
 
         for (i in range) {
-            val idx = heightIndex[i] ?: continue
-            for (bytes in idx) {
-                val h = headerStore[bytes]!!
+            for (h in getHeadersAt(i)) {
                 ret.add(h)
                 if (ret.size == limit)
                     return ret
@@ -86,7 +145,7 @@ class RepositoryKVImpl(
     }
 
     private fun getCanonicalHashAt(height: Long): HexBytes? {
-        return heightIndex[height]?.getOrNull(0)
+        return heightIndex[height]?.getOrNull(0) ?: getAncient(height)?.block?.hash
     }
 
     private fun setCanonicalHashAt(height: Long, hash: HexBytes) {
@@ -96,30 +155,40 @@ class RepositoryKVImpl(
     }
 
     override fun getHeadersByHeight(height: Long): List<Header> {
-        return (heightIndex[height] ?: emptyArray()).map { getHeaderByHash(it)!! }
+        return getHeadersAt(height)
     }
 
     override fun writeBlock(b: Block, infos: List<TransactionInfo>) {
-        writeBlockNoReset(b, infos)
-        val best = bestBlock
-        if (Block.BEST_COMPARATOR.compare(best, b) < 0) {
-            status[BEST_HEADER] = b.header
-            var hash = b.hash
-            while (true) {
-                // reset canonical hash
-                val o = headerStore[hash] ?: break
-                val canonicalHash = getCanonicalHashAt(o.height)
-                if (canonicalHash == hash)
-                    break
-                setCanonicalHashAt(o.height, hash)
-                hash = o.hashPrev
+        val newBest: Boolean
+        try {
+            writeBlockNoReset(b, infos)
+            newBest = Block.BEST_COMPARATOR.compare(bestBlock, b) < 0
+            if (newBest) {
+                status[BEST_HEADER] = b.header
+                var hash = b.hash
+                while (true) {
+                    // reset canonical hash
+                    val o = headerStore[hash] ?: break
+                    val canonicalHash = getCanonicalHashAt(o.height)
+                    if (canonicalHash == hash)
+                        break
+                    setCanonicalHashAt(o.height, hash)
+                    hash = o.hashPrev
+                }
             }
-            eventBus.publish(NewBestBlock(b))
+        } catch (e: Exception) {
+            // discard partial writes of this block, include trie nodes of its state
+            factory.unitOfWork.rollback()
+            throw e
         }
+        // header, transactions, indices and trie nodes of this block are written in one batch
+        factory.unitOfWork.flush()
+        if (newBest)
+            eventBus.publish(NewBestBlock(b))
     }
 
     override fun containsTransaction(hash: HexBytes): Boolean {
-        return transactionsStore[hash] != null
+        return transactionsStore[hash] != null || ancientLookup[hash] != null
     }
 
     private fun isCanonical(h: Header): Boolean {
@@ -128,7 +197,7 @@ class RepositoryKVImpl(
     }
 
     private fun isCanonical(hash: HexBytes): Boolean {
-        val h = headerStore[hash] ?: return false
+        val h = getHeaderByHash(hash) ?: return false
         return isCanonical(h)
     }
 
@@ -147,13 +216,17 @@ class RepositoryKVImpl(
         }
         // if the block has written before
         if (containsHeader(block.hash)) return
+        // fork lower than finality depth is never canonical
+        if (ancient != null && block.height < ancient.size) {
+            log.warn("discard block {} at frozen height {}", block.hash, block.height)
+            return
+        }
         // write header into store
         headerStore[block.hash] = block.header
-        // save transaction and transaction infos
+        writeBody(block)
+        // save transaction infos
         for (i in block.body.indices) {
             val t = block.body[i]
-            // save transaction
-            transactionsStore[t.hash] = t
             val info = infos[i]
             val found = transactionIndices[t.hash]
             val founds: MutableList<TransactionIndex> = found?.toMutableList() ?: mutableListOf()
@@ -165,10 +238,6 @@ class RepositoryKVImpl(
             transactionIndices[t.hash] = founds.toTypedArray()
         }
 
-        // save transaction root -> tx hashes
-        val txHashes: Array<HexBytes> = block.body.map { it.hash }.toTypedArray()
-        transactionsRoot[block.transactionsRoot] = txHashes
-
         // save header index
         val headerHashes: MutableList<HexBytes> = heightIndex[block.height]?.toMutableList() ?: mutableListOf()
         headerHashes.remove(block.hash)
@@ -185,46 +254,124 @@ class RepositoryKVImpl(
 
     override fun getTransactionInfo(hash: HexBytes): TransactionInfo? {
         val infos = transactionIndices[hash] ?: emptyArray()
-        val i = infos.firstOrNull { isCanonical(it.blockHash) } ?: return null
-        return TransactionInfo(i, transactionsStore[hash]!!)
+        val i = infos.firstOrNull { isCanonical(it.blockHash) }
+            ?: return getAncientTransactionInfo(hash)
+        return TransactionInfo(i, getTransaction(hash, i)!!)
+    }
+
+    private fun getAncientTransactionInfo(hash: HexBytes): TransactionInfo? {
+        val h = ancientLookup[hash] ?: return null
+        val a = getAncient(h) ?: return null
+        val i = a.block.body.indexOfFirst { it.hash == hash }
+        return if (i < 0) null else TransactionInfo(a.indices[i], a.block.body[i])
+    }
+
+    /**
+     * move at most limit canonical blocks lower than best height - depth and forks at the same heights
+     * from key value store into ancient store, return count of frozen heights,
+     * items are durable when returned, removals from key value store are committed by writer session
+     */
+    fun freeze(depth: Long, limit: Int): Int {
+        val ancient = this.ancient ?: return 0
+        // drop frozen blocks whose removals were not committed
+        while (ancient.size > 0) {
+            val last = getAncient(ancient.size - 1)!!
+            if (ancientLookup[last.block.hash] != null) break
+            ancient.truncate(ancient.size - 1)
+        }
+
+        val start = ancient.size
+        val stop = minOf(bestHeader.height - depth, start + limit)
+        if (stop <= start) return 0
+        val frozen: MutableList<Block> = mutableListOf()
+        for (height in start until stop) {
+            val hashes = heightIndex[height] ?: throw RuntimeException("height index at $height not found")
+            val b = getBlockFromHeader(headerStore[hashes[0]]!!)
+            val indices = b.body.map { t ->
+                transactionIndices[t.hash]!!.first { it.blockHash == b.hash }
+            }
+            if (ancient.append(AncientBlock(b, indices.toTypedArray()).rlp()) != height)
+                throw RuntimeException("unexpected ancient size ${ancient.size}")
+            ancientLookup[b.hash] = height
+            b.body.forEach { ancientLookup[it.hash] = height }
+
+            frozen.add(b)
+            // forks at frozen height are dropped
+            frozen.addAll(hashes.drop(1).map { getBlockFromHeader(headerStore[it]!!) })
+            heightIndex.remove(height)
+        }
+        ancient.flush()
+
+        for (b in frozen) {
+            headerStore.remove(b.hash)
+            for (t in b.body) {
+                // transaction may be included by another block not frozen
+                val rest = transactionIndices[t.hash]?.filter { it.blockHash != b.hash } ?: emptyList()
+                if (rest.isEmpty()) {
+                    transactionIndices.remove(t.hash)
+                    transactionsStore.remove(t.hash)
+                } else {
+                    transactionIndices[t.hash] = rest.toTypedArray()
+                }
+            }
+            removeBody(b)
+        }
+        log.info("freeze blocks from height {} to {}", start, stop - 1)
+        return (stop - start).toInt()
     }
 
     companion object {
         private const val BEST_HEADER = "best"
+        private const val HEADER_CACHE_SIZE = 4096L
+        private const val TRANSACTION_CACHE_SIZE = 16384L
         private val log = LoggerFactory.getLogger("db")
     }
 
     init {
-        transactionsStore = StoreWrapper(
+        // decoded headers, transactions, height index and best header of recent blocks are cached
+        transactionsStore = CachingStoreWrapper(
             factory.create('b', "transaction"),
             Codecs.hex,
-            Transaction.Companion
+            Transaction.Companion,
+            factory.unitOfWork,
+            TRANSACTION_CACHE_SIZE
         )
 
-        headerStore = StoreWrapper(
+        headerStore = CachingStoreWrapper(
             factory.create('h', "block header"),
             Codecs.hex,
-            Header.Companion
+            Header.Companion,
+            factory.unitOfWork,
+            HEADER_CACHE_SIZE
         )
         transactionsRoot = StoreWrapper(
             factory.create('t', "transaction root"),
             Codecs.hex,
             Codecs.rlp(Array<HexBytes>::class.java)
         )
-        heightIndex = StoreWrapper(
+        heightIndex = CachingStoreWrapper(
             factory.create('i', "height index"),
             Codecs.rlp(Long::class.java),
-            Codecs.rlp(Array<HexBytes>::class.java)
+            Codecs.rlp(Array<HexBytes>::class.java),
+            factory.unitOfWork,
+            HEADER_CACHE_SIZE
         )
-        status = StoreWrapper(
+        status = CachingStoreWrapper(
             factory.create('s', "status"),
             Codecs.string,
-            Header.Companion
+            Header.Companion,
+            factory.unitOfWork,
+            16
         )
         transactionIndices = StoreWrapper(
             factory.create('f', "transaction index"),
             Codecs.hex,
             Codecs.rlp(Array<TransactionIndex>::class.java)
         )
+        ancientLookup = StoreWrapper(
+            factory.create('n', "ancient block height"),
+            Codecs.hex,
+            Codecs.rlp(Long::class.java)
+        )
     }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+package org.tdf.sunflower.service
+
+import org.tdf.common.event.EventBus
+import org.tdf.common.serialize.Codec
+import org.tdf.common.serialize.Codecs
+import org.tdf.common.store.AncientStore
+import org.tdf.common.store.MappedLog
+import org.tdf.common.store.RangeStore
+import org.tdf.common.store.Store
+import org.tdf.common.store.StoreWrapper
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.decode
+import org.tdf.common.util.rlp
+import org.tdf.sunflower.facade.DatabaseStoreFactory
+import org.tdf.sunflower.state.AccountTrie
+import org.tdf.sunflower.types.Block
+import org.tdf.sunflower.types.Header
+import org.tdf.sunflower.types.Transaction
+import org.tdf.sunflower.types.TransactionIndex
+
+/**
+ * block store which appends block bodies into memory mapped log, key value store keeps only headers and indices,
+ * a block is loaded by one index lookup and one sequential read instead of a lookup per transaction
+ *
+ * the log is forced to disk once every forceInterval blocks rather than per block, bodies appended since the last
+ * force are also kept in key value store and committed with their blocks, so a body torn by crash is read from there
+ */
+class RepositoryLogImpl(
+    bus: EventBus,
+    factory: DatabaseStoreFactory,
+    accountTrie: AccountTrie,
+    private val bodies: MappedLog,
+    ancient: AncientStore? = null,
+    private val forceInterval: Int = FORCE_INTERVAL
+) : RepositoryKVImpl(bus, factory, accountTrie, ancient) {
+    // block hash -> position of block body in log
+    private val bodyIndex: Store<HexBytes, Long> = StoreWrapper(
+        factory.create('l', "block body position"),
+        Codecs.hex,
+        Codecs.rlp(Long::class.java)
+    )
+
+    private val unforcedStore = factory.create('k', "block bodies not forced to log")
+
+    // block hash -> encoded body appended to log since the last force
+    private val unforcedBodies: Store<HexBytes, ByteArray> = StoreWrapper(
+        unforcedStore,
+        Codecs.hex,
+        Codec.identity()
+    )
+
+    // hashes of unforced bodies, bodies left by last run are dropped after the next force
+    private val unforced: MutableSet<HexBytes> = (unforcedStore as RangeStore<ByteArray, ByteArray>)
+        .scan(null, null, -1)
+        .mapTo(mutableSetOf()) { HexBytes.fromBytes(it.key) }
+
+    override fun writeBody(block: Block) {
+        if (bodyIndex[block.hash] != null) return
+        val body = block.body.toTypedArray().rlp()
+        bodyIndex[block.hash] = bodies.append(body)
+        unforcedBodies[block.hash] = body
+        unforced.add(block.hash)
+        if (unforced.size >= forceInterval) force()
+    }
+
+    // bodies are durable in log, their copies are removed with the block being written
+    private fun force() {
+        bodies.flush()
+        unforced.forEach { unforcedBodies.remove(it) }
+        unforced.clear()
+    }
+
+    override fun stop() {
+        super.stop()
+        bodies.close()
+    }
+
+    // the body is left in log, only its position is removed
+    override fun removeBody(block: Block) {
+        bodyIndex.remove(block.hash)
+        if (unforced.remove(block.hash)) unforcedBodies.remove(block.hash)
+    }
+
+    private fun getBody(blockHash: HexBytes): Array<Transaction>? {
+        val pos = bodyIndex[blockHash] ?: return null
+        val body = bodies.readOrNull(pos) ?: unforcedBodies[blockHash]
+            ?: throw RuntimeException("body of block $blockHash is torn in log")
+        return body.decode(Array<Transaction>::class.java)
+    }
+
+    override fun getTransaction(hash: HexBytes, index: TransactionIndex): Transaction? {
+        return getBody(index.blockHash)?.getOrNull(index.i)
+    }
+
+    override fun getBlockFromHeader(header: Header): Block {
+        val body = getBody(header.hash)
+            ?: return getAncientBlock(header) ?: throw RuntimeException("body of header $header not found")
+        return Block(header, body.toList())
+    }
+
+    override fun containsTransaction(hash: HexBytes): Boolean {
+        return transactionIndices[hash] != null || super.containsTransaction(hash)
+    }
+
+    companion object {
+        // blocks written between forces of body log
+        const val FORCE_INTERVAL = 64
+    }
+}
@@ -2,15 +2,19 @@ package org.tdf.sunflower.state
 
 import org.slf4j.LoggerFactory
 import org.tdf.common.serialize.Codecs
-import org.tdf.common.store.NoDeleteStore
+import org.tdf.common.store.PrunableStore
 import org.tdf.common.store.Store
+import org.tdf.common.trie.NodeCache
+import org.tdf.common.trie.PreimageCache
 import org.tdf.common.trie.SecureTrie
 import org.tdf.common.trie.Trie
 import org.tdf.common.trie.TrieImpl
+import org.tdf.common.trie.putAllUnsorted
 import org.tdf.common.util.HexBytes
 import org.tdf.sunflower.Start
 import org.tdf.sunflower.facade.RepositoryReader
 import org.tdf.sunflower.types.Header
+import org.tdf.sunflower.types.Transaction
 import org.tdf.sunflower.vm.*
 import org.tdf.sunflower.vm.abi.Abi
 import org.tdf.sunflower.vm.hosts.Limit
@@ -20,15 +24,27 @@ class AccountTrie(
     override val db: Store<ByteArray, ByteArray>,
     private val contractCodeStore: Store<HexBytes, HexBytes>,
     val contractStorageTrie: Trie<HexBytes, HexBytes>,
-    secure: Boolean
+    val secure: Boolean,
+    parallelThreshold: Int = 0,
+    flushThreshold: Long = 0,
+    prefetchThreads: Int = 0,
+    keyCacheSize: Long = PreimageCache.DEFAULT_SIZE,
+    preimageStore: Store<ByteArray, ByteArray>? = null,
+    nodeCache: NodeCache? = null
 ) : AbstractStateTrie<HexBytes, Account>() {
     override val trie: Trie<HexBytes, Account>
 
     lateinit var bios: Map<HexBytes, Builtin>
     lateinit var builtins: Map<HexBytes, Builtin>
 
+    // flat states attached after genesis, null means backends read from trie
+    @Volatile
+    var snapshot: FlatStates? = null
+
     override val trieStore: Store<ByteArray, ByteArray>
 
+    private val prefetcher: StatePrefetcher?
+
     override fun createBackend(
         parent: Header,
         staticCall: Boolean,
@@ -42,19 +58,33 @@ class AccountTrie(
             bios = bios,
             staticCall = staticCall,
             codeStore = contractCodeStore,
+            flat = snapshot,
         )
     }
 
     init {
-        trieStore = NoDeleteStore(db) { it == null || it.isEmpty() }
+        trieStore = PrunableStore(db, nodeCache)
+        val keyCodec = Codecs.rlp(HexBytes::class.java)
         var trie: Trie<HexBytes, Account> = TrieImpl(
             trieStore,
-            Codecs.rlp(HexBytes::class.java),
+            keyCodec,
             Codecs.rlp(Account::class.java),
+            parallelThreshold = parallelThreshold,
+            flushThreshold = flushThreshold,
+            nodeCache = nodeCache
         )
         if (secure)
-            trie = SecureTrie(trie)
+            trie = SecureTrie(trie, PreimageCache(keyCodec, keyCacheSize, preimageStore))
         this.trie = trie
+        prefetcher = if (prefetchThreads > 0) StatePrefetcher(trie, contractStorageTrie, prefetchThreads) else null
+    }
+
+    override fun prefetch(root: HexBytes, transactions: List<Transaction>) {
+        prefetcher?.prefetch(root, transactions)
+    }
+
+    fun stop() {
+        prefetcher?.stop()
     }
 
     override fun init(
@@ -72,10 +102,9 @@ class AccountTrie(
         for (c in (bios + builtins)) {
             val address = c.address
 
+            // genesis tries are empty, so they are built bottom-up
             val trie = contractStorageTrie.revert()
-            for ((key, value) in c.genesisStorage) {
-                trie[key] = value
-            }
+            trie.putAllUnsorted(c.genesisStorage)
             val root = trie.commit()
             trie.flush()
             val a = Account(storageRoot = root)
@@ -85,7 +114,7 @@ class AccountTrie(
 
         // sync to genesis
         val tmp = trie.revert()
-        genesisStates.forEach { tmp[it.key] = it.value }
+        tmp.putAllUnsorted(genesisStates)
         tmp.commit()
 
         val backend = BackendImpl(
@@ -0,0 +1,65 @@
+package org.tdf.sunflower.state
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import org.slf4j.LoggerFactory
+import org.tdf.common.trie.Trie
+import org.tdf.common.util.HexBytes
+import org.tdf.sunflower.types.Transaction
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * resolves trie paths of accounts touched by transactions on worker threads before execution,
+ * resolved nodes are kept in node cache and trie node cache, so single threaded execution seldom waits for database
+ */
+class StatePrefetcher(
+    private val accountTrie: Trie<HexBytes, Account>,
+    private val storageTrie: Trie<HexBytes, HexBytes>,
+    threads: Int
+) {
+    // stale prefetches are discarded when workers fall behind
+    private val executor = ThreadPoolExecutor(
+        threads, threads, 0, TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue(QUEUE_SIZE),
+        ThreadFactoryBuilder().setNameFormat("prefetch-%d").setDaemon(true).build(),
+        ThreadPoolExecutor.DiscardOldestPolicy()
+    )
+
+    /**
+     * prefetch senders and recipients of transactions at state root, returns immediately
+     */
+    fun prefetch(root: HexBytes, transactions: List<Transaction>) {
+        val fetched: MutableSet<HexBytes> = ConcurrentHashMap.newKeySet()
+        for (tx in transactions) {
+            executor.execute {
+                try {
+                    if (tx.to != AddrUtil.empty() && fetched.add(tx.to)) fetch(root, tx.to)
+                    // sender is recovered on worker and cached by transaction, signature check reuses it
+                    if (tx.vrs != null && fetched.add(tx.sender)) fetch(root, tx.sender)
+                } catch (e: Exception) {
+                    log.debug("prefetch {} failed: {}", tx.hash, e.message)
+                }
+            }
+        }
+    }
+
+    // every worker reverts its own trie, decoded nodes are shared by node cache
+    private fun fetch(root: HexBytes, address: HexBytes) {
+        val a = accountTrie.revert(root)[address] ?: return
+        // branches near storage root are on the paths of all slots
+        if (a.storageRoot != storageTrie.nullHash)
+            storageTrie.revert(a.storageRoot)[FIRST_SLOT]
+    }
+
+    fun stop() {
+        executor.shutdownNow()
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger("prefetch")
+        private const val QUEUE_SIZE = 4096
+        private val FIRST_SLOT = HexBytes.fromBytes(ByteArray(32))
+    }
+}
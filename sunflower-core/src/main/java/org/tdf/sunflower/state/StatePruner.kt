@@ -0,0 +1,140 @@
+package org.tdf.sunflower.state
+
+import com.google.common.cache.CacheBuilder
+import com.google.common.hash.BloomFilter
+import com.google.common.hash.Funnel
+import org.slf4j.LoggerFactory
+import org.tdf.common.store.PrunableStore
+import org.tdf.common.trie.Trie
+import org.tdf.common.util.FixedDelayScheduler
+import org.tdf.common.util.HexBytes
+import org.tdf.sunflower.facade.RepositoryService
+
+/**
+ * online pruner of account trie and contract storage trie, keeps full states of the last retain blocks
+ * and removes unreachable nodes by incremental mark and sweep in background:
+ *
+ * 1. begin cycle under writer lock, so no block is half written, and read state roots of committed blocks,
+ *    nodes written in this and previous cycle are recorded by the stores and never removed,
+ *    this covers new blocks and pending states of transaction pool and miner
+ * 2. mark nodes reachable from state roots of the last retain blocks and storage roots of their accounts
+ *    into bloom filters of fixed size, the oldest root is walked fully, every later root is walked only where
+ *    it differs from the previous root, so memory is independent of the size of states
+ * 3. scan the stores in batches, remove unmarked and unrecorded nodes of a batch in a short writer session,
+ *    false positives of the filters only leave some garbage to later cycles
+ */
+class StatePruner(
+    private val repo: RepositoryService,
+    private val accountTrie: Trie<HexBytes, Account>,
+    private val contractStorageTrie: Trie<HexBytes, HexBytes>,
+    private val retain: Long,
+    private val batchSize: Int = 1024,
+    private val expectedNodes: Long = EXPECTED_NODES
+) {
+    private val accountStore = accountTrie.store as PrunableStore
+    private val storageStore = contractStorageTrie.store as PrunableStore
+    private var scheduler: FixedDelayScheduler? = null
+    private var cycles = 0L
+
+    fun start(interval: Long) {
+        if (retain <= 0) return
+        log.info("state pruner started, retain = {} blocks, interval = {} seconds", retain, interval)
+        val s = FixedDelayScheduler("state-pruner", interval)
+        s.delay {
+            try {
+                prune()
+            } catch (e: Exception) {
+                log.error("prune failed", e)
+            }
+        }
+        scheduler = s
+    }
+
+    fun stop() {
+        scheduler?.shutdownNow()
+    }
+
+    @Synchronized
+    fun prune() {
+        // trie nodes of a block are buffered by its writer session until the block is committed,
+        // begin cycle with writer lock held, so nodes of blocks not in the roots below are all recorded
+        val roots = repo.writer.use { w ->
+            // evaluate both, nothing is removed until both stores have recorded a full cycle
+            val ready = accountStore.beginCycle() and storageStore.beginCycle()
+            val best = w.bestHeader
+            if (!ready || best.height < retain) return
+            w.getHeadersBetween(best.height - retain + 1, best.height, Int.MAX_VALUE, false)
+                .map { it.stateRoot }
+                .distinct()
+        }
+
+        // false positives keep some garbage, salted by cycle so they differ between cycles
+        val salt = ++cycles
+        val funnel = Funnel<ByteArray> { from, into -> into.putLong(salt).putBytes(from) }
+        val markedAccounts = BloomFilter.create(funnel, expectedNodes, 0.01)
+        val markedStorage = BloomFilter.create(funnel, expectedNodes, 0.01)
+        // storage roots marked in this cycle, bounded, a storage trie is marked again after eviction
+        val storageRoots = CacheBuilder.newBuilder().maximumSize(STORAGE_ROOTS).build<HexBytes, Boolean>()
+
+        fun markStorage(root: HexBytes, base: HexBytes?) {
+            if (root == contractStorageTrie.nullHash || storageRoots.getIfPresent(root) != null) return
+            contractStorageTrie.revert(root).markNew(base, { markedStorage.put(it) }) {}
+            storageRoots.put(root, true)
+        }
+
+        // every node reachable from a marked root is marked, so a root is marked by its difference from previous one
+        var base: HexBytes? = null
+        for (root in roots) {
+            val t = accountTrie.revert(root)
+            if (base == null) {
+                t.markNew(null, { markedAccounts.put(it) }) { markStorage(it.storageRoot, null) }
+            } else {
+                t.markNew(base, { markedAccounts.put(it) }) {}
+                accountTrie.revert(base).diff(root).forEach {
+                    val after = it.after ?: return@forEach
+                    markStorage(after.storageRoot, it.before?.storageRoot)
+                }
+            }
+            base = root
+        }
+        log.info(
+            "mark about {} account nodes and {} storage nodes from {} roots",
+            markedAccounts.approximateElementCount(), markedStorage.approximateElementCount(), roots.size
+        )
+
+        val removedAccounts = sweep(accountStore, markedAccounts)
+        val removedStorage = sweep(storageStore, markedStorage)
+        log.info("remove {} account nodes and {} storage nodes", removedAccounts, removedStorage)
+    }
+
+    private fun sweep(store: PrunableStore, marked: BloomFilter<ByteArray>): Long {
+        var removed = 0L
+        var start: ByteArray? = null
+        while (true) {
+            val rows = store.scan(start, batchSize)
+            if (rows.isEmpty()) break
+            // the least key greater than last key
+            start = rows.last().key + byteArrayOf(0)
+
+            val garbage = rows.filter { !marked.mightContain(it.key) && !store.isWritten(it.key) }
+            if (garbage.isNotEmpty()) {
+                // removals are flushed atomically when writer closed, block import waits for one batch at most
+                repo.writer.use { garbage.forEach { store.delete(it.key) } }
+                garbage.forEach { store.invalidate(it.key) }
+                // restore nodes written concurrently without writer, e.g. by transaction pool
+                garbage.forEach { if (store.isWritten(it.key)) store[it.key] = it.value }
+                removed += garbage.size
+            }
+            if (rows.size < batchSize) break
+        }
+        return removed
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger("pruner")
+
+        // marks of a store are kept in a bloom filter of about 1.2 bytes per expected node
+        const val EXPECTED_NODES = 16L * 1024 * 1024
+        private const val STORAGE_ROOTS = 4096L
+    }
+}
@@ -0,0 +1,299 @@
+package org.tdf.sunflower.state
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import org.slf4j.LoggerFactory
+import org.tdf.common.event.EventBus
+import org.tdf.common.store.RangeStore
+import org.tdf.common.store.Store
+import org.tdf.common.store.UnitOfWork
+import org.tdf.common.trie.TrieImpl
+import org.tdf.common.util.HashUtil
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.decode
+import org.tdf.common.util.hex
+import org.tdf.common.util.rlp
+import org.tdf.common.util.sha3
+import org.tdf.sunflower.events.NewBestBlock
+import org.tdf.sunflower.facade.RepositoryService
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * flat states of account trie and contract storage tries:
+ *
+ * 1. disk layer keeps accounts and storage at a state root in a flat store keyed by trie keys
+ * 2. diff layers keep states modified by recent blocks in memory, forks share their common ancestors
+ * 3. states merged by transaction pool, miner and validator are pending until a best block at the root is written,
+ *    so diff layers are only created for blocks on canonical chains
+ * 4. the bottom diff layer is written into disk layer when a chain of diff layers is longer than depth
+ * 5. disk layer is generated from tries in background when it is missing or not at the best state root
+ *
+ * a diff layer is written into disk layer together with the root key in one unit of work,
+ * a reader of database snapshot taken before the disk layer moved sees an older version and reads from tries
+ *
+ * @param store flat store, accounts are keyed by 'a' + account key, storage by 's' + account key + storage key
+ * @param unitOfWork unit of work wrapping the flat store
+ * @param depth maximum count of diff layers above disk layer
+ */
+class StateSnapshot(
+    private val store: Store<ByteArray, ByteArray>,
+    private val unitOfWork: UnitOfWork,
+    private val accountTrie: AccountTrie,
+    private val repo: RepositoryService,
+    private val bus: EventBus,
+    private val depth: Int
+) : FlatStates {
+    private class Diff(
+        val parent: HexBytes,
+        val root: HexBytes,
+        val height: Long,
+        val accounts: Map<HexBytes, Account>,
+        val storage: Map<HexBytes, Map<HexBytes, HexBytes>>
+    )
+
+    // state root -> diff layer on it
+    private val layers: MutableMap<HexBytes, Diff> = ConcurrentHashMap()
+
+    // state root -> diff not written as a block yet, most of them are discarded
+    private val pending: Cache<HexBytes, Diff> = CacheBuilder.newBuilder().maximumSize(PENDING_SIZE).build()
+
+    // disk layer is read and written under this lock
+    private val lock = ReentrantReadWriteLock()
+
+    @Volatile
+    private var diskRoot: HexBytes? = null
+
+    // version of committed state since which the flat store is at disk root
+    @Volatile
+    private var diskVersion = 0L
+
+    // disk layer is readable when generated
+    @Volatile
+    private var ready = false
+
+    @Volatile
+    private var generating = false
+
+    @Volatile
+    private var closed = false
+
+    // generation and flattening run in this thread in order
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor(
+        ThreadFactoryBuilder().setNameFormat("state-snapshot").setDaemon(true).build()
+    )
+
+    fun start() {
+        val best = repo.reader.use { it.bestHeader.stateRoot }
+        val root = store[ROOT_KEY]?.hex()
+        diskRoot = best
+        if (root == best) {
+            ready = true
+            log.info("state snapshot loaded at root {}", best)
+        } else {
+            generating = true
+            executor.execute { generate(best) }
+        }
+        accountTrie.snapshot = this
+        bus.subscribe(NewBestBlock::class.java) { onBestBlock(it.block.stateRoot) }
+    }
+
+    /**
+     * write diff layers of the best state root into disk layer, so the snapshot is reused on next start
+     */
+    fun stop() {
+        accountTrie.snapshot = null
+        closed = true
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS)
+        if (!ready) return
+        val best = repo.reader.use { it.bestHeader.stateRoot }
+        flatten(best, 0)
+    }
+
+    private fun accountKey(address: HexBytes): ByteArray {
+        val k = address.rlp()
+        return if (accountTrie.secure) k.sha3() else k
+    }
+
+    private fun storageKey(address: HexBytes, key: HexBytes): ByteArray {
+        val k = if (accountTrie.secure) key.bytes.sha3() else key.bytes
+        return STORAGE_PREFIX + accountKey(address) + k
+    }
+
+    override fun getAccount(root: HexBytes, address: HexBytes): Account? {
+        lock.read {
+            var r = root
+            while (r != diskRoot) {
+                val d = layers[r] ?: return null
+                d.accounts[address]?.let { return it }
+                r = d.parent
+            }
+            if (!ready || !diskVisible()) return null
+            return store[ACCOUNT_PREFIX + accountKey(address)]?.decode(Account::class.java) ?: Account.empty()
+        }
+    }
+
+    override fun getStorage(root: HexBytes, address: HexBytes, key: HexBytes): HexBytes? {
+        lock.read {
+            var r = root
+            while (r != diskRoot) {
+                val d = layers[r] ?: return null
+                d.storage[address]?.get(key)?.let { return it }
+                r = d.parent
+            }
+            if (!ready || !diskVisible()) return null
+            return store[storageKey(address, key)]?.hex() ?: HexBytes.empty()
+        }
+    }
+
+    // false if current thread reads a database snapshot taken before the flat store moved to disk root
+    private fun diskVisible(): Boolean {
+        val v = unitOfWork.readVersion(store, ROOT_KEY) ?: return false
+        return v >= diskVersion
+    }
+
+    // write into flat store atomically and move disk root, called with write lock held
+    private fun commit(root: HexBytes, writes: () -> Unit) {
+        unitOfWork.begin()
+        try {
+            writes()
+            store[ROOT_KEY] = root.bytes
+        } catch (e: Exception) {
+            unitOfWork.rollback()
+            throw e
+        } finally {
+            unitOfWork.commit()
+        }
+        diskRoot = root
+        diskVersion = unitOfWork.version
+    }
+
+    override fun update(
+        parent: HexBytes,
+        root: HexBytes,
+        height: Long,
+        accounts: Map<HexBytes, Account>,
+        storage: Map<HexBytes, Map<HexBytes, HexBytes>>
+    ) {
+        if (parent == root || closed || !(ready || generating)) return
+        pending.put(root, Diff(parent, root, height, accounts.toMap(), storage.mapValues { it.value.toMap() }))
+    }
+
+    /**
+     * create diff layers of the best state root and its pending ancestors, then flatten the chain
+     */
+    fun onBestBlock(root: HexBytes) {
+        if (closed) return
+        executor.execute {
+            val chain: MutableList<Diff> = mutableListOf()
+            var r = root
+            while (r != diskRoot && !layers.containsKey(r)) {
+                // states on unknown parent are not available, e.g. fork below disk layer
+                val d = pending.getIfPresent(r) ?: return@execute
+                chain.add(d)
+                r = d.parent
+            }
+            chain.forEach {
+                layers[it.root] = it
+                pending.invalidate(it.root)
+            }
+            flatten(root, depth)
+        }
+    }
+
+    // write bottom diff layers of the chain from root into disk layer until at most n diff layers left
+    private fun flatten(root: HexBytes, n: Int) {
+        if (!ready) return
+        val chain: MutableList<Diff> = mutableListOf()
+        var r = root
+        while (r != diskRoot) {
+            chain.add(layers[r] ?: return)
+            r = chain.last().parent
+        }
+        while (chain.size > n) {
+            val d = chain.removeAt(chain.size - 1)
+            lock.write {
+                commit(d.root) {
+                    for ((address, a) in d.accounts) {
+                        val k = ACCOUNT_PREFIX + accountKey(address)
+                        if (a.isEmpty) store.remove(k) else store[k] = a.rlp()
+                    }
+                    for ((address, m) in d.storage) {
+                        for ((key, v) in m) {
+                            val k = storageKey(address, key)
+                            if (v.size == 0) store.remove(k) else store[k] = v.bytes
+                        }
+                    }
+                }
+                // forks below disk layer are not reachable any more
+                layers.values.removeIf { it.height <= d.height }
+            }
+        }
+    }
+
+    // generate disk layer at root from tries
+    private fun generate(root: HexBytes) {
+        log.info("generate state snapshot at root {}", root)
+        val start = System.currentTimeMillis()
+        try {
+            clear()
+            val accounts = TrieImpl<ByteArray, ByteArray>(accountTrie.trieStore).revert(root)
+            val storage = TrieImpl<ByteArray, ByteArray>(accountTrie.contractStorageTrie.store)
+            var n = 0L
+            accounts.traverse { k, v ->
+                store[ACCOUNT_PREFIX + k] = v
+                val a = v.decode(Account::class.java)
+                if (a.storageRoot != HashUtil.EMPTY_TRIE_HASH_HEX) {
+                    storage.revert(a.storageRoot).traverse { sk, sv ->
+                        store[STORAGE_PREFIX + k + sk] = sv
+                        !closed
+                    }
+                }
+                n++
+                !closed
+            }
+            if (closed) {
+                log.info("state snapshot generation aborted")
+                return
+            }
+            // readers of database snapshots taken during generation see an older version
+            lock.write { commit(root) {} }
+            ready = true
+            log.info(
+                "state snapshot generated, {} accounts in {} ms",
+                n, System.currentTimeMillis() - start
+            )
+        } catch (e: Exception) {
+            // states are read from tries
+            log.error("generate state snapshot failed", e)
+        } finally {
+            generating = false
+            if (!ready) layers.clear()
+        }
+    }
+
+    private fun clear() {
+        val range = store as RangeStore<ByteArray, ByteArray>
+        store.remove(ROOT_KEY)
+        while (true) {
+            val rows = range.scan(null, null, 1024)
+            if (rows.isEmpty()) break
+            rows.forEach { store.remove(it.key) }
+        }
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger("snapshot")
+        private const val PENDING_SIZE = 256L
+        private val ROOT_KEY = byteArrayOf('r'.code.toByte())
+        private val ACCOUNT_PREFIX = byteArrayOf('a'.code.toByte())
+        private val STORAGE_PREFIX = byteArrayOf('s'.code.toByte())
+    }
+}
@@ -0,0 +1,162 @@
+package org.tdf.sunflower.state
+
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.tdf.common.event.EventBus
+import org.tdf.common.serialize.Codecs
+import org.tdf.common.store.PrunableStore
+import org.tdf.common.store.StoreWrapper
+import org.tdf.common.trie.TrieImpl
+import org.tdf.common.types.Uint256
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.hex
+import org.tdf.sunflower.DatabaseConfig
+import org.tdf.sunflower.DatabaseConfigProperties
+import org.tdf.sunflower.db.DatabaseStoreFactoryImpl
+import org.tdf.sunflower.facade.RepositoryServiceImpl
+import org.tdf.sunflower.service.RepositoryKVImpl
+import org.tdf.sunflower.types.Block
+import org.tdf.sunflower.types.Header
+import org.tdf.sunflower.types.HeaderImpl
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+@RunWith(JUnit4::class)
+class StatePrunerTests {
+    private lateinit var accountTrie: AccountTrie
+    private lateinit var repo: RepositoryServiceImpl
+    private lateinit var pruner: StatePruner
+
+    @Before
+    fun before() {
+        val props = DatabaseConfigProperties()
+        props["name"] = "memory"
+        props["directory"] = "local"
+        props["max-open-files"] = "16"
+        props["block-store"] = "kv"
+        props["trie-cache-size"] = "0"
+        val factory = DatabaseStoreFactoryImpl(DatabaseConfig(props))
+        val storage = TrieImpl(PrunableStore(factory.create('o', "")), Codecs.hex, Codecs.hex)
+        val code = StoreWrapper(factory.create('c', ""), Codecs.hex, Codecs.hex)
+        accountTrie = AccountTrie(factory.create('a', ""), code, storage, false)
+        val blockStore = RepositoryKVImpl(EventBus(Executors.defaultThreadFactory()), factory, accountTrie)
+        repo = RepositoryServiceImpl(blockStore, factory.unitOfWork, factory::snapshot)
+        pruner = StatePruner(repo, accountTrie.trie, storage, 1, 16)
+
+        val genesis = Block(HeaderImpl(stateRoot = state(accountTrie.trie.nullHash, 0)))
+        repo.writer.use { it.saveGenesis(genesis) }
+    }
+
+    // modify balances of some accounts based on parent state
+    private fun state(parent: HexBytes, n: Int): HexBytes {
+        val t = accountTrie.trie.revert(parent)
+        for (i in 0 until 64) {
+            if (n > 0 && i % 4 != n % 4) continue
+            t[address(i)] = Account(balance = Uint256.of(n.toLong() + 1))
+        }
+        return t.commit()
+    }
+
+    private fun address(i: Int): HexBytes {
+        return ByteArray(20) { i.toByte() }.hex()
+    }
+
+    private fun child(parent: Header, root: HexBytes): Block {
+        return Block(HeaderImpl(hashPrev = parent.hash, stateRoot = root, height = parent.height + 1))
+    }
+
+    private fun writeBlock(n: Int): Block {
+        return repo.writer.use {
+            val b = child(it.bestHeader, state(it.bestHeader.stateRoot, n))
+            it.writeBlock(b, emptyList())
+            b
+        }
+    }
+
+    private fun contains(root: HexBytes): Boolean {
+        return accountTrie.trieStore[root.bytes]?.isNotEmpty() == true
+    }
+
+    // all nodes of the state are resolvable
+    private fun assertComplete(root: HexBytes) {
+        Assert.assertEquals(64, accountTrie.trie.revert(root).entries().size)
+    }
+
+    @Test
+    fun testPruneOldStates() {
+        val blocks = (1..3).map { writeBlock(it) }
+        // keys written before the first cycle are unknown, nothing is removed
+        pruner.prune()
+        Assert.assertTrue(blocks.all { contains(it.stateRoot) })
+
+        pruner.prune()
+        Assert.assertFalse(contains(blocks[0].stateRoot))
+        Assert.assertFalse(contains(blocks[1].stateRoot))
+        assertComplete(blocks[2].stateRoot)
+    }
+
+    @Test
+    fun testRetainSeveralStates() {
+        val storage = accountTrie.contractStorageTrie
+        val p = StatePruner(repo, accountTrie.trie, storage, 3, 16)
+        val blocks = (1..6).map { writeBlock(it) }
+        p.prune()
+        p.prune()
+        // later states are marked by difference from earlier ones
+        Assert.assertFalse(contains(blocks[2].stateRoot))
+        (3..5).forEach { assertComplete(blocks[it].stateRoot) }
+    }
+
+    @Test
+    fun testPruneWhileWritingBlock() {
+        (1..3).forEach { writeBlock(it) }
+        pruner.prune()
+        pruner.prune()
+        // states of these blocks become garbage when the next block is written
+        writeBlock(4)
+        writeBlock(5)
+
+        val started = CountDownLatch(1)
+        var block: Block? = null
+        val writer = Thread {
+            repo.writer.use {
+                // nodes of new state are buffered in the writer session until the block is written
+                val b = child(it.bestHeader, state(it.bestHeader.stateRoot, 6))
+                started.countDown()
+                Thread.sleep(200)
+                it.writeBlock(b, emptyList())
+                block = b
+            }
+        }
+        writer.start()
+        started.await()
+        val p = Thread { pruner.prune() }
+        p.start()
+        writer.join()
+        p.join()
+
+        val best = repo.reader.use { it.bestHeader }
+        Assert.assertEquals(block!!.hash, best.hash)
+        assertComplete(best.stateRoot)
+        pruner.prune()
+        assertComplete(best.stateRoot)
+    }
+
+    @Test
+    fun testKeepPendingState() {
+        (1..3).forEach { writeBlock(it) }
+        pruner.prune()
+        // state of transaction pool or miner written without writer session and not referenced by any block
+        val best = repo.reader.use { it.bestHeader }
+        val pending = state(best.stateRoot, 5)
+        pruner.prune()
+        assertComplete(pending)
+        // pending state older than one prune interval is removed
+        pruner.prune()
+        Assert.assertFalse(contains(pending))
+        assertComplete(best.stateRoot)
+    }
+}
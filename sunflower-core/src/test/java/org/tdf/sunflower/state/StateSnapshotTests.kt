@@ -0,0 +1,170 @@
+package org.tdf.sunflower.state
+
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.tdf.common.event.EventBus
+import org.tdf.common.serialize.Codecs
+import org.tdf.common.store.PrunableStore
+import org.tdf.common.store.Store
+import org.tdf.common.store.StoreWrapper
+import org.tdf.common.trie.TrieImpl
+import org.tdf.common.types.Uint256
+import org.tdf.common.util.HexBytes
+import org.tdf.common.util.hex
+import org.tdf.sunflower.DatabaseConfig
+import org.tdf.sunflower.DatabaseConfigProperties
+import org.tdf.sunflower.db.DatabaseStoreFactoryImpl
+import org.tdf.sunflower.facade.RepositoryServiceImpl
+import org.tdf.sunflower.service.RepositoryKVImpl
+import org.tdf.sunflower.types.Block
+import org.tdf.sunflower.types.HeaderImpl
+import java.util.concurrent.Executors
+
+@RunWith(JUnit4::class)
+class StateSnapshotTests {
+    private lateinit var accountTrie: AccountTrie
+    private lateinit var repo: RepositoryServiceImpl
+    private lateinit var flat: Store<ByteArray, ByteArray>
+    private lateinit var snapshot: StateSnapshot
+    private val key = HexBytes.fromHex("01")
+
+    @Before
+    fun before() {
+        val props = DatabaseConfigProperties()
+        props["name"] = "memory"
+        props["directory"] = "local"
+        props["max-open-files"] = "16"
+        props["block-store"] = "kv"
+        props["trie-cache-size"] = "0"
+        val factory = DatabaseStoreFactoryImpl(DatabaseConfig(props))
+        val storage = TrieImpl(PrunableStore(factory.create('o', "")), Codecs.hex, Codecs.hex)
+        val code = StoreWrapper(factory.create('c', ""), Codecs.hex, Codecs.hex)
+        accountTrie = AccountTrie(factory.create('a', ""), code, storage, false)
+        val bus = EventBus(Executors.defaultThreadFactory())
+        val blockStore = RepositoryKVImpl(bus, factory, accountTrie)
+        repo = RepositoryServiceImpl(blockStore, factory.unitOfWork, factory::snapshot)
+
+        val alloc = (0 until 4).associate { address(it) to Account(balance = Uint256.of(1)) }
+        val root = accountTrie.init(alloc, emptyList(), emptyList(), emptyMap(), blockStore)
+        repo.writer.use { it.saveGenesis(Block(HeaderImpl(stateRoot = root))) }
+
+        flat = factory.create('d', "")
+        snapshot = StateSnapshot(flat, factory.unitOfWork, accountTrie, repo, bus, 2)
+        snapshot.start()
+        awaitDisk(root)
+    }
+
+    @After
+    fun after() {
+        snapshot.stop()
+    }
+
+    private fun address(i: Int): HexBytes {
+        return ByteArray(20) { i.toByte() }.hex()
+    }
+
+    // merge states modified by n on the best block without writing a block
+    private fun merge(n: Int): Pair<HeaderImpl, HexBytes> {
+        val parent = repo.reader.use { it.bestHeader }
+        val backend = accountTrie.createBackend(parent)
+        backend.setBalance(address(n % 4), Uint256.of(n.toLong() + 1))
+        backend.dbSet(address(0), key, HexBytes.fromBytes(byteArrayOf(n.toByte())))
+        return Pair(parent.impl, backend.merge())
+    }
+
+    private fun writeBlock(parent: HeaderImpl, root: HexBytes): Block {
+        val b = Block(HeaderImpl(hashPrev = parent.hash, stateRoot = root, height = parent.height + 1))
+        repo.writer.use { it.writeBlock(b, emptyList()) }
+        return b
+    }
+
+    private fun mine(n: Int): Block {
+        val (parent, root) = merge(n)
+        return writeBlock(parent, root)
+    }
+
+    // wait until the disk layer is at root
+    private fun awaitDisk(root: HexBytes) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (flat[ROOT_KEY]?.hex() != root) {
+            if (System.currentTimeMillis() > deadline) throw RuntimeException("disk layer not at $root")
+            Thread.sleep(10)
+        }
+    }
+
+    private fun assertStates(root: HexBytes) {
+        for (i in 0 until 4) {
+            Assert.assertEquals(accountTrie.trie.revert(root)[address(i)], snapshot.getAccount(root, address(i)))
+        }
+        val storageRoot = accountTrie.trie.revert(root)[address(0)]!!.storageRoot
+        Assert.assertEquals(
+            accountTrie.contractStorageTrie.revert(storageRoot)[key],
+            snapshot.getStorage(root, address(0), key)
+        )
+    }
+
+    @Test
+    fun testDiffLayers() {
+        val blocks = (1..5).map { mine(it) }
+        // two diff layers above disk layer
+        awaitDisk(blocks[2].stateRoot)
+        blocks.drop(2).forEach { assertStates(it.stateRoot) }
+        // states below disk layer are read from tries
+        Assert.assertNull(snapshot.getAccount(blocks[0].stateRoot, address(0)))
+    }
+
+    @Test
+    fun testPendingStates() {
+        (1..3).forEach { mine(it) }
+        awaitDisk(repo.reader.use { it.getCanonicalHeader(1)!!.stateRoot })
+
+        // states of pool, miner candidate or invalid block are not layers
+        val (parent, root) = merge(4)
+        merge(5)
+        Assert.assertNull(snapshot.getAccount(root, address(0)))
+
+        // pending states become a layer when written as best block
+        val b = writeBlock(parent, root)
+        val deadline = System.currentTimeMillis() + 10000
+        while (snapshot.getAccount(b.stateRoot, address(0)) == null) {
+            if (System.currentTimeMillis() > deadline) throw RuntimeException("layer at ${b.stateRoot} not created")
+            Thread.sleep(10)
+        }
+        assertStates(b.stateRoot)
+        awaitDisk(repo.reader.use { it.getCanonicalHeader(2)!!.stateRoot })
+    }
+
+    @Test
+    fun testSnapshotReader() {
+        val blocks = (1..5).map { mine(it) }.toMutableList()
+        awaitDisk(blocks[2].stateRoot)
+
+        repo.reader.use {
+            // disk layer moves while this thread reads a database snapshot
+            val t = Thread {
+                blocks.add(mine(6))
+                blocks.add(mine(7))
+                awaitDisk(blocks[4].stateRoot)
+            }
+            t.start()
+            t.join()
+
+            // disk layer of the database snapshot is at blocks[2], states at blocks[4] are read from tries
+            val root = blocks[4].stateRoot
+            for (i in 0 until 4) {
+                val a = snapshot.getAccount(root, address(i))
+                Assert.assertTrue(a == null || a == accountTrie.trie.revert(root)[address(i)])
+            }
+            val v = snapshot.getStorage(root, address(0), key)
+            Assert.assertTrue(v == null || v == HexBytes.fromBytes(byteArrayOf(5)))
+        }
+    }
+
+    companion object {
+        private val ROOT_KEY = byteArrayOf('r'.code.toByte())
+    }
+}